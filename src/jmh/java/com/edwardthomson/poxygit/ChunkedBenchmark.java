@@ -0,0 +1,90 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Chunked transfer encoding: writing a single chunk, and copying a body of
+ * <code>length</code> bytes to and from chunked encoding. Output goes to a
+ * reused in-memory buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChunkedBenchmark
+{
+	/* One copy buffer, and a small pack */
+	@Param({ "2048", "1048576" })
+	public int length;
+
+	private byte[] body;
+	private ByteArrayInputStream plain;
+	private ByteArrayInputStream chunked;
+	private ByteArrayOutputStream out;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		body = new byte[length];
+		ThreadLocalRandom.current().nextBytes(body);
+
+		out = new ByteArrayOutputStream(length * 2);
+
+		plain = new ByteArrayInputStream(body);
+
+		IOUtils.copyStreamToChunkedStream(plain, out);
+		chunked = new ByteArrayInputStream(out.toByteArray());
+	}
+
+	@Benchmark
+	public int writeChunk() throws Exception
+	{
+		out.reset();
+		IOUtils.writeChunk(out, body, Math.min(body.length, 2048));
+		return out.size();
+	}
+
+	@Benchmark
+	public int copyStreamToChunkedStream() throws Exception
+	{
+		plain.reset();
+		out.reset();
+		IOUtils.copyStreamToChunkedStream(plain, out);
+		return out.size();
+	}
+
+	@Benchmark
+	public int copyChunkedStreamToStream() throws Exception
+	{
+		chunked.reset();
+		out.reset();
+		IOUtils.copyChunkedStreamToStream(chunked, out);
+		return out.size();
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The header lookups made for every request, against the headers of a
+ * typical fetch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderUtilsBenchmark
+{
+	private List<Header> headers;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		headers = new ArrayList<Header>();
+
+		for (String line : RequestParseBenchmark.HEADER_LINES)
+		{
+			headers.add(new Header(line));
+		}
+	}
+
+	@Benchmark
+	public boolean isChunked()
+	{
+		return HeaderUtils.isChunked(headers);
+	}
+
+	@Benchmark
+	public boolean isConnectionKeepAlive()
+	{
+		return HeaderUtils.isConnectionKeepAlive(headers);
+	}
+
+	@Benchmark
+	public boolean isExpectContinue()
+	{
+		return HeaderUtils.isExpectContinue(headers);
+	}
+
+	@Benchmark
+	public long getContentLength()
+	{
+		return HeaderUtils.getContentLength(headers);
+	}
+
+	@Benchmark
+	public String getCookie()
+	{
+		return HeaderUtils.getCookie(headers, "poxygit-ntlm");
+	}
+}
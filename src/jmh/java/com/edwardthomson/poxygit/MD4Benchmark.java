@@ -0,0 +1,83 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.Provider;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the MD4 implementations: the original SPI looked up through the
+ * JCA (as <code>NTLM.ntlmHash</code> used to), the current SPI looked up the
+ * same way, and the static one-shot digest.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MD4Benchmark
+{
+	private static final Provider CRYPTIX_PROVIDER = new CryptixMD4Provider();
+	private static final Provider MD4_PROVIDER = new MD4Provider();
+
+	/* A typical password (as UTF-16LE) and a multi-block input */
+	@Param({ "16", "1024" })
+	public int length;
+
+	private byte[] input;
+	private final byte[] out = new byte[MD4.hashSize];
+
+	@Setup
+	public void setup()
+	{
+		final StringBuilder password = new StringBuilder();
+
+		for (int i = 0; i < length / 2; i++)
+		{
+			password.append((char) ('a' + (i % 26)));
+		}
+
+		input = password.toString().getBytes(StandardCharsets.UTF_16LE);
+	}
+
+	@Benchmark
+	public byte[] cryptixProvider() throws Exception
+	{
+		return MessageDigest.getInstance("MD4", CRYPTIX_PROVIDER).digest(input);
+	}
+
+	@Benchmark
+	public byte[] md4Provider() throws Exception
+	{
+		return MessageDigest.getInstance("MD4", MD4_PROVIDER).digest(input);
+	}
+
+	@Benchmark
+	public byte[] md4Static()
+	{
+		MD4.digest(input, 0, input.length, out);
+		return out;
+	}
+}
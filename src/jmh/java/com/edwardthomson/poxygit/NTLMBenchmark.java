@@ -0,0 +1,184 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * NTLM: creating a challenge, parsing a client's type 3 message, verifying
+ * its NTLMv2 response, and the password hash that a credential is created
+ * with.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NTLMBenchmark
+{
+	private static final String USERNAME = "user";
+	private static final String PASSWORD = "pass";
+	private static final String DOMAIN = "POXYGIT";
+
+	private CredentialStore.Credential credential;
+	private NTLMMessage.Type1Message negotiate;
+	private NTLMMessage.Type2Message challenge;
+	private byte[] authenticate;
+	private NTLMMessage.Type3Message response;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		final CredentialStore credentials = new CredentialStore();
+		credentials.add(USERNAME, PASSWORD);
+		credential = credentials.get(USERNAME);
+
+		negotiate = new NTLMMessage.Type1Message(createNegotiate());
+		challenge = NTLM.createChallenge(negotiate);
+		authenticate = createAuthenticate(challenge);
+		response = new NTLMMessage.Type3Message(authenticate);
+
+		if (!NTLM.verifyResponse(credential, null, challenge, response))
+		{
+			throw new IllegalStateException("NTLM response did not verify");
+		}
+	}
+
+	@Benchmark
+	public NTLMMessage.Type2Message createChallenge() throws Exception
+	{
+		return NTLM.createChallenge(negotiate);
+	}
+
+	@Benchmark
+	public NTLMMessage.Type3Message parseAuthenticate() throws Exception
+	{
+		return new NTLMMessage.Type3Message(authenticate);
+	}
+
+	@Benchmark
+	public boolean verifyResponse() throws Exception
+	{
+		return NTLM.verifyResponse(credential, null, challenge, response);
+	}
+
+	@Benchmark
+	public byte[] ntlmHash() throws Exception
+	{
+		return NTLM.ntlmHash(PASSWORD);
+	}
+
+	private static byte[] createNegotiate()
+	{
+		final byte[] message = new byte[32];
+
+		System.arraycopy("NTLMSSP\0".getBytes(StandardCharsets.US_ASCII), 0, message, 0, 8);
+		putInt(message, 8, 1);
+		putInt(message, 12, NTLMMessage.FLAG_NEGOTIATE_UNICODE | NTLMMessage.FLAG_NEGOTIATE_NTLM |
+				NTLMMessage.FLAG_REQUEST_TARGET | NTLMMessage.FLAG_NEGOTIATE_EXTENDED_SESSIONSECURITY);
+
+		return message;
+	}
+
+	/* A client's NTLMv2 type 3 message, as git (via curl) would send */
+	private static byte[] createAuthenticate(NTLMMessage.Type2Message challenge) throws Exception
+	{
+		final byte[] targetInfo = challenge.getTargetInformation();
+		final byte[] clientNonce = new byte[8];
+
+		ThreadLocalRandom.current().nextBytes(clientNonce);
+
+		/* The blob: signature, reserved, timestamp, client nonce, reserved, target info, reserved */
+		final byte[] blob = new byte[28 + targetInfo.length + 4];
+
+		blob[0] = 1;
+		blob[1] = 1;
+		putLong(blob, 8, (System.currentTimeMillis() + 11644473600000L) * 10000L);
+		System.arraycopy(clientNonce, 0, blob, 16, 8);
+		System.arraycopy(targetInfo, 0, blob, 28, targetInfo.length);
+
+		final Mac hmac = Mac.getInstance("HmacMD5");
+		hmac.init(new SecretKeySpec(NTLM.ntlm2Hash(USERNAME, NTLM.ntlmHash(PASSWORD), DOMAIN), "HmacMD5"));
+		hmac.update(challenge.getChallenge());
+
+		final byte[] ntlmResponse = new byte[16 + blob.length];
+		System.arraycopy(hmac.doFinal(blob), 0, ntlmResponse, 0, 16);
+		System.arraycopy(blob, 0, ntlmResponse, 16, blob.length);
+
+		final byte[] lmResponse = new byte[24];
+		final byte[] domain = DOMAIN.getBytes(StandardCharsets.UTF_16LE);
+		final byte[] username = USERNAME.getBytes(StandardCharsets.UTF_16LE);
+		final byte[] hostname = "WORKSTATION".getBytes(StandardCharsets.UTF_16LE);
+
+		final byte[][] fields = new byte[][] { lmResponse, ntlmResponse, domain, username, hostname, new byte[0] };
+		int length = 64;
+
+		for (byte[] field : fields)
+		{
+			length += field.length;
+		}
+
+		final byte[] message = new byte[length];
+
+		System.arraycopy("NTLMSSP\0".getBytes(StandardCharsets.US_ASCII), 0, message, 0, 8);
+		putInt(message, 8, 3);
+
+		int offset = 64;
+
+		for (int i = 0; i < fields.length; i++)
+		{
+			putShort(message, 12 + i * 8, fields[i].length);
+			putShort(message, 14 + i * 8, fields[i].length);
+			putInt(message, 16 + i * 8, offset);
+
+			System.arraycopy(fields[i], 0, message, offset, fields[i].length);
+			offset += fields[i].length;
+		}
+
+		putInt(message, 60, challenge.getFlags());
+
+		return message;
+	}
+
+	private static void putShort(byte[] buf, int pos, int value)
+	{
+		buf[pos] = (byte) value;
+		buf[pos + 1] = (byte) (value >> 8);
+	}
+
+	private static void putInt(byte[] buf, int pos, int value)
+	{
+		putShort(buf, pos, value);
+		putShort(buf, pos + 2, value >> 16);
+	}
+
+	private static void putLong(byte[] buf, int pos, long value)
+	{
+		putInt(buf, pos, (int) value);
+		putInt(buf, pos + 4, (int) (value >> 32));
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.edwardthomson.poxygit.logger.LogLevel;
+import com.edwardthomson.poxygit.logger.Logger;
+
+/**
+ * Reading a request line and headers, as a git client sends them for a
+ * fetch, and parsing a single header line.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestParseBenchmark
+{
+	static final String REQUEST_LINE = "POST /ntlm/src.git/git-upload-pack HTTP/1.1";
+
+	static final String[] HEADER_LINES = new String[] {
+		"Host: localhost:8080",
+		"Authorization: NTLM TlRMTVNTUAADAAAAGAAYAEgAAAAYABgAYAAAAAAAAAB4AAAACAAIAHgAAAAIAAgAgAAAAAAAAAAAAAAABYKIogUBKAoAAAAP",
+		"User-Agent: git/2.43.0",
+		"Accept-Encoding: deflate, gzip, br, zstd",
+		"Content-Type: application/x-git-upload-pack-request",
+		"Accept: application/x-git-upload-pack-result",
+		"Git-Protocol: version=2",
+		"Cookie: poxygit-ntlm=0123456789abcdef0123456789abcdef",
+		"Content-Length: 175",
+	};
+
+	private ByteArrayInputStream request;
+
+	@Setup
+	public void setup()
+	{
+		// As the server runs by default
+		Logger.setLevel(LogLevel.INFO);
+
+		final StringBuilder raw = new StringBuilder(REQUEST_LINE).append("\r\n");
+
+		for (String line : HEADER_LINES)
+		{
+			raw.append(line).append("\r\n");
+		}
+
+		raw.append("\r\n");
+
+		request = new ByteArrayInputStream(UTF8Utils.encode(raw.toString()));
+	}
+
+	@Benchmark
+	public String readLine() throws Exception
+	{
+		request.reset();
+		return IOUtils.readLine(request);
+	}
+
+	@Benchmark
+	public List<Header> readHeaders() throws Exception
+	{
+		request.reset();
+		IOUtils.readLine(request);
+		return IOUtils.readHeaders(request);
+	}
+
+	@Benchmark
+	public Header parseHeader() throws Exception
+	{
+		return new Header(HEADER_LINES[4]);
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.edwardthomson.poxygit.logger.LogLevel;
+import com.edwardthomson.poxygit.logger.Logger;
+
+/**
+ * Writing the status line and headers of a ref advertisement response
+ * (including setting up the response's stream stack).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseBenchmark
+{
+	private static final Header[] HEADERS = new Header[] {
+		new Header("Expires", "Fri, 01 Jan 1980 00:00:00 GMT"),
+		new Header("Pragma", "no-cache"),
+		new Header("Cache-Control", "no-cache, max-age=0, must-revalidate"),
+		new Header("Transfer-Encoding", "chunked"),
+		new Header("Content-Type", "application/x-git-upload-pack-advertisement"),
+	};
+
+	private ByteArrayOutputStream out;
+
+	@Setup
+	public void setup()
+	{
+		// As the server runs by default
+		Logger.setLevel(LogLevel.INFO);
+
+		out = new ByteArrayOutputStream(1024);
+	}
+
+	@Benchmark
+	public int writeHeaders() throws Exception
+	{
+		out.reset();
+
+		final Response response = new Response(out, "HTTP/1.1");
+
+		response.writeStatus(Status.OK, "OK");
+
+		for (Header h : HEADERS)
+		{
+			response.writeHeader(h);
+		}
+
+		response.endHeaders();
+		response.flush();
+
+		return out.size();
+	}
+}
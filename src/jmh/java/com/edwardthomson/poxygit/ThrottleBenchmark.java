@@ -0,0 +1,62 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The accuracy of {@link ThrottledOutputStream}: each operation writes the
+ * number of bytes that should take {@value #EXPECTED_MILLISECONDS} ms at
+ * <code>bitsPerSecond</code>, so any difference from that in the score is
+ * throttling error.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ThrottleBenchmark
+{
+	public static final int EXPECTED_MILLISECONDS = 320;
+
+	/* The slow (byte at a time) path, the speed-9600 scenario, and a fast link */
+	@Param({ "300", "9600", "1000000" })
+	public int bitsPerSecond;
+
+	private byte[] data;
+
+	@Setup
+	public void setup()
+	{
+		data = new byte[(int) ((long) bitsPerSecond * EXPECTED_MILLISECONDS / 8 / 1000)];
+	}
+
+	@Benchmark
+	public long write() throws Exception
+	{
+		final ThrottledOutputStream stream = new ThrottledOutputStream(new NullOutputStream(), bitsPerSecond);
+
+		stream.write(data);
+		return stream.getStalledMilliseconds();
+	}
+}
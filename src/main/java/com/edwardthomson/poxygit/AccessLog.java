@@ -0,0 +1,167 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.edwardthomson.poxygit.logger.LogLevel;
+import com.edwardthomson.poxygit.logger.Logger;
+
+/**
+ * Writes an {@link AccessLogEntry} per request as JSON lines. Entries are
+ * queued by the connection and serialized and written on a separate thread, so
+ * the request path only pays for the queue. If the writer falls behind, entries
+ * are dropped (and counted) rather than slowing requests down.
+ */
+public class AccessLog implements Closeable
+{
+	private final static Logger logger = Logger.getLogger(AccessLog.class);
+
+	private static final int CAPACITY = 8192;
+
+	/* Marks the end of the queue when closing */
+	private static final AccessLogEntry END = new AccessLogEntry();
+
+	private final String path;
+	private final Writer writer;
+	private final BlockingQueue<AccessLogEntry> queue = new ArrayBlockingQueue<AccessLogEntry>(CAPACITY);
+	private final AtomicLong dropped = new AtomicLong();
+	private final Thread thread;
+
+	/**
+	 * @param path the file to append to, or <code>-</code> for standard output
+	 */
+	public AccessLog(String path) throws IOException
+	{
+		final OutputStream stream = path.equals("-") ? System.out : new FileOutputStream(path, true);
+
+		this.path = path;
+		this.writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+
+		this.thread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				drain();
+			}
+		}, "AccessLog");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	public void write(AccessLogEntry entry)
+	{
+
+		if (!queue.offer(entry))
+		{
+			dropped.incrementAndGet();
+		}
+	}
+
+	public long getDropped()
+	{
+		return dropped.get();
+	}
+
+	/**
+	 * Writes any queued entries and closes the log.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+
+		try
+		{
+			queue.put(END);
+			thread.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void drain()
+	{
+		final List<AccessLogEntry> batch = new ArrayList<AccessLogEntry>();
+		final StringBuilder line = new StringBuilder(512);
+		boolean closing = false;
+
+		while (!closing)
+		{
+
+			try
+			{
+				batch.add(queue.take());
+			}
+			catch (InterruptedException e)
+			{
+				continue;
+			}
+
+			queue.drainTo(batch);
+
+			try
+			{
+
+				for (AccessLogEntry entry : batch)
+				{
+
+					if (entry == END)
+					{
+						closing = true;
+						break;
+					}
+
+					line.setLength(0);
+					entry.toJSON(line);
+					line.append('\n');
+
+					writer.append(line);
+				}
+
+				// Only flush once the queue is empty, so a burst is one write
+				writer.flush();
+			}
+			catch (IOException e)
+			{
+				logger.write(LogLevel.WARNING, "Could not write access log " + path, e);
+			}
+
+			batch.clear();
+		}
+
+		try
+		{
+
+			if (!path.equals("-"))
+			{
+				writer.close();
+			}
+		}
+		catch (IOException e)
+		{
+			logger.write(LogLevel.DEBUG, "Could not close access log", e);
+		}
+	}
+}
@@ -0,0 +1,313 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit;
+
+import java.net.Socket;
+import java.time.Instant;
+
+/**
+ * What the server did for one request, and how long each phase took. Filled in
+ * as the request is processed and written to the {@link AccessLog} when the
+ * response is complete.
+ * <p>
+ * Times are measured from the moment the request line was read, so they don't
+ * include the time a kept-alive connection sat idle.
+ */
+public class AccessLogEntry
+{
+	public enum Authentication
+	{
+		/* Not an authenticated scenario */
+		None("none"),
+
+		/* Authenticated earlier on this connection (NTLM) */
+		Session("session"),
+
+		Accepted("accepted"),
+
+		/* No credentials (or the first leg of a handshake); sent a challenge */
+		Challenged("challenged"),
+
+		/* Credentials were given but did not verify */
+		Rejected("rejected");
+
+		private final String name;
+
+		private Authentication(String name)
+		{
+			this.name = name;
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+	}
+
+	public static final int NO_EXIT_CODE = Integer.MIN_VALUE;
+
+	private long timestamp;
+	private long startNanos;
+	private long headersNanos;
+	private long queueNanos = -1;
+	private long authenticationNanos = -1;
+	private long gitSpawnNanos = -1;
+	private long gitFirstByteNanos;
+	private long firstByteNanos;
+	private long endNanos;
+
+	private String client;
+	private String method;
+	private String uri;
+	private RequestInfo requestInfo;
+	private Authentication authentication = Authentication.None;
+
+	private int status;
+	private long requestBytes;
+	private long responseBytes;
+	private int gitExitCode = NO_EXIT_CODE;
+
+	/**
+	 * Called when the request line has been read.
+	 */
+	public void start()
+	{
+		timestamp = System.currentTimeMillis();
+		startNanos = System.nanoTime();
+	}
+
+	public boolean isStarted()
+	{
+		return startNanos != 0;
+	}
+
+	public void headersRead()
+	{
+		headersNanos = System.nanoTime();
+	}
+
+	public void setRequestInfo(RequestInfo requestInfo)
+	{
+		this.requestInfo = requestInfo;
+	}
+
+	public RequestInfo getRequestInfo()
+	{
+		return requestInfo;
+	}
+
+	public void setAuthentication(Authentication authentication)
+	{
+		this.authentication = authentication;
+	}
+
+	public Authentication getAuthentication()
+	{
+		return authentication;
+	}
+
+	/**
+	 * Records how long the connection waited for a thread before this (its first)
+	 * request.
+	 */
+	public void setQueueNanos(long queueNanos)
+	{
+		this.queueNanos = queueNanos;
+	}
+
+	public void setAuthenticationNanos(long authenticationNanos)
+	{
+		this.authenticationNanos = authenticationNanos;
+	}
+
+	/**
+	 * Called when git's first output arrives, if the handler observes it.
+	 */
+	public void gitFirstByte()
+	{
+		gitFirstByteNanos = System.nanoTime();
+	}
+
+	public void gitSpawned(long spawnNanos)
+	{
+		this.gitSpawnNanos = spawnNanos;
+	}
+
+	public void gitExited(int exitCode)
+	{
+		this.gitExitCode = exitCode;
+	}
+
+	public int getGitExitCode()
+	{
+		return gitExitCode;
+	}
+
+	/**
+	 * Records the outcome once the response has been written.
+	 */
+	public void finish(Socket client, Request request, Response response)
+	{
+		this.endNanos = System.nanoTime();
+		this.client = client.getInetAddress().getHostAddress();
+		this.method = request.getMethod();
+		this.uri = request.getURI();
+		this.status = response.getStatus();
+		this.requestBytes = request.getBodyLength();
+		this.responseBytes = response.getActualResponseBodyLength();
+		this.firstByteNanos = response.getFirstByteNanos();
+	}
+
+	public int getStatus()
+	{
+		return status;
+	}
+
+	public long getRequestBytes()
+	{
+		return requestBytes;
+	}
+
+	public long getResponseBytes()
+	{
+		return responseBytes;
+	}
+
+	public long getTotalNanos()
+	{
+		return endNanos - startNanos;
+	}
+
+	/**
+	 * @return the phases measured so far as a <code>Server-Timing</code> header
+	 *         value (durations in milliseconds), or <code>null</code> if none have
+	 *         been
+	 */
+	public String getServerTiming()
+	{
+		final StringBuilder timing = new StringBuilder();
+
+		appendServerTiming(timing, "queue", queueNanos);
+		appendServerTiming(timing, "auth", authenticationNanos);
+		appendServerTiming(timing, "spawn", gitSpawnNanos);
+		appendServerTiming(timing, "first-byte", gitFirstByteNanos != 0 ? gitFirstByteNanos - startNanos : -1);
+
+		return timing.length() > 0 ? timing.toString() : null;
+	}
+
+	private static void appendServerTiming(StringBuilder timing, String name, long nanos)
+	{
+
+		if (nanos < 0)
+		{
+			return;
+		}
+
+		if (timing.length() > 0)
+		{
+			timing.append(", ");
+		}
+
+		timing.append(name).append(";dur=");
+		appendMilliseconds(timing, nanos);
+	}
+
+	/**
+	 * Appends this entry as a single line of JSON.
+	 */
+	public void toJSON(StringBuilder json)
+	{
+		json.append("{\"time\":\"").append(Instant.ofEpochMilli(timestamp)).append('"');
+		appendString(json, "client", client);
+		appendString(json, "method", method);
+		appendString(json, "uri", uri);
+
+		if (requestInfo != null)
+		{
+			appendString(json, "scenario", requestInfo.getRequestType().getName());
+			appendString(json, "git", requestInfo.getGitRequestType().name());
+			appendString(json, "service", requestInfo.getService());
+			appendString(json, "repository", requestInfo.getRepositoryPath());
+		}
+
+		json.append(",\"status\":").append(status);
+		json.append(",\"request_bytes\":").append(requestBytes);
+		json.append(",\"response_bytes\":").append(responseBytes);
+		appendString(json, "auth", authentication.getName());
+
+		appendMilliseconds(json, "queue_ms", queueNanos);
+		appendMilliseconds(json, "parse_ms", headersNanos != 0 ? headersNanos - startNanos : -1);
+		appendMilliseconds(json, "auth_ms", authenticationNanos);
+		appendMilliseconds(json, "spawn_ms", gitSpawnNanos);
+		appendMilliseconds(json, "first_byte_ms", firstByteNanos != 0 ? firstByteNanos - startNanos : -1);
+		appendMilliseconds(json, "total_ms", endNanos - startNanos);
+
+		if (gitExitCode != NO_EXIT_CODE)
+		{
+			json.append(",\"git_exit\":").append(gitExitCode);
+		}
+
+		json.append('}');
+	}
+
+	private static void appendMilliseconds(StringBuilder json, String name, long nanos)
+	{
+
+		if (nanos < 0)
+		{
+			return;
+		}
+
+		json.append(",\"").append(name).append("\":");
+		appendMilliseconds(json, nanos);
+	}
+
+	/* Milliseconds to three decimal places */
+	private static void appendMilliseconds(StringBuilder out, long nanos)
+	{
+		final long micros = nanos / 1000;
+
+		out.append(micros / 1000).append('.');
+		out.append((char) ('0' + (micros / 100) % 10));
+		out.append((char) ('0' + (micros / 10) % 10));
+		out.append((char) ('0' + micros % 10));
+	}
+
+	private static void appendString(StringBuilder json, String name, String value)
+	{
+
+		if (value == null)
+		{
+			return;
+		}
+
+		json.append(",\"").append(name).append("\":\"");
+
+		for (int i = 0; i < value.length(); i++)
+		{
+			final char c = value.charAt(i);
+
+			if (c == '"' || c == '\\')
+			{
+				json.append('\\').append(c);
+			}
+			else if (c < 0x20)
+			{
+				json.append(String.format("\\u%04x", (int) c));
+			}
+			else
+			{
+				json.append(c);
+			}
+		}
+
+		json.append('"');
+	}
+}
@@ -11,27 +11,45 @@ package com.edwardthomson.poxygit;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.nio.charset.Charset;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
-import java.text.MessageFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Deque;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
 
 import com.edwardthomson.poxygit.RequestInfo.GitRequestType;
 import com.edwardthomson.poxygit.RequestInfo.RequestType;
+import com.edwardthomson.poxygit.handlers.MetricsHandler;
 import com.edwardthomson.poxygit.handlers.PackRedirectHandler;
 import com.edwardthomson.poxygit.handlers.ReceivePackHandler;
 import com.edwardthomson.poxygit.handlers.ReferencesHandler;
 import com.edwardthomson.poxygit.handlers.ReferencesProxyHandler;
 import com.edwardthomson.poxygit.handlers.ReferencesRedirectHandler;
 import com.edwardthomson.poxygit.handlers.RequestHandler;
+import com.edwardthomson.poxygit.handlers.ShutdownHandler;
 import com.edwardthomson.poxygit.handlers.UploadPackHandler;
+import com.edwardthomson.poxygit.http2.HTTP2Session;
+import com.edwardthomson.poxygit.http2.StreamSocket;
+import com.edwardthomson.poxygit.jfr.AuthenticationEvent;
+import com.edwardthomson.poxygit.jfr.JFR;
+import com.edwardthomson.poxygit.jfr.RequestEvent;
+import com.edwardthomson.poxygit.jfr.RouteEvent;
+import com.edwardthomson.poxygit.jfr.TLSHandshakeEvent;
 import com.edwardthomson.poxygit.logger.LogLevel;
 import com.edwardthomson.poxygit.logger.Logger;
 
@@ -42,15 +60,30 @@ import com.edwardthomson.poxygit.logger.Logger;
  * <p>
  * This is a {@link Runnable} and is always run in its own thread. It runs until
  * the client-to-proxy socket closes, or until the proxy-to-server socket
- * closes, or until some fatal error causes both sides to close.
+ * closes, or until some fatal error causes both sides to close. A connection
+ * may also suspend itself (to delay a response) by rescheduling itself on the
+ * executor; it then resumes where it left off when it is next run.
  */
 public class Connection implements Runnable
 {
 	private final static Logger logger = Logger.getLogger(Connection.class);
 
+	/* How many pipelined requests to read ahead of the one being handled */
+	private static final int MAX_PIPELINE_DEPTH = 16;
+
+	/* How long to discard unanswered requests for before closing */
+	private static final int LINGER_MILLISECONDS = 2000;
+
 	private final Socket client;
+	private final SocketChannel channel;
+
+	/* Whether this serves one stream of an HTTP/2 connection, rather than a connection */
+	private final boolean stream;
 	private final Options options;
-	private final ExecutorService executorService;
+	private final ScheduledExecutorService executorService;
+
+	/* Where the TLS handshake runs, if not on the executor; cleared once it's done */
+	private ExecutorService handshakeExecutorService;
 
 	/*
 	 * Session auth mechanisms like NTLM will authenticate the entire keep-alive
@@ -59,6 +92,62 @@ public class Connection implements Runnable
 	private boolean authenticated = false;
 	private NTLMMessage.Type2Message ntlmChallenge;
 
+	/*
+	 * Keep-alive state, kept across runs so that the connection can be suspended
+	 * (for a response delay) and resumed on another thread.
+	 */
+	private long requestCount = 0;
+	private boolean connectionHeaderRead = false;
+	private boolean keepAlive = true;
+
+	/* Whether this connection is counted in the kept-alive metric */
+	private boolean keptAlive = false;
+
+	/*
+	 * When the connection was accepted, when it was queued for a thread (at
+	 * accept, or once its client started the TLS handshake) and how long it then
+	 * waited for one
+	 */
+	private final long createdNanos = System.nanoTime();
+	private long queuedNanos = createdNanos;
+	private long queueNanos = -1;
+
+	private Request delayedRequest;
+	private Response delayedResponse;
+
+	/* The client's input, with deadlines for slow requests */
+	private DeadlineInputStream input;
+
+	/*
+	 * Pipelined requests whose heads have been read ahead, the writer that sends
+	 * their responses in order, and whether the client sent nothing usable after
+	 * them.
+	 */
+	private final Deque<Request> pipeline = new ArrayDeque<Request>();
+	private PipelineWriter pipelineWriter;
+	private boolean readAheadEnded = false;
+	private boolean requestsUnanswered = false;
+
+	/* Whether the connection is waiting for a request, and so can be closed when draining */
+	private final ConnectionTracker connections;
+	private boolean idle = true;
+
+	/* When the TLS handshake started (it may be parked while the client responds) */
+	private long handshakeStartNanos = 0;
+	private long handshakeStartMillis = 0;
+	private TLSHandshakeEvent handshakeEvent;
+
+	/* Set once the connection speaks HTTP/2 */
+	private HTTP2Session http2;
+
+	/*
+	 * Whether the connection is parked on the keep-alive selector, and whether
+	 * it has been resumed from there (perhaps because it was idle too long).
+	 */
+	private boolean parked = false;
+	private boolean unparked = false;
+	private boolean idleTimedOut = false;
+
 	private enum RequestStatus
 	{
 		Stop,
@@ -95,11 +184,20 @@ public class Connection implements Runnable
 		}
 	}
 
-	public Connection(final Socket client, final Options options, final ExecutorService executorService)
+	/**
+	 * @param channel the channel of the accepted socket (which the client socket
+	 *                may be layered over), or <code>null</code> if it has none,
+	 *                in which case it waits for requests on a thread
+	 */
+	public Connection(final Socket client, final SocketChannel channel, final Options options,
+			final ScheduledExecutorService executorService, final ConnectionTracker connections)
 	{
 		this.client = client;
+		this.channel = channel;
+		this.stream = client instanceof StreamSocket;
 		this.options = options;
 		this.executorService = executorService;
+		this.connections = connections;
 	}
 
 	public Options getOptions()
@@ -107,7 +205,7 @@ public class Connection implements Runnable
 		return options;
 	}
 
-	public ExecutorService getExecutorService()
+	public ScheduledExecutorService getExecutorService()
 	{
 		return executorService;
 	}
@@ -117,98 +215,290 @@ public class Connection implements Runnable
 		return client;
 	}
 
+	public ConnectionTracker getConnections()
+	{
+		return connections;
+	}
+
+	/**
+	 * Runs the connection's TLS handshake on the given executor (rather than on
+	 * the connection's executor), which it leaves once the handshake is done.
+	 */
+	void setHandshakeExecutorService(ExecutorService handshakeExecutorService)
+	{
+		this.handshakeExecutorService = handshakeExecutorService;
+	}
+
+	/**
+	 * Parks a new connection on the keep-alive selector until its client starts
+	 * the TLS handshake, so that it only takes a handshake thread once there is
+	 * a handshake to run, and clients that connect and send nothing can't hold
+	 * them all.
+	 *
+	 * @return <code>false</code> if the connection could not be parked and should
+	 *         be started now
+	 */
+	boolean parkUntilHandshake()
+	{
+		return park(getHandshakeRemainingMilliseconds());
+	}
+
 	@Override
 	public void run()
 	{
-		long requestCount = 0;
-		boolean connectionHeaderRead = false;
-		boolean keepAlive = true;
+		boolean suspended = false;
 
 		String oldName = Thread.currentThread().getName();
 		Thread.currentThread().setName("Connection-" + client.getRemoteSocketAddress());
 
 		try
 		{
-			initializeclient();
+			if (input == null)
+			{
 
-			final InputStream in = client.getInputStream();
-			final OutputStream out = client.getOutputStream();
+				if (queueNanos < 0)
+				{
+					queueNanos = System.nanoTime() - queuedNanos;
+					initializeclient();
+				}
+
+				if (!handshake())
+				{
+					suspended = true;
+					return;
+				}
+
+				input = new DeadlineInputStream(client, options.getMetrics(),
+						options.getSocketReadTimeoutSeconds() * 1000);
 
-			while (keepAlive)
+				// Only a completed handshake moves to the executor, to be served
+				if (handshakeExecutorService != null)
+				{
+					handshakeExecutorService = null;
+
+					try
+					{
+						executorService.execute(this);
+					}
+					catch (RejectedExecutionException e)
+					{
+						// The server is closing
+						return;
+					}
+
+					suspended = true;
+					return;
+				}
+			}
+
+			if (requestCount == 0 && http2 == null && isHTTP2Negotiated())
 			{
-				// Allocate a response with a default version so we can respond
-				// to request protocol errors
+				serveHTTP2(false);
+				return;
+			}
 
-				final Response response = new Response(out, Constants.VERSION_10);
+			final DeadlineInputStream in = input;
+			final OutputStream out = client.getOutputStream();
 
-				// Read the request
+			// A resumed connection answers its delayed request, even if it will then close
+			while (keepAlive || delayedRequest != null || !pipeline.isEmpty())
+			{
+				Request request = delayedRequest;
+				Response response = delayedResponse;
 
-				final Request request = new Request(in);
+				delayedRequest = null;
+				delayedResponse = null;
 
-				try
+				if (request == null && !pipeline.isEmpty())
 				{
+					// A pipelined request, whose response follows the previous ones
+					request = pipeline.poll();
+					response = createResponse(request, pipelineWriter);
 
-					if (!request.read())
+					if (delayResponse(request, response))
 					{
+						suspended = true;
+						return;
+					}
+				}
+				else if (request == null)
+				{
 
-						/*
-						 * Socket closed before reading any part of request, which is a valid way to
-						 * close a kept-alive connection that has already done at least one request, but
-						 * is invalid otherwise.
-						 */
-						if (!keepAlive || requestCount == 0)
+					// Send any pipelined responses before writing directly again
+					if (pipelineWriter != null)
+					{
+						pipelineWriter.drain();
+						pipelineWriter = null;
+					}
+
+					if (readAheadEnded)
+					{
+						break;
+					}
+
+					// Allocate a response with a default version so we can respond
+					// to request protocol errors
+
+					response = new Response(out, Constants.VERSION_10);
+					response.setBodyDelays(options.getFirstByteDelayMilliseconds(), options.getChunkDelayMilliseconds());
+
+					// Between requests, wait for the next one without holding a thread
+					if (requestCount > 0)
+					{
+
+						if (idleTimedOut)
 						{
-							logger.write(LogLevel.WARNING,
-									"Connection closed before request could be read on socket " + client);
+							logger.write(LogLevel.DEBUG, "Keep-alive timeout on {}", client);
+							break;
 						}
+
+						if (!unparked && in.available() == 0 && park(options.getKeepAliveTimeoutSeconds() * 1000L))
+						{
+							suspended = true;
+							return;
+						}
+
+						unparked = false;
+					}
+
+					// Read the request, unless the server is draining
+
+					if (!setIdle(true))
+					{
 						break;
 					}
 
-					requestCount++;
+					request = new Request(in);
+
+					try
+					{
+						final boolean read = readHead(request);
 
-					final Header connectionHeader = findHeader(Constants.CONNECTION_HEADER, request.getHeaders());
+						setIdle(false);
 
-					if (connectionHeader != null)
+						if (!read)
+						{
+
+							/*
+							 * Socket closed before reading any part of request, which is a valid way to
+							 * close a kept-alive connection that has already done at least one request, but
+							 * is invalid otherwise.
+							 */
+							if (!keepAlive || requestCount == 0)
+							{
+								logger.write(LogLevel.WARNING,
+										"Connection closed before request could be read on socket " + client);
+							}
+							break;
+						}
+
+						// HTTP/2 with prior knowledge starts with a preface that reads as a request
+						if (request.getVersion().equals(Constants.VERSION_20) && !stream)
+						{
+
+							if (options.isHttp2() && requestCount == 1 && isHTTP2Preface(request))
+							{
+								serveHTTP2(true);
+								break;
+							}
+
+							throw new HTTPException("HTTP/2 requires a connection preface");
+						}
+
+						readAhead(request);
+
+						// Requests were pipelined behind this one, so its response is too
+						if (!pipeline.isEmpty())
+						{
+							pipelineWriter = new PipelineWriter(out, executorService);
+							response = createResponse(request, pipelineWriter);
+						}
+						else if (isLastRequest())
+						{
+							response.announceClose();
+						}
+					}
+					catch (HTTPException e)
 					{
-						keepAlive = connectionHeader.getValue().equalsIgnoreCase(Constants.CONNECTION_KEEP_ALIVE);
-						connectionHeaderRead = true;
+						// Protocol error or similar
+						response.writeError(Status.BAD_REQUEST, e);
+						requestComplete(request, response);
+						break;
 					}
-					else if (!connectionHeaderRead)
+					catch (RequestTimeoutException e)
 					{
-						keepAlive = request.getVersion().equals(Constants.VERSION_11);
+						// Too slow sending the request; don't respond if it sent nothing
+						logger.write(LogLevel.DEBUG, "{} on {}", e.getMessage(), client);
+
+						if (request.getAccessLogEntry().isStarted())
+						{
+							response.writeError(Status.REQUEST_TIMEOUT, e.getMessage());
+							requestComplete(request, response);
+						}
+
+						break;
+					}
+					catch (SocketException e)
+					{
+						// Socket problem so don't try to write an error response
+						logger.write(LogLevel.DEBUG, "SocketException", e);
+						break;
+					}
+					catch (IOException e)
+					{
+						// A non-protocol error, but still don't try to write
+						// an error response
+						logger.write(LogLevel.DEBUG, "Non protocol exception doing socket IO", e);
+						break;
+					}
+
+					// Upgrade the response to use the version the client gave us
+					response.setVersion(request.getVersion());
+
+					if (delayResponse(request, response))
+					{
+						suspended = true;
+						return;
 					}
 				}
-				catch (HTTPException e)
-				{
-					// Protocol error or similar
-					response.writeError(Status.BAD_REQUEST, e);
-					break;
-				}
-				catch (SocketException e)
+
+				final RouteEvent routeEvent = JFR.AVAILABLE ? new RouteEvent() : null;
+
+				if (routeEvent != null)
 				{
-					// Socket problem so don't try to write an error response
-					logger.write(LogLevel.DEBUG, "SocketException", e);
-					break;
+					routeEvent.begin();
 				}
-				catch (IOException e)
+
+				final RequestRoute routing = route(request, response);
+
+				if (routeEvent != null && routeEvent.shouldCommit())
 				{
-					// A non-protocol error, but still don't try to write
-					// an error response
-					logger.write(LogLevel.DEBUG, "Non protocol exception doing socket IO", e);
-					break;
-				}
+					final RequestInfo requestInfo = request.getAccessLogEntry().getRequestInfo();
 
-				// Upgrade the response to use the version the client gave us
-				response.setVersion(request.getVersion());
+					if (requestInfo != null)
+					{
+						routeEvent.scenario = requestInfo.getRequestType().getName();
+						routeEvent.gitRequestType = requestInfo.getGitRequestType().name();
+						routeEvent.repository = requestInfo.getRepositoryPath();
+					}
 
-				final RequestRoute routing = route(request, response);
+					routeEvent.commit();
+				}
 
 				if (routing.getStatus() == RequestStatus.Stop)
 				{
+					requestComplete(request, response);
 					break;
 				}
 				else if (routing.getStatus() == RequestStatus.Retry)
 				{
+					requestComplete(request, response);
+
+					if (response.shouldClose())
+					{
+						break;
+					}
+
 					continue;
 				}
 
@@ -224,12 +514,23 @@ public class Connection implements Runnable
 				 * already been sent by the handler. Handlers mostly handle their own errors.
 				 */
 
-				if (!handler.handle(request, response))
+				final boolean handled;
+
+				try
+				{
+					handled = handler.handle(request, response);
+				}
+				finally
+				{
+					handler.releaseGit();
+				}
+
+				if (!handled)
 				{
 					/*
 					 * The handler was unsuccessful and we should close this connection.
 					 */
-					logger.write(LogLevel.DEBUG, "Handler " + handler + " was unsuccessful, closing connection");
+					logger.write(LogLevel.DEBUG, "Handler {} was unsuccessful, closing connection", handler);
 
 					// Best effort flush
 					try
@@ -241,57 +542,429 @@ public class Connection implements Runnable
 						// Ignore
 					}
 
-					break;
-				}
+					requestComplete(request, response);
+					break;
+				}
+
+				// Ensure everything was written
+				response.flush();
+				requestComplete(request, response);
+
+				// A handler may have caught a body timeout, but the connection can't be reused
+				if (in.isExpired())
+				{
+					break;
+				}
+
+				/*
+				 * Make sure we wrote the same number of bytes the header declared. If we wrote
+				 * too few the client will may wait a long time to get more; if we wrote too
+				 * many the client may close the connection on us.
+				 *
+				 * Skip this for a HEAD request, because we write no body in that case.
+				 */
+				if (!request.getMethod().equalsIgnoreCase(Constants.HEAD_METHOD) &&
+						response.getContentLengthHeaderValue() != -1 &&
+						response.getContentLengthHeaderValue() != response.getActualResponseBodyLength())
+				{
+					logger.write(LogLevel.WARNING, "Header Content-Length {} != {} actually written bytes",
+							response.getContentLengthHeaderValue(), response.getActualResponseBodyLength());
+
+					break;
+				}
+
+				if (response.shouldClose() ||
+					HeaderUtils.isConnectionClose(response.getHeaders()))
+				{
+					// Pipelined requests are not answered; the client can retry them
+					keepAlive = false;
+					requestsUnanswered |= !pipeline.isEmpty();
+					pipeline.clear();
+				}
+			}
+		}
+		catch (SocketTimeoutException e)
+		{
+			logger.write(LogLevel.DEBUG, "{} on {}", e.getMessage(), client);
+		}
+		catch (IOException e)
+		{
+			logger.write(LogLevel.DEBUG, "IOException on socket " + client, e);
+		}
+		catch (Exception e)
+		{
+			logger.write(LogLevel.WARNING, "Unhandled exception on socket " + client, e);
+		}
+		catch (Throwable t)
+		{
+			logger.write(LogLevel.FATAL, "Unhandled throwable on socket " + client, t);
+		}
+		finally
+		{
+			if (!suspended)
+			{
+
+				if (pipelineWriter != null)
+				{
+
+					try
+					{
+						pipelineWriter.drain();
+					}
+					catch (IOException e)
+					{
+						// The client has gone
+					}
+				}
+
+				linger();
+				IOUtils.close(client);
+
+				if (!stream)
+				{
+					options.getMetrics().connectionClosed(keptAlive);
+				}
+
+				connections.remove(this);
+			}
+
+			Thread.currentThread().setName(oldName);
+		}
+	}
+
+	/**
+	 * Reads a request head and updates the keep-alive state from it.
+	 *
+	 * @return <code>false</code> if the stream ended before a request
+	 */
+	private boolean readHead(Request request) throws IOException
+	{
+		// The first request's deadline includes the wait for it to start
+		input.startHead(options.getRequestHeaderTimeoutSeconds() * 1000, requestCount == 0);
+
+		if (!request.read())
+		{
+			return false;
+		}
+
+		input.endHead();
+		requestCount++;
+
+		if (requestCount == 1)
+		{
+			request.getAccessLogEntry().setQueueNanos(queueNanos);
+		}
+
+		final Header connectionHeader = findHeader(Constants.CONNECTION_HEADER, request.getHeaders());
+
+		if (connectionHeader != null)
+		{
+			keepAlive = connectionHeader.getValue().equalsIgnoreCase(Constants.CONNECTION_KEEP_ALIVE);
+			connectionHeaderRead = true;
+		}
+		else if (!connectionHeaderRead)
+		{
+			keepAlive = request.getVersion().equals(Constants.VERSION_11);
+		}
+
+		if (hasBody(request))
+		{
+			input.startBody(options.getRequestBodyTimeoutSeconds() * 1000, options.getMinRequestBodyRate());
+		}
+
+		return true;
+	}
+
+	private static boolean hasBody(Request request)
+	{
+		return HeaderUtils.getContentLength(request.getHeaders()) > 0 || HeaderUtils.isChunked(request.getHeaders());
+	}
+
+	/**
+	 * Reads the heads of requests that the client has already sent behind this
+	 * one, so that they can be routed while the responses before them are still
+	 * being sent. Stops at a request with a body, since its body has to be read
+	 * first.
+	 */
+	private void readAhead(Request request)
+	{
+		Request last = request;
+
+		while (keepAlive && !hasBody(last) && !last.getMethod().equalsIgnoreCase(Constants.CONNECT_METHOD) &&
+				pipeline.size() < MAX_PIPELINE_DEPTH &&
+				(options.getMaxKeepAliveRequests() <= 0 || requestCount < options.getMaxKeepAliveRequests()))
+		{
+
+			try
+			{
+
+				if (input.available() == 0)
+				{
+					return;
+				}
+
+				final Request next = new Request(input);
+
+				if (!readHead(next))
+				{
+					readAheadEnded = true;
+					return;
+				}
+
+				pipeline.add(next);
+				options.getMetrics().requestPipelined();
+				last = next;
+			}
+			catch (HTTPException | IOException e)
+			{
+				// Answer the requests before this one, then close
+				logger.write(LogLevel.DEBUG, "Could not read pipelined request on " + client, e);
+				readAheadEnded = true;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Closes the sending side and discards what the client sends, for a while,
+	 * if there are requests that won't be answered. Closing with them unread
+	 * would reset the connection, and the client could lose responses it has
+	 * not read yet.
+	 */
+	private void linger()
+	{
+
+		if (input == null || stream || client instanceof SSLSocket)
+		{
+			return;
+		}
+
+		try
+		{
+
+			if (!requestsUnanswered && input.available() == 0)
+			{
+				return;
+			}
+
+			client.shutdownOutput();
+			client.setSoTimeout(LINGER_MILLISECONDS);
+
+			final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LINGER_MILLISECONDS);
+			final byte[] buffer = new byte[4096];
+
+			while (System.nanoTime() < deadline && client.getInputStream().read(buffer) >= 0)
+			{
+				// Discard
+			}
+		}
+		catch (IOException e)
+		{
+			// The client has gone, or is still sending
+		}
+	}
+
+	/**
+	 * Creates the response to a request whose head has been read.
+	 */
+	private Response createResponse(Request request, OutputStream out)
+	{
+		final Response response = new Response(out, request.getVersion());
+
+		response.setBodyDelays(options.getFirstByteDelayMilliseconds(), options.getChunkDelayMilliseconds());
+
+		if (isLastRequest())
+		{
+			response.announceClose();
+		}
+
+		return response;
+	}
+
+	/**
+	 * @return <code>true</code> if the request being handled is the last one the
+	 *         connection may serve
+	 */
+	private boolean isLastRequest()
+	{
+		final long ordinal = requestCount - pipeline.size();
+
+		return options.getMaxKeepAliveRequests() > 0 && ordinal >= options.getMaxKeepAliveRequests();
+	}
+
+	/**
+	 * @return <code>false</code> if the connection should close rather than wait
+	 *         for a request, because the server is draining
+	 */
+	private synchronized boolean setIdle(boolean idle)
+	{
+
+		if (idle && connections.isDraining())
+		{
+			return false;
+		}
+
+		this.idle = idle;
+		return true;
+	}
+
+	/**
+	 * Closes the connection if it is waiting for a request on a thread. (Parked
+	 * connections are resumed by the server instead, so that they clean up.)
+	 */
+	synchronized void closeIfIdle()
+	{
+
+		// HTTP/2 connections finish the streams they have, then close
+		if (http2 != null)
+		{
+			http2.shutdown();
+		}
+		else if (idle && !parked)
+		{
+			IOUtils.close(client);
+		}
+	}
+
+	/**
+	 * Delays before a new request's status line (read, or taken from the
+	 * pipeline): parks this connection on the scheduler so that it doesn't hold a
+	 * thread while it waits, to resume with this request.
+	 *
+	 * @return <code>true</code> if the connection was suspended
+	 */
+	private boolean delayResponse(Request request, Response response)
+	{
+
+		if (options.getResponseDelayMilliseconds() <= 0)
+		{
+			return false;
+		}
+
+		delayedRequest = request;
+		delayedResponse = response;
+
+		executorService.schedule(this, options.getResponseDelayMilliseconds(), TimeUnit.MILLISECONDS);
+		return true;
+	}
+
+	/**
+	 * Parks the connection on the keep-alive selector until the client sends
+	 * more (its next request, or the next part of the TLS handshake).
+	 *
+	 * @return <code>false</code> if the connection could not be parked and should
+	 *         wait on this thread
+	 */
+	private boolean park(long timeoutMilliseconds)
+	{
+
+		if (channel == null)
+		{
+			return false;
+		}
+
+		synchronized (this)
+		{
+
+			if (connections.isDraining())
+			{
+				return false;
+			}
+
+			idle = true;
+			parked = true;
+		}
+
+		if (!connections.park(this, channel, timeoutMilliseconds))
+		{
+
+			synchronized (this)
+			{
+				parked = false;
+			}
 
-				// Ensure everything was written
-				response.flush();
+			return false;
+		}
 
-				/*
-				 * Make sure we wrote the same number of bytes the header declared. If we wrote
-				 * too few the client will may wait a long time to get more; if we wrote too
-				 * many the client may close the connection on us.
-				 *
-				 * Skip this for a HEAD request, because we write no body in that case.
-				 */
-				if (!request.getMethod().equalsIgnoreCase(Constants.HEAD_METHOD) &&
-						response.getContentLengthHeaderValue() != -1 &&
-						response.getContentLengthHeaderValue() != response.getActualResponseBodyLength())
-				{
-					logger.write(LogLevel.WARNING,
-							MessageFormat.format("Header Content-Length {0} != {1} actually written bytes",
-									response.getContentLengthHeaderValue(), response.getActualResponseBodyLength()));
+		return true;
+	}
 
-					break;
-				}
+	/**
+	 * Resumes a parked connection on the executor.
+	 *
+	 * @param timedOut whether the client sent nothing before the timeout (of
+	 *                 keep-alive, or of the handshake), and the connection
+	 *                 should close
+	 */
+	void unpark(boolean timedOut)
+	{
 
-				if (response.shouldClose() ||
-					HeaderUtils.isConnectionClose(response.getHeaders()))
-				{
-					keepAlive = false;
-				}
-			}
+		synchronized (this)
+		{
+			parked = false;
+			unparked = true;
+			idleTimedOut = timedOut;
+			queuedNanos = System.nanoTime();
 		}
-		catch (SocketTimeoutException e)
+
+		try
 		{
-			logger.write(LogLevel.DEBUG, "Read timeout on " + client);
+			(handshakeExecutorService != null ? handshakeExecutorService : executorService).execute(this);
 		}
-		catch (IOException e)
+		catch (RejectedExecutionException e)
 		{
-			logger.write(LogLevel.DEBUG, "IOException on socket " + client, e);
+			// The server is closing
+			IOUtils.close(client);
+			options.getMetrics().connectionClosed(keptAlive);
+			connections.remove(this);
 		}
-		catch (Exception e)
+	}
+
+	/**
+	 * Records a completed request in the metrics and the access log.
+	 */
+	private void requestComplete(Request request, Response response)
+	{
+		final AccessLog accessLog = options.getAccessLog();
+		final AccessLogEntry entry = request.getAccessLogEntry();
+
+		if (!entry.isStarted())
 		{
-			logger.write(LogLevel.WARNING, "Unhandled exception on socket " + client, e);
+			return;
 		}
-		catch (Throwable t)
+
+		entry.finish(client, request, response);
+		options.getMetrics().requestComplete(entry,
+				request.getThrottleStalledMilliseconds() + response.getThrottleStalledMilliseconds());
+
+		if (accessLog != null)
 		{
-			logger.write(LogLevel.FATAL, "Unhandled throwable on socket " + client, t);
+			accessLog.write(entry);
 		}
-		finally
+
+		final RequestEvent event = request.getRequestEvent();
+
+		if (event != null && event.shouldCommit())
 		{
-			IOUtils.close(client);
-			Thread.currentThread().setName(oldName);
+			event.method = request.getMethod();
+			event.uri = request.getURI();
+			event.status = entry.getStatus();
+			event.requestBytes = entry.getRequestBytes();
+			event.responseBytes = entry.getResponseBytes();
+
+			if (entry.getRequestInfo() != null)
+			{
+				event.scenario = entry.getRequestInfo().getRequestType().getName();
+				event.repository = entry.getRequestInfo().getRepositoryPath();
+			}
+
+			event.commit();
+		}
+
+		if (keepAlive && !keptAlive)
+		{
+			options.getMetrics().connectionKeptAlive();
+			keptAlive = true;
 		}
 	}
 
@@ -305,6 +978,16 @@ public class Connection implements Runnable
 	{
 		RequestInfo requestInfo;
 
+		if (request.getURI().equals(Metrics.PATH))
+		{
+			return new RequestRoute(new MetricsHandler(this));
+		}
+
+		if (options.isAdminShutdown() && request.getURI().equals(ShutdownHandler.PATH))
+		{
+			return new RequestRoute(new ShutdownHandler(this));
+		}
+
 		try
 		{
 			requestInfo = RequestInfo.parseRequest(request);
@@ -315,6 +998,8 @@ public class Connection implements Runnable
 			return new RequestRoute(RequestStatus.Stop);
 		}
 
+		request.getAccessLogEntry().setRequestInfo(requestInfo);
+
 		String repository = requestInfo.getRepositoryPath();
 
 		if (!repositoryPassThrough(requestInfo) &&
@@ -329,7 +1014,26 @@ public class Connection implements Runnable
 		if (requestInfo.getRequestType() == RequestType.Basic || requestInfo.getRequestType() == RequestType.NTLM ||
 				requestInfo.getRequestType() == RequestType.BrokenNTLM)
 		{
-			if (!authenticate(requestInfo, request, response))
+			final AuthenticationEvent authenticationEvent = JFR.AVAILABLE ? new AuthenticationEvent() : null;
+
+			if (authenticationEvent != null)
+			{
+				authenticationEvent.begin();
+			}
+
+			final long authenticationStart = System.nanoTime();
+			final boolean accepted = authenticate(requestInfo, request, response);
+
+			request.getAccessLogEntry().setAuthenticationNanos(System.nanoTime() - authenticationStart);
+
+			if (authenticationEvent != null && authenticationEvent.shouldCommit())
+			{
+				authenticationEvent.scenario = requestInfo.getRequestType().getName();
+				authenticationEvent.outcome = request.getAccessLogEntry().getAuthentication().getName();
+				authenticationEvent.commit();
+			}
+
+			if (!accepted)
 			{
 				return new RequestRoute(RequestStatus.Retry);
 			}
@@ -356,6 +1060,28 @@ public class Connection implements Runnable
 				throw new Exception("unhandled request type speed");
 			}
 		}
+		else if (requestInfo.getRequestType() == RequestType.UploadSpeed9600bps ||
+				 requestInfo.getRequestType() == RequestType.UploadSpeed300bps ||
+				 requestInfo.getRequestType() == RequestType.UploadSpeedZeroPointFivebps ||
+				 requestInfo.getRequestType() == RequestType.UploadSpeedZero)
+		{
+			switch (requestInfo.getRequestType()) {
+			case UploadSpeed9600bps:
+				request.setThrottledSpeed(9600);
+				break;
+			case UploadSpeed300bps:
+				request.setThrottledSpeed(300);
+				break;
+			case UploadSpeedZeroPointFivebps:
+				request.setThrottledSpeed(0.5);
+				break;
+			case UploadSpeedZero:
+				request.setThrottledSpeed(0);
+				break;
+			default:
+				throw new Exception("unhandled request type upload speed");
+			}
+		}
 
 		if (requestInfo.getRequestType() == RequestType.NoKeepAlive)
 		{
@@ -401,16 +1127,20 @@ public class Connection implements Runnable
 	{
 		final Header authentication = findHeader(Constants.AUTHORIZATION_HEADER, request.getHeaders());
 		final List<Header> responseHeaders = response.getHeaders();
+		final NTLMChallengeStore challengeStore = options.getNTLMChallengeStore();
+		final AccessLogEntry entry = request.getAccessLogEntry();
 		String challengeMessage = null;
+		boolean rejected = false;
 
 		if (authentication != null)
 		{
-			logger.write(LogLevel.TRACE, "Received authentication header: " + authentication.getValue());
+			logger.write(LogLevel.TRACE, "Received authentication header: {}", authentication.getValue());
 		}
 
 		if (authenticated)
 		{
 			logger.write(LogLevel.DEBUG, "Connection authentication; continuing");
+			entry.setAuthentication(AccessLogEntry.Authentication.Session);
 			return true;
 		}
 		else if ((requestInfo.getRequestType() == RequestType.NTLM ||
@@ -424,16 +1154,15 @@ public class Connection implements Runnable
 			{
 				ntlmChallenge = NTLM.createChallenge((NTLMMessage.Type1Message) message);
 				challengeMessage = Base64.getEncoder().encodeToString(ntlmChallenge.createMessage());
+
+				storeNTLMChallenge(response);
 			}
-			else if (ntlmChallenge != null && message.getType() == 3)
+			else if ((ntlmChallenge != null || challengeStore != null) && message.getType() == 3)
 			{
-				NTLMMessage.Type3Message responseMessage = (NTLMMessage.Type3Message) message;
-				String username = responseMessage.getUsername();
-				String password = options.getCredentials(username);
-
-				if (password != null && NTLM.verifyResponse(username, null, password, ntlmChallenge, responseMessage))
+				if (verifyNTLMResponse(request, (NTLMMessage.Type3Message) message))
 				{
 					logger.write(LogLevel.DEBUG, "NTLM authentication accepted");
+					entry.setAuthentication(AccessLogEntry.Authentication.Accepted);
 
 					authenticated = (requestInfo.getRequestType() != RequestType.BrokenNTLM);
 					return true;
@@ -441,29 +1170,32 @@ public class Connection implements Runnable
 
 				logger.write(LogLevel.DEBUG, "Authentication failed in NTLM response");
 				ntlmChallenge = null;
+				rejected = true;
 			}
 			else
 			{
 				logger.write(LogLevel.DEBUG, "Invalid NTLM message received");
 				ntlmChallenge = null;
+				rejected = true;
 			}
 		}
 		else if (requestInfo.getRequestType() == RequestType.Basic && authentication != null &&
 				authentication.getValue().startsWith("Basic "))
 		{
-			String value = new String(Base64.getDecoder().decode(authentication.getValue().substring(6)),
-					Charset.forName("UTF-8"));
-			String[] credentials = value.split(":", 2);
-
-			if (options.credentialsMatch(credentials[0], credentials[1]))
+			if (options.getCredentialStore().verifyBasic(authentication.getValue()))
 			{
 				logger.write(LogLevel.DEBUG, "Basic authentication accepted");
+				entry.setAuthentication(AccessLogEntry.Authentication.Accepted);
 				return true;
 			}
 
 			logger.write(LogLevel.DEBUG, "Authentication failed in Basic response");
+			rejected = true;
 		}
 
+		entry.setAuthentication(
+				rejected ? AccessLogEntry.Authentication.Rejected : AccessLogEntry.Authentication.Challenged);
+
 		if (request.getMethod().equals(Constants.POST_METHOD) && !HeaderUtils.isExpectContinue(request.getHeaders()) &&
 				!readRequestBuffer(request, response))
 		{
@@ -478,7 +1210,7 @@ public class Connection implements Runnable
 			if (challengeMessage != null)
 			{
 				logger.write(LogLevel.DEBUG, "Sending NTLM challenge");
-				logger.write(LogLevel.TRACE, "Challenge is: NTLM " + challengeMessage);
+				logger.write(LogLevel.TRACE, "Challenge is: NTLM {}", challengeMessage);
 
 				responseHeaders.add(new Header(Constants.AUTHENTICATE_HEADER, "NTLM " + challengeMessage));
 			}
@@ -509,6 +1241,103 @@ public class Connection implements Runnable
 		return false;
 	}
 
+	/**
+	 * Offers the connection's NTLM challenge to the server-wide challenge store
+	 * (if there is one) so that the handshake can be completed on another
+	 * connection.
+	 */
+	private void storeNTLMChallenge(Response response)
+	{
+		final NTLMChallengeStore challengeStore = options.getNTLMChallengeStore();
+
+		if (challengeStore == null)
+		{
+			return;
+		}
+
+		final String key;
+
+		if (challengeStore.getKeyType() == NTLMChallengeStore.KeyType.Cookie)
+		{
+			key = Long.toHexString(ThreadLocalRandom.current().nextLong()) +
+					Long.toHexString(ThreadLocalRandom.current().nextLong());
+
+			response.getHeaders().add(new Header(Constants.SET_COOKIE_HEADER,
+					NTLMChallengeStore.COOKIE_NAME + "=" + key + "; Path=/; HttpOnly"));
+		}
+		else
+		{
+			key = client.getInetAddress().getHostAddress();
+		}
+
+		challengeStore.put(key, ntlmChallenge);
+	}
+
+	/**
+	 * Verifies an NTLM response against this connection's challenge or, if the
+	 * challenge was sent on another connection, against the challenges
+	 * outstanding in the server-wide challenge store.
+	 */
+	private boolean verifyNTLMResponse(Request request, NTLMMessage.Type3Message responseMessage) throws Exception
+	{
+		final NTLMChallengeStore challengeStore = options.getNTLMChallengeStore();
+		final CredentialStore.Credential known = options.getCredentialStore().get(responseMessage.getUsername());
+		final String key;
+		final List<NTLMMessage.Type2Message> challenges = new ArrayList<NTLMMessage.Type2Message>();
+
+		// An unknown user is verified like a wrong password, so that it takes as long
+		final CredentialStore.Credential credential = (known != null) ? known : CredentialStore.UNKNOWN;
+
+		if (challengeStore == null)
+		{
+			key = null;
+		}
+		else if (challengeStore.getKeyType() == NTLMChallengeStore.KeyType.Cookie)
+		{
+			key = HeaderUtils.getCookie(request.getHeaders(), NTLMChallengeStore.COOKIE_NAME);
+		}
+		else
+		{
+			key = client.getInetAddress().getHostAddress();
+		}
+
+		// The connection's own challenge first, then those sent on other connections
+		if (ntlmChallenge != null)
+		{
+			challenges.add(ntlmChallenge);
+		}
+
+		if (key != null)
+		{
+
+			for (NTLMMessage.Type2Message challenge : challengeStore.get(key))
+			{
+
+				if (challenge != ntlmChallenge)
+				{
+					challenges.add(challenge);
+				}
+			}
+		}
+
+		for (NTLMMessage.Type2Message challenge : challenges)
+		{
+
+			if (NTLM.verifyResponse(credential, null, challenge, responseMessage) && known != null)
+			{
+
+				if (key != null)
+				{
+					challengeStore.complete(key, challenge);
+				}
+
+				return true;
+			}
+		}
+
+		return false;
+	}
+
 	private boolean readRequestBuffer(Request request, Response response) throws IOException
 	{
 		long contentLength = HeaderUtils.getContentLength(request.getHeaders());
@@ -537,12 +1366,223 @@ public class Connection implements Runnable
 		return true;
 	}
 
-	private void initializeclient() throws SocketException
+	private void initializeclient() throws IOException
 	{
 		client.setTcpNoDelay(true);
 		client.setSoTimeout(options.getSocketReadTimeoutSeconds() * 1000);
 	}
 
+	/**
+	 * Completes the TLS handshake (if the connection has one) up front, rather
+	 * than on the first read, so that it can be timed.
+	 *
+	 * @return <code>false</code> if the connection was parked until the client
+	 *         sends the next part of the handshake
+	 */
+	private boolean handshake() throws IOException
+	{
+
+		if (!(client instanceof SSLSocket))
+		{
+			return true;
+		}
+
+		final SSLSocket sslClient = (SSLSocket) client;
+
+		if (handshakeStartNanos == 0)
+		{
+			handshakeStartNanos = System.nanoTime();
+			handshakeStartMillis = System.currentTimeMillis();
+			handshakeEvent = JFR.AVAILABLE ? new TLSHandshakeEvent() : null;
+
+			if (handshakeEvent != null)
+			{
+				handshakeEvent.begin();
+			}
+		}
+
+		try
+		{
+			final long remainingMilliseconds = getHandshakeRemainingMilliseconds();
+
+			// Resumed by the client sending the next part of the handshake (or its first)
+			final boolean readable = unparked;
+
+			if (unparked)
+			{
+				unparked = false;
+
+				if (idleTimedOut)
+				{
+					throw new SocketTimeoutException("TLS handshake timed out");
+				}
+			}
+
+			// The timeout runs from accept, so it includes waiting for a handshake thread
+			if (remainingMilliseconds <= 0)
+			{
+				throw new SocketTimeoutException("TLS handshake timed out");
+			}
+
+			if (connections.isDraining())
+			{
+				throw new SocketException("The server is draining");
+			}
+
+			client.setSoTimeout((int) remainingMilliseconds);
+
+			if (client instanceof SSLEngineSocket)
+			{
+
+				if (!handshakeStep((SSLEngineSocket) client, readable, remainingMilliseconds))
+				{
+					return false;
+				}
+			}
+			else
+			{
+				startHandshake(sslClient, remainingMilliseconds);
+			}
+		}
+		catch (IOException e)
+		{
+			options.getMetrics().tlsHandshakeFailed();
+			throw e;
+		}
+
+		client.setSoTimeout(options.getSocketReadTimeoutSeconds() * 1000);
+
+		// A resumed session was created by an earlier handshake
+		final SSLSession session = sslClient.getSession();
+		final boolean resumed = session.getCreationTime() < handshakeStartMillis;
+
+		options.getMetrics().tlsHandshakeComplete(System.nanoTime() - handshakeStartNanos, resumed);
+
+		if (handshakeEvent != null && handshakeEvent.shouldCommit())
+		{
+			handshakeEvent.remoteAddress = client.getRemoteSocketAddress().toString();
+			handshakeEvent.protocol = session.getProtocol();
+			handshakeEvent.cipherSuite = session.getCipherSuite();
+			handshakeEvent.resumed = resumed;
+			handshakeEvent.commit();
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return how long is left of the TLS handshake timeout, which runs from
+	 *         accept
+	 */
+	private long getHandshakeRemainingMilliseconds()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(
+				createdNanos + TimeUnit.SECONDS.toNanos(options.getHandshakeTimeoutSeconds()) - System.nanoTime());
+	}
+
+	/**
+	 * Handshakes on this thread, closing the socket if the handshake takes too
+	 * long. (The read timeout alone would let a client that trickles its
+	 * handshake take much longer.)
+	 */
+	private void startHandshake(SSLSocket sslClient, long timeoutMilliseconds) throws IOException
+	{
+		final ScheduledFuture<?> timeout = executorService.schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				IOUtils.close(client);
+			}
+		}, timeoutMilliseconds, TimeUnit.MILLISECONDS);
+
+		try
+		{
+			sslClient.startHandshake();
+		}
+		catch (IOException e)
+		{
+
+			if (!timeout.cancel(false))
+			{
+				throw new SocketTimeoutException("TLS handshake timed out");
+			}
+
+			throw e;
+		}
+
+		// Too late: the socket is (or is being) closed
+		if (!timeout.cancel(false))
+		{
+			throw new SocketTimeoutException("TLS handshake timed out");
+		}
+	}
+
+	/**
+	 * Continues an engine's handshake, and parks the connection on the
+	 * keep-alive selector (rather than holding this thread) while the client
+	 * sends its next flight.
+	 *
+	 * @return <code>false</code> if the connection was parked
+	 */
+	private boolean handshakeStep(SSLEngineSocket engineClient, boolean readable, long timeoutMilliseconds)
+			throws IOException
+	{
+
+		if (engineClient.handshake(readable))
+		{
+			return true;
+		}
+
+		if (park(timeoutMilliseconds))
+		{
+			return false;
+		}
+
+		// No selector; wait for the client on this thread
+		engineClient.startHandshake();
+		return true;
+	}
+
+	/**
+	 * @return <code>true</code> if HTTP/2 was negotiated with ALPN during the TLS
+	 *         handshake
+	 */
+	private boolean isHTTP2Negotiated()
+	{
+		return options.isHttp2() && client instanceof SSLSocket &&
+				HTTP2Session.ALPN_PROTOCOL.equals(((SSLSocket) client).getApplicationProtocol());
+	}
+
+	private static boolean isHTTP2Preface(Request request)
+	{
+		return request.getMethod().equals(Constants.HTTP2_PREFACE_METHOD) &&
+				request.getURI().equals(Constants.HTTP2_PREFACE_URI) && request.getHeaders().isEmpty();
+	}
+
+	/**
+	 * Serves HTTP/2 on this connection until it closes; each stream is served by
+	 * a connection of its own.
+	 */
+	private void serveHTTP2(boolean prefaceStarted) throws IOException
+	{
+		final HTTP2Session session = new HTTP2Session(client, options, executorService, connections);
+
+		synchronized (this)
+		{
+			http2 = session;
+			idle = false;
+		}
+
+		// The server may have started draining before the session was set
+		if (connections.isDraining())
+		{
+			session.shutdown();
+		}
+
+		session.run(prefaceStarted);
+	}
+
 	private Header findHeader(final String name, final List<Header> list)
 	{
 
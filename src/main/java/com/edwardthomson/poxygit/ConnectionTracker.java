@@ -0,0 +1,274 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.edwardthomson.poxygit.logger.LogLevel;
+import com.edwardthomson.poxygit.logger.Logger;
+
+/**
+ * The connections and git processes a server has open, so that it can drain
+ * them when it is closed: stop keeping connections alive, close those that are
+ * idle, wait for the rest to finish their requests, and then kill any git
+ * processes that are left.
+ */
+public class ConnectionTracker
+{
+	private static final Logger logger = Logger.getLogger(ConnectionTracker.class);
+
+	/* How long git gets to exit after it is asked to before it is killed */
+	private static final long REAP_GRACE_MILLISECONDS = 2000;
+
+	private final Closeable server;
+	private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+	private final Set<Process> processes = ConcurrentHashMap.newKeySet();
+	private volatile boolean draining = false;
+
+	private KeepAliveSelector keepAliveSelector;
+	private boolean closed = false;
+
+	/**
+	 * @param server what to close when a shutdown is requested
+	 */
+	ConnectionTracker(Closeable server)
+	{
+		this.server = server;
+	}
+
+	void add(Connection connection)
+	{
+		connections.add(connection);
+
+		// A connection accepted as the server is closing gets no requests
+		if (draining)
+		{
+			connection.closeIfIdle();
+		}
+	}
+
+	void remove(Connection connection)
+	{
+		connections.remove(connection);
+
+		synchronized (this)
+		{
+			notifyAll();
+		}
+	}
+
+	public void addProcess(Process process)
+	{
+		processes.add(process);
+	}
+
+	public void removeProcess(Process process)
+	{
+		processes.remove(process);
+	}
+
+	/**
+	 * Waits for a connection's client to send more (a kept-alive connection's
+	 * next request, or the next part of a TLS handshake) without holding a
+	 * thread, and resumes it on its executor when it does (or it times out).
+	 *
+	 * @return <code>false</code> if the connection could not be parked and should
+	 *         wait on its thread
+	 */
+	synchronized boolean park(Connection connection, SocketChannel channel, long timeoutMilliseconds)
+	{
+
+		if (closed)
+		{
+			return false;
+		}
+
+		if (keepAliveSelector == null)
+		{
+
+			try
+			{
+				keepAliveSelector = new KeepAliveSelector();
+			}
+			catch (IOException e)
+			{
+				logger.write(LogLevel.WARNING, "Could not open keep-alive selector", e);
+				return false;
+			}
+		}
+
+		keepAliveSelector.park(connection, channel, timeoutMilliseconds);
+		return true;
+	}
+
+	public boolean isDraining()
+	{
+		return draining;
+	}
+
+	public int size()
+	{
+		return connections.size();
+	}
+
+	/**
+	 * Stops keeping connections alive, closes the idle ones and waits for the
+	 * others to complete their current request.
+	 *
+	 * @return <code>true</code> if every connection finished within the timeout
+	 */
+	public boolean drain(long timeoutMilliseconds) throws InterruptedException
+	{
+		final long deadline = System.currentTimeMillis() + timeoutMilliseconds;
+
+		draining = true;
+
+		for (Connection connection : connections)
+		{
+			connection.closeIfIdle();
+		}
+
+		synchronized (this)
+		{
+
+			// Parked connections close when they see the server is draining
+			if (keepAliveSelector != null)
+			{
+				keepAliveSelector.resumeAll();
+			}
+
+			while (!connections.isEmpty())
+			{
+				final long remaining = deadline - System.currentTimeMillis();
+
+				if (remaining <= 0)
+				{
+					return false;
+				}
+
+				wait(remaining);
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Closes every connection's socket, whatever it is doing.
+	 */
+	public void closeAll()
+	{
+
+		for (Connection connection : connections)
+		{
+			IOUtils.close(connection.getClient());
+		}
+	}
+
+	/**
+	 * Asks git processes that are still running to exit, then kills those that
+	 * don't, so that handlers blocked on them return and no processes outlive
+	 * the server.
+	 */
+	public void reapProcesses()
+	{
+
+		if (processes.isEmpty())
+		{
+			return;
+		}
+
+		logger.write(LogLevel.WARNING, "Stopping {} git processes", processes.size());
+
+		for (Process process : processes)
+		{
+			process.destroy();
+		}
+
+		final long deadline = System.currentTimeMillis() + REAP_GRACE_MILLISECONDS;
+
+		try
+		{
+
+			for (Process process : processes)
+			{
+				final long remaining = Math.max(deadline - System.currentTimeMillis(), 0);
+
+				if (!process.waitFor(remaining, TimeUnit.MILLISECONDS))
+				{
+					process.destroyForcibly().waitFor();
+				}
+
+				processes.remove(process);
+			}
+		}
+		catch (InterruptedException e)
+		{
+
+			for (Process process : processes)
+			{
+				process.destroyForcibly();
+			}
+
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Stops waiting for idle connections' requests, once the connections have
+	 * drained.
+	 */
+	void close()
+	{
+		final KeepAliveSelector selector;
+
+		synchronized (this)
+		{
+			closed = true;
+			selector = keepAliveSelector;
+		}
+
+		if (selector != null)
+		{
+			selector.close();
+		}
+	}
+
+	/**
+	 * Closes the server on another thread, so that the request asking for the
+	 * shutdown can complete while the server drains.
+	 */
+	public void requestShutdown()
+	{
+		final Thread thread = new Thread("PoxyGitServer-shutdown")
+		{
+			@Override
+			public void run()
+			{
+
+				try
+				{
+					server.close();
+				}
+				catch (IOException e)
+				{
+					logger.write(LogLevel.WARNING, "Could not shut down server", e);
+				}
+			}
+		};
+
+		thread.start();
+	}
+}
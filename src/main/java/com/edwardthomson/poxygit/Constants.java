@@ -20,6 +20,7 @@ public interface Constants
 
 	public static final String VERSION_11 = "HTTP/1.1";
 	public static final String VERSION_10 = "HTTP/1.0";
+	public static final String VERSION_20 = "HTTP/2.0";
 
 	// Methods
 
@@ -28,6 +29,10 @@ public interface Constants
 	public static final String HEAD_METHOD = "HEAD";
 	public static final String CONNECT_METHOD = "CONNECT";
 
+	/* The start of the HTTP/2 connection preface, which reads as a request */
+	public static final String HTTP2_PREFACE_METHOD = "PRI";
+	public static final String HTTP2_PREFACE_URI = "*";
+
 	// Headers
 
 	public static final String CONNECTION_HEADER = "Connection";
@@ -51,6 +56,13 @@ public interface Constants
 	public static final String TRANSFER_ENCODING_CHUNKED = "chunked";
 	public static final String TRANSFER_ENCODING_IDENTITY = "identity";
 
+	public static final String HOST_HEADER = "Host";
+
+	public static final String COOKIE_HEADER = "Cookie";
+	public static final String SET_COOKIE_HEADER = "Set-Cookie";
+
+	public static final String SERVER_TIMING_HEADER = "Server-Timing";
+
 	public static final String EXPECT_HEADER = "Expect";
 	public static final String EXPECT_CONTINUE = "100-continue";
 }
@@ -0,0 +1,78 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+public class CountingInputStream extends InputStream
+{
+	private final InputStream stream;
+	private long count = 0;
+
+	public CountingInputStream(final InputStream stream)
+	{
+		this.stream = stream;
+	}
+
+	@Override
+	public int available() throws IOException
+	{
+		return stream.available();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		stream.close();
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		final int b = stream.read();
+
+		if (b != -1)
+		{
+			count++;
+		}
+
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b) throws IOException
+	{
+		return this.read(b, 0, b.length);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		final int read = stream.read(b, off, len);
+
+		if (read > 0)
+		{
+			count += read;
+		}
+
+		return read;
+	}
+
+	public long getCount()
+	{
+		return count;
+	}
+
+	public void resetCount()
+	{
+		count = 0;
+	}
+}
@@ -0,0 +1,472 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import com.edwardthomson.poxygit.logger.LogLevel;
+import com.edwardthomson.poxygit.logger.Logger;
+
+/**
+ * The usernames and passwords that are permitted to authenticate.
+ * <p>
+ * Passwords are not kept: each credential holds a salted PBKDF2 digest for
+ * Basic authentication and the NTLM hash for NTLM authentication. Lookups read
+ * an immutable snapshot without locking; changes build a new snapshot and swap
+ * it in.
+ * <p>
+ * Credentials can also be loaded from a file of <code>username:password</code>
+ * lines, which is watched and reloaded when it changes.
+ */
+public class CredentialStore
+{
+	private final static Logger logger = Logger.getLogger(CredentialStore.class);
+
+	private static final String KDF_ALGORITHM = "PBKDF2WithHmacSHA256";
+	private static final int KDF_ITERATIONS = 10000;
+	private static final int KDF_LENGTH_BITS = 256;
+	private static final int SALT_LENGTH = 16;
+
+	/* The client chooses the domain, so limit the NTLMv2 keys we remember */
+	private static final int MAX_NTLM_DOMAINS = 16;
+
+	/* Verified Basic authorization headers are remembered for a while */
+	private static final int MAX_VERIFIED_BASIC = 1024;
+	private static final long VERIFIED_BASIC_EXPIRY_MILLISECONDS = 5 * 60 * 1000;
+
+	private static final SecureRandom random = new SecureRandom();
+
+	/*
+	 * Verified against when the user is unknown, so that rejecting an unknown
+	 * user takes as long as rejecting a wrong password, and doesn't reveal which
+	 * users exist. It has a random password, so matches nothing.
+	 */
+	static final Credential UNKNOWN = createUnknown();
+
+	/* Credentials given on the command line or added programmatically */
+	private volatile Map<String, Credential> configured = Collections.emptyMap();
+
+	/* Credentials from the credentials file */
+	private volatile Map<String, Credential> loaded = Collections.emptyMap();
+
+	/* Snapshot of all credentials, read without locking */
+	private volatile Map<String, Credential> credentials = Collections.emptyMap();
+
+	/* Synchronizes writers */
+	private final Object lock = new Object();
+
+	private volatile WatchService watchService;
+
+	/*
+	 * Basic authorization headers that have been verified, so that repeat
+	 * requests don't pay for the key derivation again. They're keyed by their
+	 * SHA-256 digest, so the (reversibly encoded) passwords aren't kept. Entries
+	 * are in the order they were verified, which is the order they expire, and
+	 * are only valid while their credential is still in the current snapshot.
+	 * Guarded by itself.
+	 */
+	private final LinkedHashMap<String, VerifiedBasic> verifiedBasic = new LinkedHashMap<String, VerifiedBasic>();
+
+	private static class VerifiedBasic
+	{
+		private final byte[] digest;
+		private final Credential credential;
+		private final long expires;
+
+		private VerifiedBasic(byte[] digest, Credential credential, long expires)
+		{
+			this.digest = digest;
+			this.credential = credential;
+			this.expires = expires;
+		}
+	}
+
+	public static class Credential
+	{
+		private final String username;
+		private final byte[] salt;
+		private final byte[] digest;
+		private final byte[] ntlmHash;
+
+		private final ConcurrentHashMap<String, byte[]> ntlm2Hashes = new ConcurrentHashMap<String, byte[]>();
+
+		private Credential(String username, String password) throws Exception
+		{
+			this.username = username;
+			this.salt = new byte[SALT_LENGTH];
+
+			random.nextBytes(salt);
+
+			this.digest = digest(password, salt);
+			this.ntlmHash = NTLM.ntlmHash(password);
+		}
+
+		public String getUsername()
+		{
+			return username;
+		}
+
+		public boolean passwordMatches(String password) throws Exception
+		{
+			return MessageDigest.isEqual(digest, digest(password, salt));
+		}
+
+		/**
+		 * @return the NTLMv2 key for this user in the given domain
+		 */
+		public byte[] getNTLM2Hash(String domain) throws Exception
+		{
+			byte[] key = ntlm2Hashes.get(domain);
+
+			if (key == null)
+			{
+				key = NTLM.ntlm2Hash(username, ntlmHash, domain);
+
+				if (ntlm2Hashes.size() < MAX_NTLM_DOMAINS)
+				{
+					ntlm2Hashes.putIfAbsent(domain, key);
+				}
+			}
+
+			return key;
+		}
+
+		private static byte[] digest(String password, byte[] salt) throws Exception
+		{
+			final PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, KDF_ITERATIONS, KDF_LENGTH_BITS);
+
+			try
+			{
+				return SecretKeyFactory.getInstance(KDF_ALGORITHM).generateSecret(spec).getEncoded();
+			}
+			finally
+			{
+				spec.clearPassword();
+			}
+		}
+	}
+
+	public Credential get(String username)
+	{
+		return credentials.get(username);
+	}
+
+	public boolean credentialsMatch(String username, String password) throws Exception
+	{
+		return authenticate(username, password) != null;
+	}
+
+	/**
+	 * @return the user's credential, or <code>null</code> if the user is unknown
+	 *         or the password is wrong; which take the same time
+	 */
+	private Credential authenticate(String username, String password) throws Exception
+	{
+		final Credential credential = credentials.get(username);
+		final boolean matches = (credential != null ? credential : UNKNOWN).passwordMatches(password);
+
+		return (credential != null && matches) ? credential : null;
+	}
+
+	private static Credential createUnknown()
+	{
+		final byte[] password = new byte[SALT_LENGTH];
+
+		random.nextBytes(password);
+
+		try
+		{
+			return new Credential("", Base64.getEncoder().encodeToString(password));
+		}
+		catch (Exception e)
+		{
+			throw new IllegalStateException("Could not create credential", e);
+		}
+	}
+
+	/**
+	 * Verifies the value of a Basic <code>Authorization</code> header
+	 * (<code>Basic</code> followed by the Base64-encoded
+	 * <code>username:password</code>).
+	 */
+	public boolean verifyBasic(String authorization) throws Exception
+	{
+		final long now = System.currentTimeMillis();
+		final byte[] authorizationDigest = MessageDigest.getInstance("SHA-256")
+				.digest(authorization.getBytes(StandardCharsets.UTF_8));
+		final String key = Base64.getEncoder().encodeToString(authorizationDigest);
+		final VerifiedBasic verified;
+
+		synchronized (verifiedBasic)
+		{
+			verified = verifiedBasic.get(key);
+		}
+
+		if (verified != null && verified.expires > now && MessageDigest.isEqual(verified.digest, authorizationDigest) &&
+				credentials.get(verified.credential.getUsername()) == verified.credential)
+		{
+			return true;
+		}
+
+		final String value;
+
+		try
+		{
+			value = new String(Base64.getDecoder().decode(authorization.substring(6)), StandardCharsets.UTF_8);
+		}
+		catch (IllegalArgumentException e)
+		{
+			return false;
+		}
+
+		final String[] parts = value.split(":", 2);
+		final Credential credential = parts.length == 2 ? authenticate(parts[0], parts[1]) : null;
+
+		if (credential == null)
+		{
+			return false;
+		}
+
+		synchronized (verifiedBasic)
+		{
+			// Re-verified entries move to the end, in expiry order
+			verifiedBasic.remove(key);
+			verifiedBasic.put(key,
+					new VerifiedBasic(authorizationDigest, credential, now + VERIFIED_BASIC_EXPIRY_MILLISECONDS));
+
+			removeExpiredBasic(now);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Removes the expired entries, and the oldest ones beyond the limit, from
+	 * the front of the verified Basic headers. Called with its lock held.
+	 */
+	private void removeExpiredBasic(long now)
+	{
+
+		for (Iterator<VerifiedBasic> i = verifiedBasic.values().iterator(); i.hasNext();)
+		{
+
+			if (i.next().expires > now && verifiedBasic.size() <= MAX_VERIFIED_BASIC)
+			{
+				break;
+			}
+
+			i.remove();
+		}
+	}
+
+	/**
+	 * Adds credentials given as <code>username:password</code> strings.
+	 */
+	public void add(List<String> credentials) throws Exception
+	{
+
+		synchronized (lock)
+		{
+			final Map<String, Credential> updated = new HashMap<String, Credential>(configured);
+
+			for (String credential : credentials)
+			{
+				final String[] parts = credential.split(":", 2);
+
+				if (parts.length != 2)
+				{
+					throw new IllegalArgumentException("Credentials must be in the form username:password");
+				}
+
+				updated.put(parts[0], new Credential(parts[0], parts[1]));
+			}
+
+			configured = Collections.unmodifiableMap(updated);
+			publish();
+		}
+	}
+
+	public void add(String username, String password) throws Exception
+	{
+		add(Collections.singletonList(username + ":" + password));
+	}
+
+	/**
+	 * Replaces the credentials loaded from a file with the contents of the given
+	 * file: one <code>username:password</code> per line, ignoring blank lines
+	 * and lines starting with <code>#</code>.
+	 */
+	public void load(File file) throws Exception
+	{
+		final Map<String, Credential> updated = new HashMap<String, Credential>();
+
+		for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8))
+		{
+			line = line.trim();
+
+			if (line.length() == 0 || line.startsWith("#"))
+			{
+				continue;
+			}
+
+			final String[] parts = line.split(":", 2);
+
+			if (parts.length != 2)
+			{
+				throw new IOException("Invalid line in credentials file " + file + ": expected username:password");
+			}
+
+			updated.put(parts[0], new Credential(parts[0], parts[1]));
+		}
+
+		synchronized (lock)
+		{
+			loaded = Collections.unmodifiableMap(updated);
+			publish();
+		}
+
+		logger.write(LogLevel.INFO, "Loaded " + updated.size() + " credentials from " + file);
+	}
+
+	/**
+	 * Loads the given file, then watches it and reloads it whenever it changes.
+	 * If a reload fails, the previous credentials remain in effect.
+	 */
+	public void watch(final File file) throws Exception
+	{
+		load(file);
+
+		final Path path = file.getAbsoluteFile().toPath();
+		final WatchService watcher = FileSystems.getDefault().newWatchService();
+
+		path.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+		watchService = watcher;
+
+		final Thread thread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+
+				try
+				{
+
+					while (true)
+					{
+						final WatchKey key = watcher.take();
+						boolean changed = false;
+
+						for (WatchEvent<?> event : key.pollEvents())
+						{
+
+							if (path.getFileName().equals(event.context()) ||
+									event.kind() == StandardWatchEventKinds.OVERFLOW)
+							{
+								changed = true;
+							}
+						}
+
+						key.reset();
+
+						if (changed)
+						{
+							reload(file);
+						}
+					}
+				}
+				catch (InterruptedException e)
+				{
+					// Exit
+				}
+				catch (ClosedWatchServiceException e)
+				{
+					// Exit
+				}
+			}
+		}, "CredentialStore-" + file.getName());
+
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops watching the credentials file.
+	 */
+	public void close()
+	{
+		final WatchService watcher = watchService;
+
+		if (watcher == null)
+		{
+			return;
+		}
+
+		try
+		{
+			watcher.close();
+		}
+		catch (IOException e)
+		{
+			logger.write(LogLevel.DEBUG, "Could not close credentials watcher", e);
+		}
+	}
+
+	private void reload(File file)
+	{
+
+		try
+		{
+			load(file);
+		}
+		catch (Exception e)
+		{
+			logger.write(LogLevel.WARNING,
+					"Could not reload credentials from " + file + ", keeping the previous credentials", e);
+		}
+	}
+
+	/* Called with the lock held */
+	private void publish()
+	{
+		final Map<String, Credential> snapshot = new HashMap<String, Credential>(loaded);
+		snapshot.putAll(configured);
+
+		credentials = Collections.unmodifiableMap(snapshot);
+
+		synchronized (verifiedBasic)
+		{
+			verifiedBasic.clear();
+		}
+	}
+}
@@ -0,0 +1,246 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import com.edwardthomson.poxygit.RequestTimeoutException.Reason;
+
+/**
+ * Reads from a client socket with deadlines that a trickling client can't
+ * extend, since the socket's read timeout restarts with every byte: the request
+ * head must be read within the header timeout, and the body must arrive at a
+ * minimum rate (after an initial allowance). Each read's timeout is shortened
+ * to whatever remains.
+ * <p>
+ * Only time spent waiting for the client counts against the body rate, so a
+ * body that the server reads slowly (because the request is throttled, or git
+ * is slow to consume it) is not penalized.
+ * <p>
+ * Once a deadline passes, every read fails, so the connection can't be reused.
+ */
+public class DeadlineInputStream extends InputStream
+{
+	private final Socket socket;
+	private final InputStream stream;
+	private final Metrics metrics;
+	private final int readTimeoutMilliseconds;
+
+	private int soTimeout;
+	private RequestTimeoutException expired;
+
+	/* While reading a head: its deadline, or 0 until the first byte arrives */
+	private boolean readingHead = false;
+	private long headTimeoutMilliseconds;
+	private long headDeadline;
+
+	/* While reading a body: the time allowed so far, and the time spent waiting */
+	private boolean readingBody = false;
+	private long bodyAllowanceNanos;
+	private double nanosPerByte;
+	private long bodyWaitedNanos;
+
+	public DeadlineInputStream(final Socket socket, final Metrics metrics, final int readTimeoutMilliseconds)
+			throws IOException
+	{
+		this.socket = socket;
+		this.stream = socket.getInputStream();
+		this.metrics = metrics;
+		this.readTimeoutMilliseconds = readTimeoutMilliseconds;
+		this.soTimeout = socket.getSoTimeout();
+	}
+
+	/**
+	 * Starts the deadline for reading a request head (and stops timing the
+	 * previous request's body).
+	 *
+	 * @param immediately whether the deadline starts now, rather than when the
+	 *                    first byte of the head arrives
+	 */
+	public void startHead(int timeoutMilliseconds, boolean immediately)
+	{
+		readingHead = (timeoutMilliseconds > 0);
+		headTimeoutMilliseconds = timeoutMilliseconds;
+		headDeadline = immediately ? System.currentTimeMillis() + timeoutMilliseconds : 0;
+		readingBody = false;
+	}
+
+	public void endHead()
+	{
+		readingHead = false;
+	}
+
+	/**
+	 * Starts requiring a minimum rate for a request body.
+	 *
+	 * @param timeoutMilliseconds the time allowed before the first byte
+	 * @param minBytesPerSecond   the time allowed grows by a second for this
+	 *                            many bytes read, or 0 for no minimum rate
+	 */
+	public void startBody(int timeoutMilliseconds, int minBytesPerSecond)
+	{
+		readingBody = (minBytesPerSecond > 0);
+		bodyAllowanceNanos = timeoutMilliseconds * 1000000L;
+		nanosPerByte = (minBytesPerSecond > 0) ? 1e9 / minBytesPerSecond : 0;
+		bodyWaitedNanos = 0;
+	}
+
+	/**
+	 * @return <code>true</code> if a deadline passed, and the connection must
+	 *         close
+	 */
+	public boolean isExpired()
+	{
+		return expired != null;
+	}
+
+	@Override
+	public int available() throws IOException
+	{
+		return stream.available();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		stream.close();
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		final byte[] b = new byte[1];
+
+		if (this.read(b, 0, 1) == -1)
+		{
+			return -1;
+		}
+
+		return b[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b) throws IOException
+	{
+		return this.read(b, 0, b.length);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+
+		if (expired != null)
+		{
+			throw expired;
+		}
+
+		Reason reason = null;
+		long remaining = Long.MAX_VALUE;
+
+		if (readingHead && headDeadline != 0)
+		{
+			reason = Reason.HeaderTimeout;
+			remaining = headDeadline - System.currentTimeMillis();
+		}
+		else if (readingBody)
+		{
+			reason = Reason.BodyRate;
+			remaining = (bodyAllowanceNanos - bodyWaitedNanos) / 1000000;
+		}
+
+		if (remaining <= 0)
+		{
+			throw expire(reason);
+		}
+
+		// The socket timeout still applies if it's shorter (0 is no timeout)
+		if (readTimeoutMilliseconds > 0 && readTimeoutMilliseconds <= remaining)
+		{
+			reason = null;
+			remaining = readTimeoutMilliseconds;
+		}
+
+		setSoTimeout(remaining == Long.MAX_VALUE ? 0 : (int) remaining);
+
+		final long start = System.nanoTime();
+		final int read;
+
+		try
+		{
+			read = stream.read(b, off, len);
+		}
+		catch (SocketTimeoutException e)
+		{
+			throw expire(reason);
+		}
+		finally
+		{
+
+			if (readingBody)
+			{
+				bodyWaitedNanos += System.nanoTime() - start;
+			}
+		}
+
+		if (read > 0)
+		{
+
+			if (readingHead && headDeadline == 0)
+			{
+				headDeadline = System.currentTimeMillis() + headTimeoutMilliseconds;
+			}
+
+			if (readingBody)
+			{
+				bodyAllowanceNanos += (long) (read * nanosPerByte);
+			}
+		}
+
+		return read;
+	}
+
+	private void setSoTimeout(int timeout) throws IOException
+	{
+
+		if (timeout != soTimeout)
+		{
+			socket.setSoTimeout(timeout);
+			soTimeout = timeout;
+		}
+	}
+
+	private RequestTimeoutException expire(Reason reason)
+	{
+
+		if (reason == null)
+		{
+			reason = Reason.ReadTimeout;
+		}
+
+		if (reason == Reason.HeaderTimeout)
+		{
+			expired = new RequestTimeoutException(reason, "Request head not read within the header timeout");
+		}
+		else if (reason == Reason.BodyRate)
+		{
+			expired = new RequestTimeoutException(reason, "Request body below the minimum rate");
+		}
+		else
+		{
+			expired = new RequestTimeoutException(reason, "Read timed out");
+		}
+
+		metrics.connectionTerminated(reason);
+		return expired;
+	}
+}
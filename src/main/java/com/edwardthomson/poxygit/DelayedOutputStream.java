@@ -0,0 +1,139 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Pauses a response body before its first byte and between chunks. A chunk
+ * boundary is any {@link #flush()} after body data has been written, which is
+ * how {@link IOUtils#writeChunk(OutputStream, byte[], int)} ends each chunk.
+ */
+public class DelayedOutputStream extends OutputStream
+{
+	private final OutputStream stream;
+
+	private int firstByteDelayMilliseconds = 0;
+	private int chunkDelayMilliseconds = 0;
+
+	private boolean beforeFirstByte = false;
+	private boolean betweenChunks = false;
+	private boolean written = false;
+
+	private long firstByteNanos = 0;
+
+	public DelayedOutputStream(final OutputStream stream)
+	{
+		this.stream = stream;
+	}
+
+	public void setDelays(int firstByteDelayMilliseconds, int chunkDelayMilliseconds)
+	{
+		this.firstByteDelayMilliseconds = firstByteDelayMilliseconds;
+		this.chunkDelayMilliseconds = chunkDelayMilliseconds;
+	}
+
+	/**
+	 * Marks the start of the body; the next write is the first body byte.
+	 */
+	public void startBody()
+	{
+		beforeFirstByte = true;
+		betweenChunks = false;
+		written = false;
+		firstByteNanos = 0;
+	}
+
+	/**
+	 * @return the {@link System#nanoTime()} the first body byte was written at, or
+	 *         0 if none has been
+	 */
+	public long getFirstByteNanos()
+	{
+		return firstByteNanos;
+	}
+
+	@Override
+	public void flush() throws IOException
+	{
+		stream.flush();
+
+		if (written)
+		{
+			betweenChunks = true;
+			written = false;
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		stream.close();
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		delay();
+		stream.write(b);
+	}
+
+	@Override
+	public void write(byte[] b) throws IOException
+	{
+		this.write(b, 0, b.length);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		delay();
+		stream.write(b, off, len);
+	}
+
+	private void delay() throws IOException
+	{
+		int delay = 0;
+
+		if (beforeFirstByte)
+		{
+			/* Make sure the client has the headers while it waits for the body */
+			stream.flush();
+			delay = firstByteDelayMilliseconds;
+		}
+		else if (betweenChunks)
+		{
+			delay = chunkDelayMilliseconds;
+		}
+
+		beforeFirstByte = false;
+		betweenChunks = false;
+		written = true;
+
+		if (delay > 0)
+		{
+
+			try
+			{
+				Thread.sleep(delay);
+			}
+			catch (InterruptedException e)
+			{
+				throw new IOException(e);
+			}
+		}
+
+		if (firstByteNanos == 0)
+		{
+			firstByteNanos = System.nanoTime();
+		}
+	}
+}
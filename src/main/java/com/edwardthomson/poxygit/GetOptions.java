@@ -170,7 +170,7 @@ public class GetOptions
 		return freeArguments;
 	}
 
-	static class Option
+	public static class Option
 	{
 		protected final char shortArg;
 		protected final String longArg;
@@ -235,7 +235,7 @@ public class GetOptions
 		}
 	}
 
-	static class OptionException extends Exception
+	public static class OptionException extends Exception
 	{
 		private static final long serialVersionUID = -3273413213652232971L;
 
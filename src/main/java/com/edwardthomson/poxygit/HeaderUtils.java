@@ -122,6 +122,35 @@ public abstract class HeaderUtils
 		return false;
 	}
 
+	/**
+	 * @return the value of the named cookie in the request's
+	 *         {@link Constants#COOKIE_HEADER} headers, or <code>null</code>
+	 */
+	public static String getCookie(List<Header> headers, String name)
+	{
+
+		for (Header h : headers)
+		{
+
+			if (!h.matchesName(Constants.COOKIE_HEADER))
+			{
+				continue;
+			}
+
+			for (String cookie : h.getValue().split(";"))
+			{
+				final String[] parts = cookie.split("=", 2);
+
+				if (parts.length == 2 && parts[0].trim().equals(name))
+				{
+					return parts[1].trim();
+				}
+			}
+		}
+
+		return null;
+	}
+
 	public static long getContentLength(List<Header> headers)
 	{
 
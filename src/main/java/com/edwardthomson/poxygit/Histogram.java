@@ -0,0 +1,102 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed-bucket histogram of durations, cheap enough to update on every
+ * request, that writes itself in the Prometheus text format.
+ */
+public class Histogram
+{
+	/* Upper bounds in seconds, from a millisecond to a (slow) minute */
+	private static final double[] DEFAULT_BOUNDS = new double[] { 0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5,
+			1, 2.5, 5, 10, 30, 60 };
+
+	private final long[] boundsNanos;
+	private final String[] boundLabels;
+	private final LongAdder[] buckets;
+	private final LongAdder sumNanos = new LongAdder();
+
+	public Histogram()
+	{
+		this(DEFAULT_BOUNDS);
+	}
+
+	public Histogram(double[] boundsSeconds)
+	{
+		this.boundsNanos = new long[boundsSeconds.length];
+		this.boundLabels = new String[boundsSeconds.length];
+		this.buckets = new LongAdder[boundsSeconds.length + 1];
+
+		for (int i = 0; i < boundsSeconds.length; i++)
+		{
+			boundsNanos[i] = (long) (boundsSeconds[i] * 1000000000L);
+			boundLabels[i] = Double.toString(boundsSeconds[i]);
+		}
+
+		for (int i = 0; i < buckets.length; i++)
+		{
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	public void observeNanos(long nanos)
+	{
+		int bucket = 0;
+
+		while (bucket < boundsNanos.length && nanos > boundsNanos[bucket])
+		{
+			bucket++;
+		}
+
+		buckets[bucket].increment();
+		sumNanos.add(nanos);
+	}
+
+	/**
+	 * Writes the buckets (cumulatively, as Prometheus expects), sum and count.
+	 *
+	 * @param labels extra labels (<code>name="value"</code>, comma separated) or
+	 *               <code>null</code>
+	 */
+	public void write(StringBuilder out, String name, String labels)
+	{
+		final String prefix = (labels != null) ? labels + "," : "";
+		long count = 0;
+
+		for (int i = 0; i < buckets.length; i++)
+		{
+			count += buckets[i].sum();
+
+			out.append(name).append("_bucket{").append(prefix).append("le=\"");
+			out.append(i < boundLabels.length ? boundLabels[i] : "+Inf");
+			out.append("\"} ").append(count).append('\n');
+		}
+
+		out.append(name).append("_sum");
+
+		if (labels != null)
+		{
+			out.append('{').append(labels).append('}');
+		}
+
+		out.append(' ').append(sumNanos.sum() / 1e9).append('\n');
+		out.append(name).append("_count");
+
+		if (labels != null)
+		{
+			out.append('{').append(labels).append('}');
+		}
+
+		out.append(' ').append(count).append('\n');
+	}
+}
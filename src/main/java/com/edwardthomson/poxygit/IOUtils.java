@@ -10,6 +10,7 @@
 package com.edwardthomson.poxygit;
 
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -18,6 +19,8 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.zip.GZIPInputStream;
 
+import javax.net.ssl.SSLSocket;
+
 import com.edwardthomson.poxygit.logger.LogLevel;
 import com.edwardthomson.poxygit.logger.Logger;
 
@@ -108,7 +111,7 @@ public class IOUtils
 			}
 
 			final Header h = new Header(line);
-			logger.write(LogLevel.TRACE, h.getName() + ": " + h.getValue());
+			logger.write(LogLevel.TRACE, "{}: {}", h.getName(), h.getValue());
 			ret.add(h);
 		}
 
@@ -125,6 +128,16 @@ public class IOUtils
 
 		try
 		{
+
+			/*
+			 * With a read timeout, an SSLSocket waits for the peer to send something
+			 * (like its close_notify) before it closes, which an idle client won't.
+			 */
+			if (socket instanceof SSLSocket)
+			{
+				socket.setSoTimeout(0);
+			}
+
 			socket.close();
 		}
 		catch (IOException e)
@@ -133,6 +146,24 @@ public class IOUtils
 		}
 	}
 
+	public static void close(final Closeable closeable)
+	{
+
+		if (closeable == null)
+		{
+			return;
+		}
+
+		try
+		{
+			closeable.close();
+		}
+		catch (IOException e)
+		{
+			logger.write(LogLevel.DEBUG, "Error closing stream", e);
+		}
+	}
+
 	/**
 	 * Copies count bytes from input to output. If the count is negative, bytes are
 	 * copied until the end of stream.
@@ -0,0 +1,330 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Predicate;
+
+import com.edwardthomson.poxygit.logger.LogLevel;
+import com.edwardthomson.poxygit.logger.Logger;
+
+/**
+ * Waits for kept-alive connections' next requests on a selector, so that idle
+ * connections don't hold a pool thread. (Connections doing a TLS handshake with
+ * an {@link SSLEngineSocket} wait here for the client's next flight, too.) A
+ * connection is resumed on the pool when bytes (or end of stream) arrive, when
+ * it has been idle for its timeout, or when the server starts draining.
+ */
+class KeepAliveSelector implements Runnable
+{
+	private static final Logger logger = Logger.getLogger(KeepAliveSelector.class);
+
+	private final Selector selector;
+	private final Queue<Parked> parking = new ConcurrentLinkedQueue<Parked>();
+	private final Thread thread;
+
+	/*
+	 * The registered connections, soonest deadline first, so that each wakeup
+	 * only looks at those that have timed out. Resumed connections are left in
+	 * it until they reach the front (or it's compacted). Only used by the
+	 * selector thread.
+	 */
+	private final PriorityQueue<Parked> deadlines = new PriorityQueue<Parked>(64, new Comparator<Parked>()
+	{
+		@Override
+		public int compare(Parked one, Parked two)
+		{
+			return Long.compare(one.deadline, two.deadline);
+		}
+	});
+
+	private volatile boolean resumeAll = false;
+	private volatile boolean closed = false;
+
+	private static class Parked
+	{
+		final Connection connection;
+		final SocketChannel channel;
+		final long deadline;
+
+		/* Set by the selector thread */
+		SelectionKey key;
+		boolean done = false;
+
+		Parked(Connection connection, SocketChannel channel, long deadline)
+		{
+			this.connection = connection;
+			this.channel = channel;
+			this.deadline = deadline;
+		}
+	}
+
+	KeepAliveSelector() throws IOException
+	{
+		selector = Selector.open();
+
+		thread = new Thread(this, "KeepAliveSelector");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Waits for the next request on the connection's channel, and resumes the
+	 * connection when it arrives (or when it times out).
+	 */
+	void park(Connection connection, SocketChannel channel, long timeoutMilliseconds)
+	{
+		parking.add(new Parked(connection, channel, System.currentTimeMillis() + timeoutMilliseconds));
+		selector.wakeup();
+	}
+
+	/**
+	 * Resumes every parked connection, now and from now on, so that they see
+	 * the server is draining and close.
+	 */
+	void resumeAll()
+	{
+		resumeAll = true;
+		selector.wakeup();
+	}
+
+	/**
+	 * Resumes every parked connection and stops selecting.
+	 */
+	void close()
+	{
+		closed = true;
+		resumeAll = true;
+		selector.wakeup();
+
+		try
+		{
+			thread.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run()
+	{
+
+		try
+		{
+
+			while (!closed)
+			{
+				final List<Parked> resumed = new ArrayList<Parked>();
+				final List<Parked> timedOut = new ArrayList<Parked>();
+
+				register(resumed);
+
+				if (resumeAll && !selector.keys().isEmpty())
+				{
+
+					for (SelectionKey key : selector.keys())
+					{
+						resumed.add(done((Parked) key.attachment()));
+					}
+
+					deadlines.clear();
+				}
+				else
+				{
+					selector.select(nextTimeout());
+
+					for (SelectionKey key : selector.selectedKeys())
+					{
+
+						if (key.isValid() && key.isReadable())
+						{
+							resumed.add(done((Parked) key.attachment()));
+						}
+					}
+
+					selector.selectedKeys().clear();
+
+					final long now = System.currentTimeMillis();
+
+					while (!deadlines.isEmpty() && (deadlines.peek().done || deadlines.peek().deadline <= now))
+					{
+						final Parked parked = deadlines.poll();
+
+						if (!parked.done)
+						{
+							timedOut.add(done(parked));
+						}
+					}
+
+					compact();
+				}
+
+				// Deregister cancelled keys so that the channels can block again
+				selector.selectNow();
+
+				for (Parked parked : resumed)
+				{
+					resume(parked, false);
+				}
+
+				for (Parked parked : timedOut)
+				{
+					resume(parked, true);
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			logger.write(LogLevel.FATAL, "Keep-alive selector failed", e);
+		}
+		finally
+		{
+			closeSelector();
+		}
+	}
+
+	/**
+	 * Registers the connections waiting to be parked, or adds them to
+	 * <code>resumed</code> if they can't be.
+	 */
+	private void register(List<Parked> resumed)
+	{
+
+		for (Parked parked = parking.poll(); parked != null; parked = parking.poll())
+		{
+
+			try
+			{
+				parked.channel.configureBlocking(false);
+				parked.key = parked.channel.register(selector, SelectionKey.OP_READ, parked);
+				deadlines.add(parked);
+			}
+			catch (ClosedChannelException e)
+			{
+				resumed.add(parked);
+			}
+			catch (IOException e)
+			{
+				logger.write(LogLevel.DEBUG, "Could not park connection", e);
+				resumed.add(parked);
+			}
+		}
+	}
+
+	/**
+	 * @return how long to select for, until the first parked connection times
+	 *         out (or 0 for no timeout)
+	 */
+	private long nextTimeout()
+	{
+
+		while (!deadlines.isEmpty() && deadlines.peek().done)
+		{
+			deadlines.poll();
+		}
+
+		if (deadlines.isEmpty())
+		{
+			return 0;
+		}
+
+		return Math.max(deadlines.peek().deadline - System.currentTimeMillis(), 1);
+	}
+
+	/**
+	 * Cancels a connection's key, to resume it.
+	 */
+	private static Parked done(Parked parked)
+	{
+		parked.key.cancel();
+		parked.done = true;
+		return parked;
+	}
+
+	/**
+	 * Drops resumed connections from the deadlines once they outnumber the
+	 * parked ones, so that connections that are resumed quickly (and parked
+	 * again) don't grow it until their timeouts pass.
+	 */
+	private void compact()
+	{
+
+		if (deadlines.size() > 2 * selector.keys().size() + 64)
+		{
+			deadlines.removeIf(new Predicate<Parked>()
+			{
+				@Override
+				public boolean test(Parked parked)
+				{
+					return parked.done;
+				}
+			});
+		}
+	}
+
+	private void resume(Parked parked, boolean timedOut)
+	{
+
+		try
+		{
+			parked.channel.configureBlocking(true);
+		}
+		catch (IOException e)
+		{
+			// Closed; the connection will find out when it reads
+			logger.write(LogLevel.DEBUG, "Could not unpark connection", e);
+		}
+
+		parked.connection.unpark(timedOut);
+	}
+
+	private void closeSelector()
+	{
+		final List<Parked> remaining = new ArrayList<Parked>();
+
+		for (SelectionKey key : selector.keys())
+		{
+			remaining.add((Parked) key.attachment());
+			key.cancel();
+		}
+
+		try
+		{
+			selector.selectNow();
+			selector.close();
+		}
+		catch (IOException e)
+		{
+			logger.write(LogLevel.DEBUG, "Could not close keep-alive selector", e);
+		}
+
+		for (Parked parked = parking.poll(); parked != null; parked = parking.poll())
+		{
+			remaining.add(parked);
+		}
+
+		for (Parked parked : remaining)
+		{
+			resume(parked, true);
+		}
+	}
+}
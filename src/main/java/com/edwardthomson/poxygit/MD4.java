@@ -3,6 +3,7 @@ package com.edwardthomson.poxygit;
 import java.security.DigestException;
 import java.security.MessageDigestSpi;
 import java.security.Provider;
+import java.util.Arrays;
 
 /*
  * THIS FILE IS THIRD PARTY OPEN SOURCE SOFTWARE. PLEASE ENSURE ATTRIBUTIONS
@@ -46,6 +47,11 @@ import java.security.Provider;
  * MD4 Message-Digest Algorithm</a>", IETF RFC-1320 (informational).</li>
  * </ul>
  *
+ * Instances keep their state in <code>int</code> words and allocate nothing
+ * while hashing; they may be reset and reused. For one-shot hashing (such as
+ * computing an NTLM hash) {@link #digest(byte[], int, int, byte[])} avoids the
+ * JCA provider lookup entirely.
+ *
  * @version $Revision: 1.8 $
  * @author Raif S. Naffah
  * @author Jeroen C. van Gelderen (gelderen@cryptix.org)
@@ -55,15 +61,25 @@ public class MD4 extends MessageDigestSpi
 	/* Constants */
 
 	/** Size (in bytes) of the blocks. */
-	private final int blockSize = 64;
+	private static final int blockSize = 64;
 
 	/** Size (in bytes) of this hash */
-	private static final int hashSize = 16;
+	public static final int hashSize = 16;
+
+	/** Instances for the static one-shot digest. */
+	private static final ThreadLocal<MD4> instance = new ThreadLocal<MD4>()
+	{
+		@Override
+		protected MD4 initialValue()
+		{
+			return new MD4();
+		}
+	};
 
 	// Instance variables
 	// ...........................................................................
 
-	/** 64 byte buffer */
+	/** 64 byte buffer for partial blocks and padding */
 	private final byte[] buf;
 
 	/** Buffer offset */
@@ -73,22 +89,14 @@ public class MD4 extends MessageDigestSpi
 	private long byteCount;
 
 	/** 4 32-bit words (interim result) */
-	private int[] context = new int[4];
-
-	/** 512 bits work buffer = 16 x 32-bit words */
-	private int[] X = new int[16];
-
-	/* package */
+	private int A, B, C, D;
 
 	// Constructors
 	// ...........................................................................
 	public MD4()
 	{
 		buf = new byte[blockSize];
-		bufOff = 0;
-		byteCount = 0;
-
-		coreReset();
+		reset();
 	}
 
 	private MD4(final MD4 src)
@@ -96,8 +104,10 @@ public class MD4 extends MessageDigestSpi
 		buf = src.buf.clone();
 		bufOff = src.bufOff;
 		byteCount = src.byteCount;
-		context = src.context.clone();
-		X = src.X.clone();
+		A = src.A;
+		B = src.B;
+		C = src.C;
+		D = src.D;
 	}
 
 	@Override
@@ -106,252 +116,288 @@ public class MD4 extends MessageDigestSpi
 		return new MD4(this);
 	}
 
-	@Override
-	protected void engineUpdate(final byte input)
+	/**
+	 * Computes the MD4 hash of <code>length</code> bytes of <code>input</code>
+	 * starting at <code>offset</code>, and writes the 16 byte result to the start
+	 * of <code>out</code>.
+	 */
+	public static void digest(final byte[] input, final int offset, final int length, final byte[] out)
 	{
-		byteCount += 1;
-		buf[bufOff++] = input;
 
-		if (bufOff == blockSize)
+		if (out.length < hashSize)
 		{
-			coreUpdate(buf, 0);
-			bufOff = 0;
+			throw new IllegalArgumentException("output buffer too small");
 		}
+
+		final MD4 md4 = instance.get();
+
+		md4.reset();
+		md4.update(input, offset, length);
+		md4.digest(out, 0);
 	}
 
-	@Override
-	protected void engineUpdate(final byte[] input, int offset, int length)
+	/**
+	 * Resets the hash to its initial state so that the instance can be reused.
+	 */
+	public void reset()
 	{
-		byteCount += length;
+		bufOff = 0;
+		byteCount = 0;
+
+		// initial values of MD4 i.e. A, B, C, D
+		// as per rfc-1320; they are low-order byte first
+		A = 0x67452301;
+		B = 0xEFCDAB89;
+		C = 0x98BADCFE;
+		D = 0x10325476;
+	}
 
-		int todo;
+	/**
+	 * Adds <code>length</code> bytes of <code>input</code> starting at
+	 * <code>offset</code> to the hash.
+	 */
+	public void update(final byte[] input, int offset, int length)
+	{
+		byteCount += length;
 
-		while (length >= (todo = blockSize - bufOff))
+		// Complete any partial block first
+		if (bufOff > 0)
 		{
+			final int todo = Math.min(blockSize - bufOff, length);
+
 			System.arraycopy(input, offset, buf, bufOff, todo);
-			coreUpdate(buf, 0);
-			length -= todo;
+			bufOff += todo;
 			offset += todo;
-			bufOff = 0;
-		}
-
-		// #ASSERT(this.bufOff < blockSize);
-
-		System.arraycopy(input, offset, buf, bufOff, length);
-		bufOff += length;
-	}
+			length -= todo;
 
-	@Override
-	protected byte[] engineDigest()
-	{
-		final byte[] tmp = new byte[hashSize];
-		privateDigest(tmp, 0, hashSize);
-		return tmp;
-	}
+			if (bufOff < blockSize)
+			{
+				return;
+			}
 
-	@Override
-	protected int engineDigest(final byte[] buf, final int offset, final int len) throws DigestException
-	{
+			coreUpdate(buf, 0);
+			bufOff = 0;
+		}
 
-		if (len < hashSize)
+		// Whole blocks are hashed straight from the input
+		while (length >= blockSize)
 		{
-			throw new DigestException();
+			coreUpdate(input, offset);
+			offset += blockSize;
+			length -= blockSize;
 		}
 
-		return privateDigest(buf, offset, len);
+		System.arraycopy(input, offset, buf, 0, length);
+		bufOff = length;
 	}
 
 	/**
-	 * Same as protected int engineDigest(byte[] buf, int offset, int len) except
-	 * that we don't validate arguments.
+	 * Completes the hash, writes the 16 byte result to <code>out</code> at
+	 * <code>offset</code> and resets the instance.
 	 */
-	private int privateDigest(final byte[] buf, final int offset, final int len)
+	public void digest(final byte[] out, final int offset)
 	{
-		this.buf[bufOff++] = (byte) 0x80;
+		buf[bufOff++] = (byte) 0x80;
 
-		final int lenOfBitLen = (blockSize == 128) ? 16 : 8;
-		final int C = blockSize - lenOfBitLen;
+		final int lengthOffset = blockSize - 8;
 
-		if (bufOff > C)
+		if (bufOff > lengthOffset)
 		{
-
-			while (bufOff < blockSize)
-			{
-				this.buf[bufOff++] = (byte) 0x00;
-			}
-
-			coreUpdate(this.buf, 0);
+			Arrays.fill(buf, bufOff, blockSize, (byte) 0x00);
+			coreUpdate(buf, 0);
 			bufOff = 0;
 		}
 
-		while (bufOff < C)
-		{
-			this.buf[bufOff++] = (byte) 0x00;
-		}
+		Arrays.fill(buf, bufOff, lengthOffset, (byte) 0x00);
 
+		// 64-bit length is appended in little endian order
 		final long bitCount = byteCount * 8;
 
-		if (blockSize == 128)
+		for (int i = 0; i < 8; i++)
 		{
+			buf[lengthOffset + i] = (byte) (bitCount >>> (i * 8));
+		}
 
-			for (int i = 0; i < 8; i++)
-			{
-				this.buf[bufOff++] = 0x00;
-			}
+		coreUpdate(buf, 0);
+
+		encode(this.A, out, offset);
+		encode(this.B, out, offset + 4);
+		encode(this.C, out, offset + 8);
+		encode(this.D, out, offset + 12);
+
+		reset();
+	}
+
+	@Override
+	protected void engineUpdate(final byte input)
+	{
+		byteCount += 1;
+		buf[bufOff++] = input;
+
+		if (bufOff == blockSize)
+		{
+			coreUpdate(buf, 0);
+			bufOff = 0;
 		}
+	}
 
-		// 64-bit length is appended in little endian order
-		for (int i = 0; i < 64; i += 8)
+	@Override
+	protected void engineUpdate(final byte[] input, final int offset, final int length)
+	{
+		update(input, offset, length);
+	}
+
+	@Override
+	protected byte[] engineDigest()
+	{
+		final byte[] tmp = new byte[hashSize];
+		digest(tmp, 0);
+		return tmp;
+	}
+
+	@Override
+	protected int engineDigest(final byte[] buf, final int offset, final int len) throws DigestException
+	{
+
+		if (len < hashSize)
 		{
-			this.buf[bufOff++] = (byte) (bitCount >>> (i));
+			throw new DigestException();
 		}
 
-		coreUpdate(this.buf, 0);
-		coreDigest(buf, offset);
+		digest(buf, offset);
+		return hashSize;
+	}
 
-		engineReset();
+	@Override
+	protected int engineGetDigestLength()
+	{
 		return hashSize;
 	}
 
 	@Override
 	protected void engineReset()
 	{
-		bufOff = 0;
-		byteCount = 0;
-		coreReset();
+		reset();
 	}
 
-	/**
-	 * Return the hash bytes in <code>buf</code>, starting at offset
-	 * <code>off</code>.
-	 *
-	 * The subclass is expected to write exactly <code>hashSize</code> bytes in the
-	 * given buffer. The buffer is guaranteed to be large enough.
-	 */
-	protected void coreDigest(final byte[] buf, final int off)
+	private static void encode(final int word, final byte[] out, final int offset)
 	{
-
-		for (int i = 0; i < 4; i++)
-		{
-
-			for (int j = 0; j < 4; j++)
-			{
-				buf[off + (i * 4 + j)] = (byte) (context[i] >>> (8 * j));
-			}
-		}
+		out[offset] = (byte) word;
+		out[offset + 1] = (byte) (word >>> 8);
+		out[offset + 2] = (byte) (word >>> 16);
+		out[offset + 3] = (byte) (word >>> 24);
 	}
 
-	/**
-	 * Reset the hash internal structures to initial state.
-	 */
-	protected void coreReset()
+	private static int decode(final byte[] block, final int offset)
 	{
-		// initial values of MD4 i.e. A, B, C, D
-		// as per rfc-1320; they are low-order byte first
-		context[0] = 0x67452301;
-		context[1] = 0xEFCDAB89;
-		context[2] = 0x98BADCFE;
-		context[3] = 0x10325476;
+		return (block[offset] & 0xFF) | (block[offset + 1] & 0xFF) << 8 | (block[offset + 2] & 0xFF) << 16 |
+				(block[offset + 3] & 0xFF) << 24;
 	}
 
 	/**
 	 * Update the internal state with a single block.
 	 *
-	 * <code>buf</code> contains a single block (64 bytes, 512 bits) of data,
-	 * starting at offset <code>off</code>.
+	 * <code>block</code> contains a single block (64 bytes, 512 bits) of data,
+	 * starting at offset <code>offset</code>.
 	 */
-	protected void coreUpdate(final byte[] block, int offset)
+	private void coreUpdate(final byte[] block, final int offset)
 	{
-
-		// encodes 64 bytes from input block into an
-		// array of 16 32-bit entities.
-		for (int i = 0; i < 16; i++)
-		{
-			X[i] = (block[offset++] & 0xFF) | (block[offset++] & 0xFF) << 8 | (block[offset++] & 0xFF) << 16 |
-					(block[offset++] & 0xFF) << 24;
-		}
-
-		int A = context[0];
-		int B = context[1];
-		int C = context[2];
-		int D = context[3];
-
-		A = FF(A, B, C, D, X[0], 3);
-		D = FF(D, A, B, C, X[1], 7);
-		C = FF(C, D, A, B, X[2], 11);
-		B = FF(B, C, D, A, X[3], 19);
-		A = FF(A, B, C, D, X[4], 3);
-		D = FF(D, A, B, C, X[5], 7);
-		C = FF(C, D, A, B, X[6], 11);
-		B = FF(B, C, D, A, X[7], 19);
-		A = FF(A, B, C, D, X[8], 3);
-		D = FF(D, A, B, C, X[9], 7);
-		C = FF(C, D, A, B, X[10], 11);
-		B = FF(B, C, D, A, X[11], 19);
-		A = FF(A, B, C, D, X[12], 3);
-		D = FF(D, A, B, C, X[13], 7);
-		C = FF(C, D, A, B, X[14], 11);
-		B = FF(B, C, D, A, X[15], 19);
-
-		A = GG(A, B, C, D, X[0], 3);
-		D = GG(D, A, B, C, X[4], 5);
-		C = GG(C, D, A, B, X[8], 9);
-		B = GG(B, C, D, A, X[12], 13);
-		A = GG(A, B, C, D, X[1], 3);
-		D = GG(D, A, B, C, X[5], 5);
-		C = GG(C, D, A, B, X[9], 9);
-		B = GG(B, C, D, A, X[13], 13);
-		A = GG(A, B, C, D, X[2], 3);
-		D = GG(D, A, B, C, X[6], 5);
-		C = GG(C, D, A, B, X[10], 9);
-		B = GG(B, C, D, A, X[14], 13);
-		A = GG(A, B, C, D, X[3], 3);
-		D = GG(D, A, B, C, X[7], 5);
-		C = GG(C, D, A, B, X[11], 9);
-		B = GG(B, C, D, A, X[15], 13);
-
-		A = HH(A, B, C, D, X[0], 3);
-		D = HH(D, A, B, C, X[8], 9);
-		C = HH(C, D, A, B, X[4], 11);
-		B = HH(B, C, D, A, X[12], 15);
-		A = HH(A, B, C, D, X[2], 3);
-		D = HH(D, A, B, C, X[10], 9);
-		C = HH(C, D, A, B, X[6], 11);
-		B = HH(B, C, D, A, X[14], 15);
-		A = HH(A, B, C, D, X[1], 3);
-		D = HH(D, A, B, C, X[9], 9);
-		C = HH(C, D, A, B, X[5], 11);
-		B = HH(B, C, D, A, X[13], 15);
-		A = HH(A, B, C, D, X[3], 3);
-		D = HH(D, A, B, C, X[11], 9);
-		C = HH(C, D, A, B, X[7], 11);
-		B = HH(B, C, D, A, X[15], 15);
-
-		context[0] += A;
-		context[1] += B;
-		context[2] += C;
-		context[3] += D;
+		// encodes 64 bytes from input block into 16 32-bit words
+		final int X0 = decode(block, offset);
+		final int X1 = decode(block, offset + 4);
+		final int X2 = decode(block, offset + 8);
+		final int X3 = decode(block, offset + 12);
+		final int X4 = decode(block, offset + 16);
+		final int X5 = decode(block, offset + 20);
+		final int X6 = decode(block, offset + 24);
+		final int X7 = decode(block, offset + 28);
+		final int X8 = decode(block, offset + 32);
+		final int X9 = decode(block, offset + 36);
+		final int X10 = decode(block, offset + 40);
+		final int X11 = decode(block, offset + 44);
+		final int X12 = decode(block, offset + 48);
+		final int X13 = decode(block, offset + 52);
+		final int X14 = decode(block, offset + 56);
+		final int X15 = decode(block, offset + 60);
+
+		int A = this.A;
+		int B = this.B;
+		int C = this.C;
+		int D = this.D;
+
+		A = FF(A, B, C, D, X0, 3);
+		D = FF(D, A, B, C, X1, 7);
+		C = FF(C, D, A, B, X2, 11);
+		B = FF(B, C, D, A, X3, 19);
+		A = FF(A, B, C, D, X4, 3);
+		D = FF(D, A, B, C, X5, 7);
+		C = FF(C, D, A, B, X6, 11);
+		B = FF(B, C, D, A, X7, 19);
+		A = FF(A, B, C, D, X8, 3);
+		D = FF(D, A, B, C, X9, 7);
+		C = FF(C, D, A, B, X10, 11);
+		B = FF(B, C, D, A, X11, 19);
+		A = FF(A, B, C, D, X12, 3);
+		D = FF(D, A, B, C, X13, 7);
+		C = FF(C, D, A, B, X14, 11);
+		B = FF(B, C, D, A, X15, 19);
+
+		A = GG(A, B, C, D, X0, 3);
+		D = GG(D, A, B, C, X4, 5);
+		C = GG(C, D, A, B, X8, 9);
+		B = GG(B, C, D, A, X12, 13);
+		A = GG(A, B, C, D, X1, 3);
+		D = GG(D, A, B, C, X5, 5);
+		C = GG(C, D, A, B, X9, 9);
+		B = GG(B, C, D, A, X13, 13);
+		A = GG(A, B, C, D, X2, 3);
+		D = GG(D, A, B, C, X6, 5);
+		C = GG(C, D, A, B, X10, 9);
+		B = GG(B, C, D, A, X14, 13);
+		A = GG(A, B, C, D, X3, 3);
+		D = GG(D, A, B, C, X7, 5);
+		C = GG(C, D, A, B, X11, 9);
+		B = GG(B, C, D, A, X15, 13);
+
+		A = HH(A, B, C, D, X0, 3);
+		D = HH(D, A, B, C, X8, 9);
+		C = HH(C, D, A, B, X4, 11);
+		B = HH(B, C, D, A, X12, 15);
+		A = HH(A, B, C, D, X2, 3);
+		D = HH(D, A, B, C, X10, 9);
+		C = HH(C, D, A, B, X6, 11);
+		B = HH(B, C, D, A, X14, 15);
+		A = HH(A, B, C, D, X1, 3);
+		D = HH(D, A, B, C, X9, 9);
+		C = HH(C, D, A, B, X5, 11);
+		B = HH(B, C, D, A, X13, 15);
+		A = HH(A, B, C, D, X3, 3);
+		D = HH(D, A, B, C, X11, 9);
+		C = HH(C, D, A, B, X7, 11);
+		B = HH(B, C, D, A, X15, 15);
+
+		this.A += A;
+		this.B += B;
+		this.C += C;
+		this.D += D;
 	}
 
 	// The basic MD4 atomic functions.
 	// ..........................................................................
 
-	private int FF(final int a, final int b, final int c, final int d, final int x, final int s)
+	private static int FF(final int a, final int b, final int c, final int d, final int x, final int s)
 	{
-		final int t = a + ((b & c) | (~b & d)) + x;
-		return t << s | t >>> (32 - s);
+		return Integer.rotateLeft(a + ((b & c) | (~b & d)) + x, s);
 	}
 
-	private int GG(final int a, final int b, final int c, final int d, final int x, final int s)
+	private static int GG(final int a, final int b, final int c, final int d, final int x, final int s)
 	{
-		final int t = a + ((b & (c | d)) | (c & d)) + x + 0x5A827999;
-		return t << s | t >>> (32 - s);
+		return Integer.rotateLeft(a + ((b & (c | d)) | (c & d)) + x + 0x5A827999, s);
 	}
 
-	private int HH(final int a, final int b, final int c, final int d, final int x, final int s)
+	private static int HH(final int a, final int b, final int c, final int d, final int x, final int s)
 	{
-		final int t = a + (b ^ c ^ d) + x + 0x6ED9EBA1;
-		return t << s | t >>> (32 - s);
+		return Integer.rotateLeft(a + (b ^ c ^ d) + x + 0x6ED9EBA1, s);
 	}
 }
 
@@ -0,0 +1,417 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.edwardthomson.poxygit.RequestInfo.GitRequestType;
+import com.edwardthomson.poxygit.RequestInfo.RequestType;
+
+/**
+ * Server-wide counters, served in the Prometheus text format at
+ * {@link #PATH}. Updates are {@link LongAdder}s so that connections don't
+ * contend with each other; values are only summed when scraped.
+ */
+public class Metrics
+{
+	/* Recognized before the request is parsed as a scenario */
+	public static final String PATH = "/_poxygit/metrics";
+
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private static final String[] SERVICES = new String[] { "upload-pack", "receive-pack", "other" };
+
+	private final LongAdder connectionsAccepted = new LongAdder();
+	private final LongAdder connectionsActive = new LongAdder();
+	private final LongAdder connectionsKeptAlive = new LongAdder();
+	private final LongAdder[] connectionsTerminated = new LongAdder[RequestTimeoutException.Reason.values().length];
+
+	/* By scenario, git request type and service */
+	private final LongAdder[][][] requests;
+	private final LongAdder requestsOther = new LongAdder();
+	private final LongAdder requestsPipelined = new LongAdder();
+	private final LongAdder http2Connections = new LongAdder();
+	private final LongAdder http2Streams = new LongAdder();
+	private final Histogram tlsHandshakesFull = new Histogram();
+	private final Histogram tlsHandshakesResumed = new Histogram();
+	private final LongAdder tlsHandshakesFailed = new LongAdder();
+	private final ConcurrentHashMap<Integer, LongAdder> responses = new ConcurrentHashMap<Integer, LongAdder>();
+	private final Histogram requestDuration = new Histogram();
+
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+
+	private final LongAdder gitStarted = new LongAdder();
+	private final LongAdder gitRunning = new LongAdder();
+	private final ConcurrentHashMap<Integer, LongAdder> gitExits = new ConcurrentHashMap<Integer, LongAdder>();
+	private final Histogram gitDuration = new Histogram();
+
+	private final LongAdder[] authentication = new LongAdder[AccessLogEntry.Authentication.values().length];
+
+	private final LongAdder throttleStallMilliseconds = new LongAdder();
+
+	public Metrics()
+	{
+		requests = new LongAdder[RequestType.values().length][GitRequestType.values().length][SERVICES.length];
+
+		for (LongAdder[][] byGitRequestType : requests)
+		{
+
+			for (LongAdder[] byService : byGitRequestType)
+			{
+
+				for (int i = 0; i < byService.length; i++)
+				{
+					byService[i] = new LongAdder();
+				}
+			}
+		}
+
+		for (int i = 0; i < authentication.length; i++)
+		{
+			authentication[i] = new LongAdder();
+		}
+
+		for (int i = 0; i < connectionsTerminated.length; i++)
+		{
+			connectionsTerminated[i] = new LongAdder();
+		}
+	}
+
+	public void connectionAccepted()
+	{
+		connectionsAccepted.increment();
+		connectionsActive.increment();
+	}
+
+	/**
+	 * Called when a connection finishes its first request and stays open.
+	 */
+	public void connectionKeptAlive()
+	{
+		connectionsKeptAlive.increment();
+	}
+
+	public void connectionClosed(boolean keptAlive)
+	{
+		connectionsActive.decrement();
+
+		if (keptAlive)
+		{
+			connectionsKeptAlive.decrement();
+		}
+	}
+
+	/**
+	 * Called when a connection is closed because its client was too slow.
+	 */
+	public void connectionTerminated(RequestTimeoutException.Reason reason)
+	{
+		connectionsTerminated[reason.ordinal()].increment();
+	}
+
+	/**
+	 * Called when a request's head is read ahead, behind one still being handled.
+	 */
+	public void requestPipelined()
+	{
+		requestsPipelined.increment();
+	}
+
+	/**
+	 * Called when a connection starts speaking HTTP/2.
+	 */
+	public void http2ConnectionStarted()
+	{
+		http2Connections.increment();
+	}
+
+	/**
+	 * Called when an HTTP/2 stream carries a request.
+	 */
+	public void http2StreamStarted()
+	{
+		http2Streams.increment();
+	}
+
+	/**
+	 * Called when a TLS handshake completes.
+	 *
+	 * @param resumed whether the client resumed an earlier session
+	 */
+	public void tlsHandshakeComplete(long durationNanos, boolean resumed)
+	{
+		(resumed ? tlsHandshakesResumed : tlsHandshakesFull).observeNanos(durationNanos);
+	}
+
+	public void tlsHandshakeFailed()
+	{
+		tlsHandshakesFailed.increment();
+	}
+
+	public void requestComplete(AccessLogEntry entry, long throttleStallMilliseconds)
+	{
+		final RequestInfo requestInfo = entry.getRequestInfo();
+
+		if (requestInfo != null)
+		{
+			requests[requestInfo.getRequestType().ordinal()][requestInfo.getGitRequestType().ordinal()][serviceIndex(
+					requestInfo)].increment();
+		}
+		else
+		{
+			requestsOther.increment();
+		}
+
+		counter(responses, entry.getStatus()).increment();
+		requestDuration.observeNanos(entry.getTotalNanos());
+
+		bytesIn.add(entry.getRequestBytes());
+		bytesOut.add(entry.getResponseBytes());
+
+		if (entry.getAuthentication() != AccessLogEntry.Authentication.None)
+		{
+			authentication[entry.getAuthentication().ordinal()].increment();
+		}
+
+		this.throttleStallMilliseconds.add(throttleStallMilliseconds);
+	}
+
+	public void gitStarted()
+	{
+		gitStarted.increment();
+		gitRunning.increment();
+	}
+
+	/**
+	 * @param exitCode the exit code, or {@link AccessLogEntry#NO_EXIT_CODE} if git
+	 *                 did not exit in time
+	 */
+	public void gitFinished(int exitCode, long durationNanos)
+	{
+		gitRunning.decrement();
+
+		if (exitCode != AccessLogEntry.NO_EXIT_CODE)
+		{
+			counter(gitExits, exitCode).increment();
+			gitDuration.observeNanos(durationNanos);
+		}
+	}
+
+	/**
+	 * Writes all metrics in the Prometheus text exposition format.
+	 */
+	public void write(StringBuilder out, ExecutorService executorService, NTLMChallengeStore challengeStore)
+	{
+		writeHeader(out, "poxygit_connections_accepted_total", "counter", "Connections accepted");
+		writeValue(out, "poxygit_connections_accepted_total", null, connectionsAccepted.sum());
+
+		writeHeader(out, "poxygit_connections_active", "gauge", "Connections currently open");
+		writeValue(out, "poxygit_connections_active", null, connectionsActive.sum());
+
+		writeHeader(out, "poxygit_connections_keepalive", "gauge",
+				"Open connections that have completed a request and were kept alive");
+		writeValue(out, "poxygit_connections_keepalive", null, connectionsKeptAlive.sum());
+
+		writeHeader(out, "poxygit_connections_terminated_total", "counter",
+				"Connections closed because the client was too slow sending a request");
+
+		for (RequestTimeoutException.Reason reason : RequestTimeoutException.Reason.values())
+		{
+			writeValue(out, "poxygit_connections_terminated_total", "reason=\"" + reason.getName() + "\"",
+					connectionsTerminated[reason.ordinal()].sum());
+		}
+
+		writeHeader(out, "poxygit_requests_total", "counter", "Requests by scenario, git request type and service");
+
+		for (RequestType requestType : RequestType.values())
+		{
+
+			for (GitRequestType gitRequestType : GitRequestType.values())
+			{
+
+				for (int i = 0; i < SERVICES.length; i++)
+				{
+					final long value = requests[requestType.ordinal()][gitRequestType.ordinal()][i].sum();
+
+					if (value > 0)
+					{
+						writeValue(out, "poxygit_requests_total", "scenario=\"" + requestType.getName() +
+								"\",type=\"" + gitRequestType.name() + "\",service=\"" + SERVICES[i] + "\"", value);
+					}
+				}
+			}
+		}
+
+		writeValue(out, "poxygit_requests_total", "scenario=\"none\"", requestsOther.sum());
+
+		writeHeader(out, "poxygit_requests_pipelined_total", "counter",
+				"Requests read ahead while an earlier request on the connection was handled");
+		writeValue(out, "poxygit_requests_pipelined_total", null, requestsPipelined.sum());
+
+		writeHeader(out, "poxygit_http2_connections_total", "counter", "Connections that spoke HTTP/2");
+		writeValue(out, "poxygit_http2_connections_total", null, http2Connections.sum());
+
+		writeHeader(out, "poxygit_http2_streams_total", "counter", "HTTP/2 streams that carried a request");
+		writeValue(out, "poxygit_http2_streams_total", null, http2Streams.sum());
+
+		writeHeader(out, "poxygit_tls_handshake_seconds", "histogram",
+				"Time to complete TLS handshakes, by whether the session was resumed");
+		tlsHandshakesFull.write(out, "poxygit_tls_handshake_seconds", "resumed=\"false\"");
+		tlsHandshakesResumed.write(out, "poxygit_tls_handshake_seconds", "resumed=\"true\"");
+
+		writeHeader(out, "poxygit_tls_handshake_failures_total", "counter",
+				"TLS handshakes that failed or timed out");
+		writeValue(out, "poxygit_tls_handshake_failures_total", null, tlsHandshakesFailed.sum());
+
+		writeHeader(out, "poxygit_responses_total", "counter", "Responses by status code");
+
+		for (Map.Entry<Integer, LongAdder> status : new TreeMap<Integer, LongAdder>(responses).entrySet())
+		{
+			writeValue(out, "poxygit_responses_total", "status=\"" + status.getKey() + "\"",
+					status.getValue().sum());
+		}
+
+		writeHeader(out, "poxygit_request_duration_seconds", "histogram",
+				"Time from reading the request line to completing the response");
+		requestDuration.write(out, "poxygit_request_duration_seconds", null);
+
+		writeHeader(out, "poxygit_request_body_bytes_total", "counter", "Request body bytes read");
+		writeValue(out, "poxygit_request_body_bytes_total", null, bytesIn.sum());
+
+		writeHeader(out, "poxygit_response_body_bytes_total", "counter", "Response body bytes written");
+		writeValue(out, "poxygit_response_body_bytes_total", null, bytesOut.sum());
+
+		writeHeader(out, "poxygit_git_processes_total", "counter", "Git processes started");
+		writeValue(out, "poxygit_git_processes_total", null, gitStarted.sum());
+
+		writeHeader(out, "poxygit_git_processes_running", "gauge", "Git processes currently running");
+		writeValue(out, "poxygit_git_processes_running", null, gitRunning.sum());
+
+		writeHeader(out, "poxygit_git_exits_total", "counter", "Git process exits by exit code");
+
+		for (Map.Entry<Integer, LongAdder> exit : new TreeMap<Integer, LongAdder>(gitExits).entrySet())
+		{
+			writeValue(out, "poxygit_git_exits_total", "code=\"" + exit.getKey() + "\"", exit.getValue().sum());
+		}
+
+		writeHeader(out, "poxygit_git_duration_seconds", "histogram", "Git process lifetime");
+		gitDuration.write(out, "poxygit_git_duration_seconds", null);
+
+		writeHeader(out, "poxygit_authentication_total", "counter",
+				"Authentication outcomes for requests to authenticated scenarios");
+
+		for (AccessLogEntry.Authentication outcome : AccessLogEntry.Authentication.values())
+		{
+
+			if (outcome != AccessLogEntry.Authentication.None)
+			{
+				writeValue(out, "poxygit_authentication_total", "outcome=\"" + outcome.getName() + "\"",
+						authentication[outcome.ordinal()].sum());
+			}
+		}
+
+		writeHeader(out, "poxygit_throttle_stall_seconds_total", "counter",
+				"Time spent sleeping in throttled request and response streams");
+		out.append("poxygit_throttle_stall_seconds_total ").append(throttleStallMilliseconds.sum() / 1e3).append('\n');
+
+		if (executorService instanceof ThreadPoolExecutor)
+		{
+			final ThreadPoolExecutor pool = (ThreadPoolExecutor) executorService;
+
+			writeHeader(out, "poxygit_pool_threads_active", "gauge", "Threads running connections");
+			writeValue(out, "poxygit_pool_threads_active", null, pool.getActiveCount());
+
+			writeHeader(out, "poxygit_pool_queue_depth", "gauge",
+					"Connections waiting for a thread (including delayed responses)");
+			writeValue(out, "poxygit_pool_queue_depth", null, pool.getQueue().size());
+		}
+
+		if (challengeStore != null)
+		{
+			writeHeader(out, "poxygit_ntlm_challenges", "gauge", "NTLM challenges held in the challenge store");
+			writeValue(out, "poxygit_ntlm_challenges", null, challengeStore.size());
+
+			writeHeader(out, "poxygit_ntlm_challenge_store_total", "counter", "NTLM challenge store events");
+			writeValue(out, "poxygit_ntlm_challenge_store_total", "event=\"stored\"", challengeStore.getStoredCount());
+			writeValue(out, "poxygit_ntlm_challenge_store_total", "event=\"completed\"",
+					challengeStore.getCompletedCount());
+			writeValue(out, "poxygit_ntlm_challenge_store_total", "event=\"missed\"", challengeStore.getMissedCount());
+			writeValue(out, "poxygit_ntlm_challenge_store_total", "event=\"expired\"", challengeStore.getExpiredCount());
+			writeValue(out, "poxygit_ntlm_challenge_store_total", "event=\"evicted\"", challengeStore.getEvictedCount());
+		}
+	}
+
+	private static int serviceIndex(RequestInfo requestInfo)
+	{
+
+		if (requestInfo.getGitRequestType() == GitRequestType.UploadPack)
+		{
+			return 0;
+		}
+		else if (requestInfo.getGitRequestType() == GitRequestType.ReceivePack)
+		{
+			return 1;
+		}
+
+		for (int i = 0; i < SERVICES.length - 1; i++)
+		{
+
+			if (SERVICES[i].equals(requestInfo.getService()))
+			{
+				return i;
+			}
+		}
+
+		return SERVICES.length - 1;
+	}
+
+	private static LongAdder counter(ConcurrentHashMap<Integer, LongAdder> counters, int key)
+	{
+		LongAdder counter = counters.get(key);
+
+		if (counter == null)
+		{
+			final LongAdder created = new LongAdder();
+
+			counter = counters.putIfAbsent(key, created);
+
+			if (counter == null)
+			{
+				counter = created;
+			}
+		}
+
+		return counter;
+	}
+
+	private static void writeHeader(StringBuilder out, String name, String type, String help)
+	{
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void writeValue(StringBuilder out, String name, String labels, long value)
+	{
+		out.append(name);
+
+		if (labels != null)
+		{
+			out.append('{').append(labels).append('}');
+		}
+
+		out.append(' ').append(value).append('\n');
+	}
+}
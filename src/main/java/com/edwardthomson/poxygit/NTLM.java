@@ -11,8 +11,7 @@ package com.edwardthomson.poxygit;
 
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
-import java.security.Provider;
-import java.util.Date;
+import java.security.NoSuchAlgorithmException;
 import java.util.concurrent.ThreadLocalRandom;
 
 import javax.crypto.Cipher;
@@ -25,30 +24,55 @@ public class NTLM
 {
 	private final static Logger logger = Logger.getLogger(NTLM.class);
 
-	private final static Provider MD4_PROVIDER = new MD4Provider();
-
 	/* LM authentication is (even more) insecure; it should not be used. */
 	private final static boolean allowLM = false;
 
+	/* Mac instances are not thread-safe, so reuse one per thread. */
+	private final static ThreadLocal<Mac> HMAC_MD5 = new ThreadLocal<Mac>()
+	{
+		@Override
+		protected Mac initialValue()
+		{
+			try
+			{
+				return Mac.getInstance("HmacMD5"); //$NON-NLS-1$
+			}
+			catch (NoSuchAlgorithmException e)
+			{
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	/*
+	 * Challenges only differ in their flags, challenge and timestamp, so build
+	 * the rest of the message once for each charset.
+	 */
+	private final static NTLMMessage.Type2Template UNICODE_CHALLENGE_TEMPLATE = new NTLMMessage.Type2Template(
+			NTLMMessage.FLAG_NEGOTIATE_UNICODE, Utils.getHostname());
+	private final static NTLMMessage.Type2Template OEM_CHALLENGE_TEMPLATE = new NTLMMessage.Type2Template(
+			NTLMMessage.FLAG_NEGOTIATE_OEM, Utils.getHostname());
+
 	public static NTLMMessage.Type2Message createChallenge(NTLMMessage.Type1Message negotiate) throws Exception
 	{
+		final NTLMMessage.Type2Template template;
 		int flags = 0;
 
 		if ((negotiate.getFlags() & NTLMMessage.FLAG_NEGOTIATE_UNICODE) == NTLMMessage.FLAG_NEGOTIATE_UNICODE)
 		{
 			flags |= NTLMMessage.FLAG_NEGOTIATE_UNICODE;
+			template = UNICODE_CHALLENGE_TEMPLATE;
 		}
 		else if ((negotiate.getFlags() & NTLMMessage.FLAG_NEGOTIATE_OEM) == NTLMMessage.FLAG_NEGOTIATE_OEM)
 		{
 			flags |= NTLMMessage.FLAG_NEGOTIATE_OEM;
+			template = OEM_CHALLENGE_TEMPLATE;
 		}
 		else
 		{
 			throw new Exception("Unknown charset");
 		}
 
-		final String hostname = Utils.getHostname();
-
 		flags |= (negotiate.getFlags() & NTLMMessage.FLAG_REQUEST_TARGET);
 		flags |= (negotiate.getFlags() & NTLMMessage.FLAG_NEGOTIATE_NTLM);
 		flags |= (negotiate.getFlags() & NTLMMessage.FLAG_NEGOTIATE_ALWAYS_SIGN);
@@ -58,25 +82,21 @@ public class NTLM
 
 		flags |= NTLMMessage.FLAG_TARGET_TYPE_SERVER;
 		flags |= NTLMMessage.FLAG_NEGOTIATE_TARGET_INFO;
-		final NTLMMessage.TargetInformation targetInfo = new NTLMMessage.TargetInformation(hostname, hostname, hostname,
-				hostname, new Date());
-
 		flags |= (negotiate.getFlags() & NTLMMessage.FLAG_NEGOTIATE_VERSION);
-		final NTLMMessage.Version version = new NTLMMessage.Version((byte) 0, (byte) 5, (short) 42);
 
 		final byte[] challenge = new byte[8];
 		ThreadLocalRandom.current().nextBytes(challenge);
 
-		return new NTLMMessage.Type2Message(flags, challenge, hostname, targetInfo, version);
+		return template.createMessage(flags, challenge, System.currentTimeMillis());
 	}
 
-	public static boolean verifyResponse(String username, String domain, String password,
+	public static boolean verifyResponse(CredentialStore.Credential credential, String domain,
 			NTLMMessage.Type2Message challenge, NTLMMessage.Type3Message response) throws Exception
 	{
 		// If we doesn't care about the domain, just use the web user's
 		domain = domain != null ? domain : response.getDomain();
 
-		return (verifyNTLM2Response(username, domain, password, challenge, response));
+		return (verifyNTLM2Response(credential, domain, challenge, response));
 	}
 
 	private static boolean verifyLMResponse(String username, String domain, String password,
@@ -126,29 +146,24 @@ public class NTLM
 		System.arraycopy(challenge.getChallenge(), 0, challenges, 0, challenge.getChallenge().length);
 		System.arraycopy(clientNonce, 0, challenges, challenge.getChallenge().length, clientNonce.length);
 
-		final Mac md5 = Mac.getInstance("HmacMD5"); //$NON-NLS-1$
-		md5.init(new SecretKeySpec(ntlm2Hash(username, password, domain), "HmacMD5")); //$NON-NLS-1$
-		byte[] expectedHash = md5.doFinal(challenges);
+		byte[] expectedHash = hmacMD5(ntlm2Hash(username, password, domain), challenges);
 
 		return arrayEquals(expectedHash, lm2Hash);
 	}
 
-	private static boolean verifyNTLM2Response(String username, String domain, String password,
+	private static boolean verifyNTLM2Response(CredentialStore.Credential credential, String domain,
 			NTLMMessage.Type2Message challenge, NTLMMessage.Type3Message response) throws Exception
 	{
-		assert (username != null && username.length() > 0);
-		assert (password != null && password.length() > 0);
+		assert (credential != null);
 
 		int targetInfoLen = 0;
 
-		username = username.toUpperCase();
+		String username = credential.getUsername().toUpperCase();
 
-		// Skip if this is not the credentials presented by the client
-		if (!username.equals(response.getUsername().toUpperCase()) ||
-				!domain.toUpperCase().equals(response.getDomain().toUpperCase()))
-		{
-			return false;
-		}
+		// Whether these are the credentials presented by the client; the response
+		// is still checked when they aren't, so that an unknown user takes as long
+		final boolean presented = username.equals(response.getUsername().toUpperCase()) &&
+				domain.toUpperCase().equals(response.getDomain().toUpperCase());
 
 		if ((challenge.getFlags() & NTLMMessage.FLAG_NEGOTIATE_TARGET_INFO) == NTLMMessage.FLAG_NEGOTIATE_TARGET_INFO)
 		{
@@ -185,7 +200,7 @@ public class NTLM
 			return false;
 
 		// Get the NTLM2 hash
-		byte[] ntlmHash = ntlm2Hash(username, password, domain);
+		byte[] ntlmHash = credential.getNTLM2Hash(domain);
 
 		//
 		// Compute the response hash
@@ -199,15 +214,13 @@ public class NTLM
 
 		// Compute the responseHash - the HMAC-MD5 of the ntlmResponseData,
 		// using the ntlm2 hash as the key
-		final Mac mac = Mac.getInstance("HmacMD5"); //$NON-NLS-1$
-		mac.init(new SecretKeySpec(ntlmHash, "HmacMD5")); //$NON-NLS-1$
-		byte[] expectedResponseHashData = mac.doFinal(challengeBlob);
+		byte[] expectedResponseHashData = hmacMD5(ntlmHash, challengeBlob);
 
 		// Ensure the hash is what the client delivered
 		if (!arrayEquals(expectedResponseHashData, responseHashData))
 			return false;
 
-		return true;
+		return presented;
 	}
 
 	private static boolean verifyNTLM2SessionResponse(String username, String domain, String password,
@@ -340,10 +353,13 @@ public class NTLM
 	/// NTLM hash is computed as the MD4 hash of the Unicode-16 representation of
 	/// the password.
 	/// </summary>
-	private static byte[] ntlmHash(String password) throws Exception
+	static byte[] ntlmHash(String password) throws Exception
 	{
-		final MessageDigest md4 = MessageDigest.getInstance("MD4", MD4_PROVIDER);
-		return md4.digest(password.getBytes(StandardCharsets.UTF_16LE));
+		final byte[] data = password.getBytes(StandardCharsets.UTF_16LE);
+		final byte[] hash = new byte[MD4.hashSize];
+
+		MD4.digest(data, 0, data.length, hash);
+		return hash;
 	}
 
 	/// <summary>
@@ -353,8 +369,11 @@ public class NTLM
 	/// </summary>
 	private static byte[] ntlm2Hash(String username, String password, String domain) throws Exception
 	{
-		byte[] ntlmHash = ntlmHash(password);
+		return ntlm2Hash(username, ntlmHash(password), domain);
+	}
 
+	static byte[] ntlm2Hash(String username, byte[] ntlmHash, String domain) throws Exception
+	{
 		// we need the username and domain concatenated
 		String usernameDomain = username.toUpperCase() + domain;
 		byte[] usernameDomainBytes = usernameDomain.getBytes(StandardCharsets.UTF_16LE);
@@ -362,9 +381,14 @@ public class NTLM
 		// ntlm2 hash is created by running HMAC-MD5 on the unicode
 		// username and domain (uppercased), with the ntlmHash as a
 		// key
-		final Mac md5 = Mac.getInstance("HmacMD5"); //$NON-NLS-1$
-		md5.init(new SecretKeySpec(ntlmHash, "HmacMD5")); //$NON-NLS-1$
-		return md5.doFinal(usernameDomainBytes);
+		return hmacMD5(ntlmHash, usernameDomainBytes);
+	}
+
+	private static byte[] hmacMD5(byte[] key, byte[] data) throws Exception
+	{
+		final Mac md5 = HMAC_MD5.get();
+		md5.init(new SecretKeySpec(key, "HmacMD5")); //$NON-NLS-1$
+		return md5.doFinal(data);
 	}
 
 	private static boolean arrayEquals(byte[] one, byte[] two)
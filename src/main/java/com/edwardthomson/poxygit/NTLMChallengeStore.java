@@ -0,0 +1,291 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A server-wide table of outstanding NTLM challenges, so that a type 3
+ * message can complete a handshake on a different connection than the one
+ * the type 2 challenge was sent on (like Apache, which has no connection
+ * affinity).
+ * <p>
+ * Challenges are keyed either by the client's address or by a cookie that is
+ * set with the challenge. Each key holds a few outstanding challenges so that
+ * concurrent handshakes from one address don't displace each other.
+ * Challenges expire, and the number of keys is bounded.
+ */
+public class NTLMChallengeStore
+{
+	public enum KeyType
+	{
+		Address("address"),
+		Cookie("cookie");
+
+		private final String name;
+
+		private KeyType(String name)
+		{
+			this.name = name;
+		}
+
+		public static KeyType byName(String name)
+		{
+
+			for (KeyType type : KeyType.values())
+			{
+
+				if (type.name.equalsIgnoreCase(name))
+				{
+					return type;
+				}
+			}
+
+			throw new IllegalArgumentException("Unknown NTLM challenge store key type: " + name);
+		}
+	}
+
+	/** The cookie used to find the challenge in {@link KeyType#Cookie} mode. */
+	public static final String COOKIE_NAME = "poxygit-ntlm";
+
+	/** Outstanding challenges kept for a single key. */
+	private static final int MAX_CHALLENGES_PER_KEY = 8;
+
+	private final KeyType keyType;
+	private final int maxKeys;
+	private final long expiryMilliseconds;
+
+	/*
+	 * The challenges for each key, in the order their keys last had a challenge
+	 * stored; since challenges all live as long, that's the order the keys'
+	 * newest challenges expire. Guarded by itself.
+	 */
+	private final LinkedHashMap<String, List<Entry>> challenges = new LinkedHashMap<String, List<Entry>>();
+
+	private final AtomicLong stored = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong missed = new AtomicLong();
+	private final AtomicLong expired = new AtomicLong();
+	private final AtomicLong evicted = new AtomicLong();
+
+	private static class Entry
+	{
+		private final NTLMMessage.Type2Message challenge;
+		private final long expires;
+
+		private Entry(NTLMMessage.Type2Message challenge, long expires)
+		{
+			this.challenge = challenge;
+			this.expires = expires;
+		}
+	}
+
+	public NTLMChallengeStore(KeyType keyType, int maxKeys, int expirySeconds)
+	{
+		this.keyType = keyType;
+		this.maxKeys = maxKeys;
+		this.expiryMilliseconds = expirySeconds * 1000L;
+	}
+
+	public KeyType getKeyType()
+	{
+		return keyType;
+	}
+
+	public void put(String key, NTLMMessage.Type2Message challenge)
+	{
+		final long now = System.currentTimeMillis();
+
+		synchronized (challenges)
+		{
+			// Moves the key to the end, as the newest
+			List<Entry> entries = challenges.remove(key);
+
+			removeExpired(now);
+
+			if (entries == null)
+			{
+				entries = new ArrayList<Entry>(2);
+
+				if (challenges.size() >= maxKeys)
+				{
+					removeOldest();
+				}
+			}
+			else
+			{
+				removeExpired(entries, now);
+
+				if (entries.size() >= MAX_CHALLENGES_PER_KEY)
+				{
+					entries.remove(0);
+					evicted.incrementAndGet();
+				}
+			}
+
+			entries.add(new Entry(challenge, now + expiryMilliseconds));
+			challenges.put(key, entries);
+		}
+
+		stored.incrementAndGet();
+	}
+
+	/**
+	 * @return the unexpired challenges outstanding for the given key, oldest
+	 *         first; empty if there are none
+	 */
+	public List<NTLMMessage.Type2Message> get(String key)
+	{
+		final List<NTLMMessage.Type2Message> result = new ArrayList<NTLMMessage.Type2Message>();
+
+		synchronized (challenges)
+		{
+			final List<Entry> entries = challenges.get(key);
+
+			if (entries != null)
+			{
+				removeExpired(entries, System.currentTimeMillis());
+
+				for (Entry entry : entries)
+				{
+					result.add(entry.challenge);
+				}
+			}
+		}
+
+		if (result.isEmpty())
+		{
+			missed.incrementAndGet();
+		}
+
+		return result;
+	}
+
+	/**
+	 * Removes a challenge once it has been used to complete a handshake.
+	 */
+	public void complete(String key, NTLMMessage.Type2Message challenge)
+	{
+
+		synchronized (challenges)
+		{
+			final List<Entry> entries = challenges.get(key);
+
+			if (entries == null)
+			{
+				return;
+			}
+
+			for (Iterator<Entry> i = entries.iterator(); i.hasNext();)
+			{
+
+				if (i.next().challenge == challenge)
+				{
+					i.remove();
+					completed.incrementAndGet();
+					break;
+				}
+			}
+
+			if (entries.isEmpty())
+			{
+				challenges.remove(key);
+			}
+		}
+	}
+
+	public long getStoredCount()
+	{
+		return stored.get();
+	}
+
+	public long getCompletedCount()
+	{
+		return completed.get();
+	}
+
+	public long getMissedCount()
+	{
+		return missed.get();
+	}
+
+	public long getExpiredCount()
+	{
+		return expired.get();
+	}
+
+	public long getEvictedCount()
+	{
+		return evicted.get();
+	}
+
+	public int size()
+	{
+
+		synchronized (challenges)
+		{
+			return challenges.size();
+		}
+	}
+
+	private void removeExpired(List<Entry> entries, long now)
+	{
+
+		for (Iterator<Entry> i = entries.iterator(); i.hasNext();)
+		{
+
+			if (i.next().expires <= now)
+			{
+				i.remove();
+				expired.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Drops the keys whose newest challenge has expired, from the front of the
+	 * table. Called with the table's lock held.
+	 */
+	private void removeExpired(long now)
+	{
+
+		for (Iterator<List<Entry>> i = challenges.values().iterator(); i.hasNext();)
+		{
+			final List<Entry> entries = i.next();
+
+			if (!entries.isEmpty() && entries.get(entries.size() - 1).expires > now)
+			{
+				break;
+			}
+
+			expired.addAndGet(entries.size());
+			i.remove();
+		}
+	}
+
+	/**
+	 * Drops the key whose newest challenge is the oldest, to make room for
+	 * another. Called with the table's lock held.
+	 */
+	private void removeOldest()
+	{
+		final Iterator<List<Entry>> i = challenges.values().iterator();
+
+		if (i.hasNext())
+		{
+			evicted.addAndGet(i.next().size());
+			i.remove();
+		}
+	}
+}
@@ -239,6 +239,9 @@ public abstract class NTLMMessage
 
 	static class Type2Message extends NTLMMessage
 	{
+		/* The encoded message, when it was parsed or created from a template */
+		private byte[] message;
+
 		private byte[] target;
 
 		private final int flags;
@@ -255,6 +258,8 @@ public abstract class NTLMMessage
 			if (checkHeader(message) != this.getType())
 				throw new Exception("Invalid NTLM type 2 message");
 
+			this.message = message;
+
 			short targetNameLen = getInt16(message, 12);
 			short targetNamePos = getInt16(message, 16);
 
@@ -310,6 +315,20 @@ public abstract class NTLMMessage
 			this.flags = flags;
 		}
 
+		/**
+		 * A message created from a template, whose fields are already known.
+		 */
+		private Type2Message(byte[] message, int flags, byte[] challenge, byte[] target, byte[] context,
+				byte[] targetInformation)
+		{
+			this.message = message;
+			this.flags = flags;
+			this.challenge = challenge;
+			this.target = target;
+			this.context = context;
+			this.targetInformation = targetInformation;
+		}
+
 		@Override
 		public int getType()
 		{
@@ -343,6 +362,11 @@ public abstract class NTLMMessage
 
 		public byte[] createMessage()
 		{
+			if (message != null)
+			{
+				return message;
+			}
+
 			int nextOffset = (targetInformation == null) ? 32 : 48;
 
 			final int versionLen = version != null ? version.length : 0;
@@ -404,6 +428,56 @@ public abstract class NTLMMessage
 		}
 	}
 
+	/**
+	 * A prebuilt type 2 message for one charset, with the server's target
+	 * information and version. Creating a challenge from it only patches the
+	 * flags, challenge and timestamp into a copy.
+	 */
+	static class Type2Template
+	{
+		private final byte[] template;
+		private final int timestampOffset;
+
+		/* The template's fields, shared by the messages created from it */
+		private final byte[] target;
+		private final byte[] context = new byte[8];
+		private final int targetInfoPos;
+		private final int targetInfoLen;
+
+		public Type2Template(int charsetFlag, String hostname)
+		{
+			final TargetInformation targetInfo = new TargetInformation(hostname, hostname, hostname, hostname,
+					new Date(0));
+			final Version version = new Version((byte) 0, (byte) 5, (short) 42);
+
+			final Type2Message message = new Type2Message(charsetFlag | FLAG_NEGOTIATE_TARGET_INFO, new byte[8],
+					hostname, targetInfo, version);
+
+			this.template = message.createMessage();
+			this.target = message.getTarget();
+			this.targetInfoLen = getInt16(template, 40);
+			this.targetInfoPos = getInt16(template, 44);
+
+			/* The timestamp value is the last entry in the target info, before the terminator */
+			this.timestampOffset = targetInfoPos + targetInfoLen - 4 - 8;
+		}
+
+		public Type2Message createMessage(int flags, byte[] challenge, long timestamp)
+		{
+			assert (challenge != null && challenge.length == 8);
+
+			final byte[] message = template.clone();
+
+			addInt(message, 20, flags);
+			addBytes(message, 24, challenge);
+			addLong(message, timestampOffset, (timestamp + 11644473600000L) * 10000L);
+
+			// Only the target information (with its timestamp) differs from the template's
+			return new Type2Message(message, flags, challenge, target, context,
+					getBytes(message, targetInfoPos, targetInfoLen));
+		}
+	}
+
 	static class Type3Message extends NTLMMessage
 	{
 		private final int flags;
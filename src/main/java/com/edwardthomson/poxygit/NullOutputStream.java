@@ -18,4 +18,9 @@ public class NullOutputStream extends OutputStream
 	public void write(int b) throws IOException
 	{
 	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+	}
 }
@@ -9,9 +9,7 @@
 
 package com.edwardthomson.poxygit;
 
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 public class Options
 {
@@ -45,6 +43,36 @@ public class Options
 	 */
 	private volatile String sslKeystorePassword = null;
 
+	/**
+	 * The TLS protocol versions to offer; those the JVM doesn't support are
+	 * left out.
+	 */
+	private volatile String[] sslProtocols = new String[] { "TLSv1.3", "TLSv1.2" };
+
+	/**
+	 * How many TLS sessions are kept for clients to resume, or 0 for no limit.
+	 */
+	private volatile int sslSessionCacheSize = 20480;
+
+	/**
+	 * How long a TLS session may be resumed for.
+	 */
+	private volatile int sslSessionTimeoutSeconds = 24 * 60 * 60;
+
+	/**
+	 * Whether TLS sessions are resumed from tickets that the client holds,
+	 * rather than only from the server's cache. This is a JVM-wide setting,
+	 * and is only read when the first TLS context is created.
+	 */
+	private volatile boolean sslSessionTickets = true;
+
+	/**
+	 * Whether to serve TLS with an {@link javax.net.ssl.SSLEngine} over the
+	 * accepted socket's channel, so that a handshake waits for the client on
+	 * a selector rather than holding a thread.
+	 */
+	private volatile boolean sslEngine = false;
+
 	/**
 	 * If a connection to a server or forward proxy takes longer than this many
 	 * seconds, it errors with 504 Gateway Timeout.
@@ -64,20 +92,102 @@ public class Options
 	 */
 	private volatile int socketReadTimeoutSeconds = 300;
 
+	/**
+	 * How long a client may take to send a request head (the request line and
+	 * headers), however often it sends a byte. Starts when the connection is
+	 * accepted, or at the first byte of a kept-alive connection's next request;
+	 * 0 for no limit.
+	 */
+	private volatile int requestHeaderTimeoutSeconds = 20;
+
+	/**
+	 * How long a client may take to start a request body; extended by a second
+	 * for every <code>minRequestBodyRate</code> bytes it sends.
+	 */
+	private volatile int requestBodyTimeoutSeconds = 20;
+
+	/**
+	 * The minimum rate (in bytes per second) a request body must be sent at, or
+	 * 0 for no minimum.
+	 */
+	private volatile int minRequestBodyRate = 500;
+
+	/**
+	 * How long a kept-alive connection may wait for its next request before it
+	 * is closed. Idle connections don't hold a thread while they wait.
+	 */
+	private volatile int keepAliveTimeoutSeconds = 15;
+
+	/**
+	 * The number of requests served on a connection before it is closed, or 0
+	 * for no limit.
+	 */
+	private volatile int maxKeepAliveRequests = 1000;
+
 	/**
 	 * Thread pool size for processing all requests.
 	 */
 	private volatile int maxThreads = 100;
 
 	/**
-	 * Only used when {@link #authenticationRequired} is true.
-	 *
-	 * Map of username/password pairs that are permitted when proxy authentication
-	 * is enabled.
-	 *
-	 * Synchronized on {@link #proxyCredentials}.
+	 * How many TLS handshakes may run at once, on threads of their own, so that
+	 * a burst of new connections can't take the CPU from requests.
+	 */
+	private volatile int maxHandshakes = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * How long a TLS handshake may take, from when the connection is accepted
+	 * (so including any wait for a handshake thread).
 	 */
-	private final Map<String, String> credentials = new HashMap<String, String>();
+	private volatile int handshakeTimeoutSeconds = 10;
+
+	/**
+	 * Usernames and passwords that are permitted when authentication is
+	 * required.
+	 */
+	private final CredentialStore credentials = new CredentialStore();
+
+	/**
+	 * Server-wide NTLM challenges, so that a handshake can complete on another
+	 * connection; <code>null</code> to only keep challenges per connection.
+	 */
+	private volatile NTLMChallengeStore ntlmChallengeStore = null;
+
+	/**
+	 * Where to write a JSON line per request; <code>null</code> for no access
+	 * log.
+	 */
+	private volatile AccessLog accessLog = null;
+
+	/**
+	 * Server-wide counters, served at {@link Metrics#PATH}.
+	 */
+	private final Metrics metrics = new Metrics();
+
+	/**
+	 * Whether to send a <code>Server-Timing</code> header (when the phases can be
+	 * measured before the body is sent).
+	 */
+	private volatile boolean serverTiming = false;
+
+	/**
+	 * Whether a <code>POST</code> to
+	 * {@link com.edwardthomson.poxygit.handlers.ShutdownHandler#PATH} shuts the
+	 * server down.
+	 */
+	private volatile boolean adminShutdown = false;
+
+	/**
+	 * Whether to speak HTTP/2: negotiated with ALPN on the SSL port, or with
+	 * prior knowledge on the plain port.
+	 */
+	private volatile boolean http2 = false;
+
+	/**
+	 * How long a shutting down server waits for requests in progress before
+	 * closing their connections and killing their git processes.
+	 */
+	private volatile int drainTimeoutSeconds = 10;
 
 	/**
 	 * The maximum HTTP header size for requests/responses.
@@ -85,9 +195,21 @@ public class Options
 	private final int maxHeaderSizeBytes = 32 * 1024;
 
 	/**
-	 * Time to sleep before returning the status code with the response.
+	 * Time to wait before returning the status code with the response. The
+	 * connection is rescheduled rather than holding a thread while it waits.
 	 */
-	private int responseDelayMilliseconds;
+	private volatile int responseDelayMilliseconds;
+
+	/**
+	 * Time to wait after sending the response headers, before the first byte of
+	 * the response body.
+	 */
+	private volatile int firstByteDelayMilliseconds;
+
+	/**
+	 * Time to wait between each chunk of the response body.
+	 */
+	private volatile int chunkDelayMilliseconds;
 
 	private volatile String redirectHost = null;
 
@@ -175,6 +297,56 @@ public class Options
 		this.socketReadTimeoutSeconds = socketReadTimeoutSeconds;
 	}
 
+	public int getRequestHeaderTimeoutSeconds()
+	{
+		return this.requestHeaderTimeoutSeconds;
+	}
+
+	public void setRequestHeaderTimeoutSeconds(int requestHeaderTimeoutSeconds)
+	{
+		this.requestHeaderTimeoutSeconds = requestHeaderTimeoutSeconds;
+	}
+
+	public int getRequestBodyTimeoutSeconds()
+	{
+		return this.requestBodyTimeoutSeconds;
+	}
+
+	public void setRequestBodyTimeoutSeconds(int requestBodyTimeoutSeconds)
+	{
+		this.requestBodyTimeoutSeconds = requestBodyTimeoutSeconds;
+	}
+
+	public int getMinRequestBodyRate()
+	{
+		return this.minRequestBodyRate;
+	}
+
+	public void setMinRequestBodyRate(int minRequestBodyRate)
+	{
+		this.minRequestBodyRate = minRequestBodyRate;
+	}
+
+	public int getKeepAliveTimeoutSeconds()
+	{
+		return this.keepAliveTimeoutSeconds;
+	}
+
+	public void setKeepAliveTimeoutSeconds(int keepAliveTimeoutSeconds)
+	{
+		this.keepAliveTimeoutSeconds = keepAliveTimeoutSeconds;
+	}
+
+	public int getMaxKeepAliveRequests()
+	{
+		return this.maxKeepAliveRequests;
+	}
+
+	public void setMaxKeepAliveRequests(int maxKeepAliveRequests)
+	{
+		this.maxKeepAliveRequests = maxKeepAliveRequests;
+	}
+
 	public int getResponseDelayMilliseconds()
 	{
 		return responseDelayMilliseconds;
@@ -185,6 +357,26 @@ public class Options
 		this.responseDelayMilliseconds = responseDelayMilliseconds;
 	}
 
+	public int getFirstByteDelayMilliseconds()
+	{
+		return firstByteDelayMilliseconds;
+	}
+
+	public void setFirstByteDelayMilliseconds(int firstByteDelayMilliseconds)
+	{
+		this.firstByteDelayMilliseconds = firstByteDelayMilliseconds;
+	}
+
+	public int getChunkDelayMilliseconds()
+	{
+		return chunkDelayMilliseconds;
+	}
+
+	public void setChunkDelayMilliseconds(int chunkDelayMilliseconds)
+	{
+		this.chunkDelayMilliseconds = chunkDelayMilliseconds;
+	}
+
 	public int getMaxThreads()
 	{
 		return this.maxThreads;
@@ -195,45 +387,159 @@ public class Options
 		this.maxThreads = maxThreads;
 	}
 
-	public void setCredentials(List<String> credentials)
+	public int getMaxHandshakes()
+	{
+		return maxHandshakes;
+	}
+
+	public void setMaxHandshakes(int maxHandshakes)
+	{
+		this.maxHandshakes = maxHandshakes;
+	}
+
+	public int getHandshakeTimeoutSeconds()
+	{
+		return handshakeTimeoutSeconds;
+	}
+
+	public void setHandshakeTimeoutSeconds(int handshakeTimeoutSeconds)
+	{
+		this.handshakeTimeoutSeconds = handshakeTimeoutSeconds;
+	}
+
+	public void setCredentials(List<String> credentials) throws Exception
+	{
+		this.credentials.add(credentials);
+	}
+
+	public void addCredentials(String username, String password) throws Exception
+	{
+		credentials.add(username, password);
+	}
+
+	public boolean credentialsMatch(String username, String password) throws Exception
+	{
+		return credentials.credentialsMatch(username, password);
+	}
+
+	public CredentialStore getCredentialStore()
+	{
+		return credentials;
+	}
+
+	public NTLMChallengeStore getNTLMChallengeStore()
+	{
+		return ntlmChallengeStore;
+	}
+
+	public void setNTLMChallengeStore(NTLMChallengeStore ntlmChallengeStore)
+	{
+		this.ntlmChallengeStore = ntlmChallengeStore;
+	}
+
+	public AccessLog getAccessLog()
+	{
+		return accessLog;
+	}
+
+	public void setAccessLog(AccessLog accessLog)
 	{
+		this.accessLog = accessLog;
+	}
 
-		synchronized (this.credentials)
-		{
+	public Metrics getMetrics()
+	{
+		return metrics;
+	}
 
-			for (String credential : credentials)
-			{
-				String[] parts = credential.split(":", 2);
-				this.credentials.put(parts[0], parts[1]);
-			}
-		}
+	public boolean isServerTiming()
+	{
+		return serverTiming;
 	}
 
-	public void addCredentials(String username, String password)
+	public void setServerTiming(boolean serverTiming)
 	{
+		this.serverTiming = serverTiming;
+	}
 
-		synchronized (credentials)
-		{
-			credentials.put(username, password);
-		}
+	public boolean isAdminShutdown()
+	{
+		return adminShutdown;
 	}
 
-	public String getCredentials(String username)
+	public void setAdminShutdown(boolean adminShutdown)
 	{
+		this.adminShutdown = adminShutdown;
+	}
 
-		synchronized (credentials)
-		{
-			return credentials.get(username);
-		}
+	public boolean isHttp2()
+	{
+		return http2;
 	}
 
-	public boolean credentialsMatch(String username, String password)
+	public void setHttp2(boolean http2)
 	{
+		this.http2 = http2;
+	}
+
+	public String[] getSSLProtocols()
+	{
+		return sslProtocols;
+	}
+
+	public void setSSLProtocols(String[] sslProtocols)
+	{
+		this.sslProtocols = sslProtocols;
+	}
+
+	public int getSSLSessionCacheSize()
+	{
+		return sslSessionCacheSize;
+	}
+
+	public void setSSLSessionCacheSize(int sslSessionCacheSize)
+	{
+		this.sslSessionCacheSize = sslSessionCacheSize;
+	}
 
-		synchronized (credentials)
-		{
-			return password.equals(credentials.get(username));
-		}
+	public int getSSLSessionTimeoutSeconds()
+	{
+		return sslSessionTimeoutSeconds;
+	}
+
+	public void setSSLSessionTimeoutSeconds(int sslSessionTimeoutSeconds)
+	{
+		this.sslSessionTimeoutSeconds = sslSessionTimeoutSeconds;
+	}
+
+	public boolean isSSLSessionTickets()
+	{
+		return sslSessionTickets;
+	}
+
+	public void setSSLSessionTickets(boolean sslSessionTickets)
+	{
+		this.sslSessionTickets = sslSessionTickets;
+	}
+
+	public boolean isSSLEngine()
+	{
+		return sslEngine;
+	}
+
+	public void setSSLEngine(boolean sslEngine)
+	{
+		this.sslEngine = sslEngine;
+	}
+
+	public int getDrainTimeoutSeconds()
+	{
+		return drainTimeoutSeconds;
+	}
+
+	public void setDrainTimeoutSeconds(int drainTimeoutSeconds)
+	{
+		this.drainTimeoutSeconds = drainTimeoutSeconds;
 	}
 
 	public int getMaxHeaderSizeBytes()
@@ -0,0 +1,176 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Writes pipelined responses to the client in the order they were produced,
+ * on a pool thread, so that the connection can route and authenticate its next
+ * request while a response is still being sent.
+ * <p>
+ * Only a bounded amount is queued. When the queue is full (or no pool thread is
+ * free to write it) the thread producing the response writes the queue out
+ * itself, which keeps the order and can't deadlock on a busy pool.
+ */
+class PipelineWriter extends OutputStream implements Runnable
+{
+	private static final int CAPACITY = 64;
+
+	private final OutputStream out;
+	private final Executor executor;
+	private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(CAPACITY);
+
+	/* Held while writing to the client, so that queued chunks are written in order */
+	private final Object writeLock = new Object();
+
+	private volatile IOException failure;
+	private boolean scheduled = false;
+
+	PipelineWriter(OutputStream out, Executor executor)
+	{
+		this.out = out;
+		this.executor = executor;
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+
+		if (len == 0)
+		{
+			return;
+		}
+
+		final byte[] chunk = new byte[len];
+		System.arraycopy(b, off, chunk, 0, len);
+
+		while (!queue.offer(chunk))
+		{
+			writeQueued();
+		}
+
+		schedule();
+	}
+
+	/**
+	 * Does nothing: queued chunks are flushed to the client once they are
+	 * written. Use {@link #drain()} to wait for them.
+	 */
+	@Override
+	public void flush() throws IOException
+	{
+		checkFailure();
+	}
+
+	/**
+	 * Writes everything queued to the client on this thread.
+	 */
+	public void drain() throws IOException
+	{
+		writeQueued();
+	}
+
+	@Override
+	public void run()
+	{
+
+		synchronized (this)
+		{
+			scheduled = false;
+		}
+
+		try
+		{
+			writeQueued();
+		}
+		catch (IOException e)
+		{
+			// Reported to the connection by its next write
+		}
+	}
+
+	private void schedule() throws IOException
+	{
+
+		synchronized (this)
+		{
+
+			if (scheduled)
+			{
+				return;
+			}
+
+			scheduled = true;
+		}
+
+		try
+		{
+			executor.execute(this);
+		}
+		catch (RejectedExecutionException e)
+		{
+
+			synchronized (this)
+			{
+				scheduled = false;
+			}
+
+			writeQueued();
+		}
+	}
+
+	private void writeQueued() throws IOException
+	{
+
+		synchronized (writeLock)
+		{
+			checkFailure();
+
+			try
+			{
+				byte[] chunk;
+
+				while ((chunk = queue.poll()) != null)
+				{
+					out.write(chunk);
+				}
+
+				out.flush();
+			}
+			catch (IOException e)
+			{
+				failure = e;
+				queue.clear();
+				throw e;
+			}
+		}
+	}
+
+	private void checkFailure() throws IOException
+	{
+
+		if (failure != null)
+		{
+			throw failure;
+		}
+	}
+}
@@ -9,32 +9,38 @@
 
 package com.edwardthomson.poxygit;
 
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.ServerSocket;
 import java.security.GeneralSecurityException;
-import java.security.KeyStore;
-import java.util.ArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
-import javax.net.ssl.KeyManagerFactory;
-import javax.net.ssl.SSLContext;
+import java.util.Arrays;
 
 import com.edwardthomson.poxygit.GetOptions.Option;
 import com.edwardthomson.poxygit.GetOptions.OptionException;
+import com.edwardthomson.poxygit.jfr.JFR;
+import com.edwardthomson.poxygit.loadgen.LoadGenerator;
 import com.edwardthomson.poxygit.logger.LogLevel;
 import com.edwardthomson.poxygit.logger.Logger;
+import com.edwardthomson.poxygit.logger.OverflowPolicy;
+import com.edwardthomson.poxygit.repogen.RepositoryGenerator;
 
 public class PoxyGit
 {
 	private final Logger logger = Logger.getLogger(PoxyGit.class);
 
-	private ExecutorService executorService;
-
 	public static void main(String[] args)
 	{
+
+		if (args.length > 0 && args[0].equals("loadgen"))
+		{
+			LoadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		else if (args.length > 0 && args[0].equals("repogen"))
+		{
+			RepositoryGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+
 		new PoxyGit(args).run();
 	}
 
@@ -48,16 +54,26 @@ public class PoxyGit
 	private static void usage()
 	{
 		System.err.println("Usage: PoxyGit [-q|--quiet] [-d|--debug] [--trace] [--credentials user:pass]");
+		System.err.println("       [--log-overflow block|drop] [--access-log file|-] [--jfr file]");
+		System.err.println("       [--server-timing] [--admin-shutdown] [--drain-timeout seconds]");
+		System.err.println("       [--keep-alive-timeout seconds] [--max-keep-alive-requests count]");
+		System.err.println("       [--header-timeout seconds] [--body-timeout seconds] [--min-body-rate bytes/s]");
 		System.err.println("       [-a|--address address] [-p|--port port] [-s|--ssl-port port]");
-		System.err.println("       [--ssl-keystore keystore] [--ssl-keystore-password password]");
+		System.err.println("       [--ssl-keystore keystore] [--ssl-keystore-password password] [--http2]");
+		System.err.println("       [--ssl-protocols protocols] [--ssl-session-cache-size sessions]");
+		System.err.println("       [--ssl-session-timeout seconds] [--no-ssl-session-tickets] [--ssl-engine]");
+		System.err.println("       [--max-handshakes handshakes] [--handshake-timeout seconds]");
+		System.err.println("       [--credentials-file file]");
+		System.err.println("       [--ntlm-challenge-store address|cookie] [--ntlm-challenge-timeout seconds]");
+		System.err.println("       [--ntlm-challenge-store-size keys]");
 		System.err.println("       [--redirect-host host]");
+		System.err.println("       [--add-response-delay ms] [--add-first-byte-delay ms] [--add-chunk-delay ms]");
 		System.err.println("       <project root>");
 
 	}
 
 	public void run()
 	{
-		final ArrayList<Thread> listenerThreads = new ArrayList<Thread>();
 		final Options options = getOptionsAndConfigureLogging();
 
 		if (options == null)
@@ -65,46 +81,41 @@ public class PoxyGit
 			System.exit(1);
 		}
 
-		executorService = Executors.newFixedThreadPool(options.getMaxThreads());
+		final PoxyGitServer server;
 
 		try
 		{
-			final ServerSocket httpSocket = new ServerSocket(options.getLocalPort(), 4096,
-					InetAddress.getByName(options.getLocalAddress()));
-			listenerThreads.add(new Thread(new SocketListener(httpSocket, executorService, options)));
-
-			if (options.getLocalSSLPort() != 0)
-			{
-				final SSLContext sslContext = configureSSL(options);
-				final ServerSocket httpsSocket = new ServerSocket(options.getLocalSSLPort(), 4096,
-						InetAddress.getByName(options.getLocalAddress()));
-				listenerThreads
-						.add(new Thread(new SSLSocketListener(httpsSocket, executorService, options, sslContext)));
-			}
+			server = PoxyGitServer.builder(options).start();
 		}
 		catch (GeneralSecurityException e)
 		{
 			logger.write(LogLevel.FATAL, "Could not configure SSL", e);
 			System.exit(1);
+			return;
 		}
 		catch (IOException e)
 		{
 			logger.write(LogLevel.FATAL, "Could not start server", e);
 			System.exit(1);
+			return;
 		}
 
-		for (Thread t : listenerThreads)
+		/*
+		 * On SIGTERM or SIGINT, drain before exiting so that requests in progress
+		 * (like a clone) complete.
+		 */
+		Runtime.getRuntime().addShutdownHook(new Thread("PoxyGit-shutdown")
 		{
-			t.start();
-		}
+			@Override
+			public void run()
+			{
+				server.close();
+			}
+		});
 
 		try
 		{
-
-			for (Thread t : listenerThreads)
-			{
-				t.join();
-			}
+			server.join();
 		}
 		catch (InterruptedException e)
 		{
@@ -113,35 +124,6 @@ public class PoxyGit
 		}
 	}
 
-	private SSLContext configureSSL(Options options) throws GeneralSecurityException
-	{
-		final SSLContext sslContext = SSLContext.getInstance("TLSv1.2");
-
-		if (options.getSSLKeystoreFile() != null)
-		{
-
-			try
-			{
-				final KeyManagerFactory keyManagerFactory = KeyManagerFactory
-						.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-				final KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
-
-				keyStore.load(new FileInputStream(options.getSSLKeystoreFile()),
-						options.getSSLKeystorePassword().toCharArray());
-
-				keyManagerFactory.init(keyStore, options.getSSLKeystorePassword().toCharArray());
-
-				sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
-			}
-			catch (IOException e)
-			{
-				throw new GeneralSecurityException("Could not open keystore file", e);
-			}
-		}
-
-		return sslContext;
-	}
-
 	/**
 	 * Parses options and configures the logging (with debug enabled if that option
 	 * was set).
@@ -160,23 +142,33 @@ public class PoxyGit
 
 				/* SSL configuration */
 				new Option("ssl-port", 's', true), new Option("ssl-keystore", true),
-				new Option("ssl-keystore-password", true),
+				new Option("ssl-keystore-password", true), new Option("http2"),
+				new Option("ssl-protocols", true), new Option("ssl-session-cache-size", true),
+				new Option("ssl-session-timeout", true), new Option("no-ssl-session-tickets"), new Option("ssl-engine"),
+				new Option("max-handshakes", true), new Option("handshake-timeout", true),
 
 				/* No output, or verbose/debugging output */
 				new Option("quiet", 'q'), new Option("debug", 'd'), new Option("trace"),
+				new Option("log-overflow", true), new Option("access-log", true), new Option("jfr", true),
+				new Option("server-timing"), new Option("admin-shutdown"), new Option("drain-timeout", true),
 
 				/* IO */
 				new Option("max-threads", true), new Option("connect-timeout", true),
-				new Option("socket-read-timeout", true),
+				new Option("socket-read-timeout", true), new Option("keep-alive-timeout", true),
+				new Option("max-keep-alive-requests", true), new Option("header-timeout", true),
+				new Option("body-timeout", true), new Option("min-body-rate", true),
 
 				/* Authentication */
-				new Option("credentials", true, true),
+				new Option("credentials", true, true), new Option("credentials-file", true),
+				new Option("ntlm-challenge-store", true),
+				new Option("ntlm-challenge-timeout", true, "60"), new Option("ntlm-challenge-store-size", true, "10000"),
 				
 				/* Redirects */
 				new Option("redirect-host", true),
 
 				/* Debugging aids */
-				new Option("add-response-delay", true, "0") };
+				new Option("add-response-delay", true, "0"), new Option("add-first-byte-delay", true, "0"),
+				new Option("add-chunk-delay", true, "0") };
 
 		final GetOptions getOptions = new GetOptions(availableOptions);
 
@@ -198,6 +190,22 @@ public class PoxyGit
 			return null;
 		}
 
+		// Log overflow
+		if (getOptions.getArgument("log-overflow") != null)
+		{
+
+			try
+			{
+				Logger.setOverflowPolicy(OverflowPolicy.byName(getOptions.getArgument("log-overflow")));
+			}
+			catch (IllegalArgumentException e)
+			{
+				System.err.println(e.getMessage());
+				usage();
+				return null;
+			}
+		}
+
 		Options gitOptions = new Options();
 		gitOptions.setProjectRoot(getOptions.getFreeArguments().get(0));
 
@@ -250,11 +258,36 @@ public class PoxyGit
 				gitOptions.setSSLKeystorePassword(getOptions.getArgument("ssl-keystore-password"));
 			}
 
+			if (getOptions.getArgument("ssl-protocols") != null)
+			{
+				gitOptions.setSSLProtocols(getOptions.getArgument("ssl-protocols").split(","));
+			}
+
+			if (getOptions.getArgument("ssl-session-cache-size") != null)
+			{
+				gitOptions.setSSLSessionCacheSize(Integer.parseInt(getOptions.getArgument("ssl-session-cache-size")));
+			}
+
+			if (getOptions.getArgument("ssl-session-timeout") != null)
+			{
+				gitOptions.setSSLSessionTimeoutSeconds(Integer.parseInt(getOptions.getArgument("ssl-session-timeout")));
+			}
+
 			if (getOptions.getArgument("max-threads") != null)
 			{
 				gitOptions.setMaxThreads(Integer.parseInt(getOptions.getArgument("max-threads")));
 			}
 
+			if (getOptions.getArgument("max-handshakes") != null)
+			{
+				gitOptions.setMaxHandshakes(Integer.parseInt(getOptions.getArgument("max-handshakes")));
+			}
+
+			if (getOptions.getArgument("handshake-timeout") != null)
+			{
+				gitOptions.setHandshakeTimeoutSeconds(Integer.parseInt(getOptions.getArgument("handshake-timeout")));
+			}
+
 			if (getOptions.getArgument("connect-timeout") != null)
 			{
 				gitOptions.setConnectTimeoutSeconds(Integer.parseInt(getOptions.getArgument("connect-timeout")));
@@ -265,15 +298,64 @@ public class PoxyGit
 				gitOptions.setSocketReadTimeoutSeconds(Integer.parseInt(getOptions.getArgument("socket-read-timeout")));
 			}
 
+			if (getOptions.getArgument("keep-alive-timeout") != null)
+			{
+				gitOptions.setKeepAliveTimeoutSeconds(Integer.parseInt(getOptions.getArgument("keep-alive-timeout")));
+			}
+
+			if (getOptions.getArgument("max-keep-alive-requests") != null)
+			{
+				gitOptions.setMaxKeepAliveRequests(Integer.parseInt(getOptions.getArgument("max-keep-alive-requests")));
+			}
+
+			if (getOptions.getArgument("header-timeout") != null)
+			{
+				gitOptions.setRequestHeaderTimeoutSeconds(Integer.parseInt(getOptions.getArgument("header-timeout")));
+			}
+
+			if (getOptions.getArgument("body-timeout") != null)
+			{
+				gitOptions.setRequestBodyTimeoutSeconds(Integer.parseInt(getOptions.getArgument("body-timeout")));
+			}
+
+			if (getOptions.getArgument("min-body-rate") != null)
+			{
+				gitOptions.setMinRequestBodyRate(Integer.parseInt(getOptions.getArgument("min-body-rate")));
+			}
+
+			if (getOptions.getArgument("drain-timeout") != null)
+			{
+				gitOptions.setDrainTimeoutSeconds(Integer.parseInt(getOptions.getArgument("drain-timeout")));
+			}
+
 			if (getOptions.getArgument("add-response-delay") != null)
 			{
 				gitOptions.setResponseDelayMilliseconds(Integer.parseInt(getOptions.getArgument("add-response-delay")));
 			}
+
+			if (getOptions.getArgument("add-first-byte-delay") != null)
+			{
+				gitOptions.setFirstByteDelayMilliseconds(
+						Integer.parseInt(getOptions.getArgument("add-first-byte-delay")));
+			}
+
+			if (getOptions.getArgument("add-chunk-delay") != null)
+			{
+				gitOptions.setChunkDelayMilliseconds(Integer.parseInt(getOptions.getArgument("add-chunk-delay")));
+			}
 			
 			if (getOptions.getArgument("redirect-host") != null)
 			{
 				gitOptions.setRedirectHost(getOptions.getArgument("redirect-host"));
 			}
+
+			if (getOptions.getArgument("ntlm-challenge-store") != null)
+			{
+				gitOptions.setNTLMChallengeStore(new NTLMChallengeStore(
+						NTLMChallengeStore.KeyType.byName(getOptions.getArgument("ntlm-challenge-store")),
+						Integer.parseInt(getOptions.getArgument("ntlm-challenge-store-size")),
+						Integer.parseInt(getOptions.getArgument("ntlm-challenge-timeout"))));
+			}
 		}
 		catch (NumberFormatException e)
 		{
@@ -281,11 +363,90 @@ public class PoxyGit
 			usage();
 			return null;
 		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println(e.getMessage());
+			usage();
+			return null;
+		}
+
+		// Server-Timing
+		if (getOptions.getArguments().get("server-timing") != null)
+		{
+			gitOptions.setServerTiming(true);
+		}
+
+		if (getOptions.getArguments().get("admin-shutdown") != null)
+		{
+			gitOptions.setAdminShutdown(true);
+		}
+
+		if (getOptions.getArguments().get("http2") != null)
+		{
+			gitOptions.setHttp2(true);
+		}
+
+		if (getOptions.getArguments().get("no-ssl-session-tickets") != null)
+		{
+			gitOptions.setSSLSessionTickets(false);
+		}
+
+		if (getOptions.getArguments().get("ssl-engine") != null)
+		{
+			gitOptions.setSSLEngine(true);
+		}
+
+		// Access log
+		if (getOptions.getArgument("access-log") != null)
+		{
+
+			try
+			{
+				gitOptions.setAccessLog(new AccessLog(getOptions.getArgument("access-log")));
+			}
+			catch (IOException e)
+			{
+				System.err.println("Could not open access log: " + e.getMessage());
+				usage();
+				return null;
+			}
+		}
+
+		// Flight recording
+		if (getOptions.getArgument("jfr") != null)
+		{
+
+			try
+			{
+				JFR.startRecording(getOptions.getArgument("jfr"));
+			}
+			catch (Exception e)
+			{
+				System.err.println("Could not start flight recording: " + e.getMessage());
+				usage();
+				return null;
+			}
+		}
 
 		// Authentication options
-		if (getOptions.getArgument("credentials") != null)
+		try
+		{
+
+			if (getOptions.getArgument("credentials") != null)
+			{
+				gitOptions.setCredentials(getOptions.getArguments("credentials"));
+			}
+
+			if (getOptions.getArgument("credentials-file") != null)
+			{
+				gitOptions.getCredentialStore().watch(new File(getOptions.getArgument("credentials-file")));
+			}
+		}
+		catch (Exception e)
 		{
-			gitOptions.setCredentials(getOptions.getArguments("credentials"));
+			System.err.println("Could not configure credentials: " + e.getMessage());
+			usage();
+			return null;
 		}
 
 		return gitOptions;
@@ -0,0 +1,445 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+
+import com.edwardthomson.poxygit.logger.LogLevel;
+import com.edwardthomson.poxygit.logger.Logger;
+
+/**
+ * A server that can be started and closed programmatically, for instance from
+ * a test suite. Each server has its own {@link Options} (which hold its
+ * credentials and metrics), so several can run in one JVM on ephemeral ports:
+ *
+ * <pre>
+ * try (PoxyGitServer server = PoxyGitServer.builder(options).port(0).sslPort(0).start())
+ * {
+ *     String url = "http://localhost:" + server.getPort() + "/anonymous/repo.git";
+ *     ...
+ * }
+ * </pre>
+ */
+public class PoxyGitServer implements Closeable
+{
+	private static final Logger logger = Logger.getLogger(PoxyGitServer.class);
+
+	/* Read by the JDK (13 and later) when its first TLS context is created */
+	private static final String SESSION_TICKETS_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+
+	private final Options options;
+	private final int requestedPort;
+	private final int requestedSSLPort;
+	private final SSLContext sslContext;
+	private final long drainTimeoutMilliseconds;
+
+	private final ConnectionTracker connections = new ConnectionTracker(this);
+	private final List<ServerSocket> serverSockets = new ArrayList<ServerSocket>();
+	private final List<Thread> listenerThreads = new ArrayList<Thread>();
+
+	private ScheduledExecutorService executorService;
+	private ExecutorService handshakeExecutorService;
+	private int port = -1;
+	private int sslPort = -1;
+	private boolean started = false;
+	private boolean closed = false;
+	private boolean closeComplete = false;
+
+	public static Builder builder(Options options)
+	{
+		return new Builder(options);
+	}
+
+	public static class Builder
+	{
+		private final Options options;
+		private int port;
+		private int sslPort;
+		private SSLContext sslContext;
+		private long drainTimeoutMilliseconds;
+
+		private Builder(Options options)
+		{
+			this.options = options;
+			this.port = options.getLocalPort();
+			this.sslPort = (options.getLocalSSLPort() != 0) ? options.getLocalSSLPort() : -1;
+			this.drainTimeoutMilliseconds = TimeUnit.SECONDS.toMillis(options.getDrainTimeoutSeconds());
+		}
+
+		/**
+		 * @param port the HTTP port, or 0 for any free port
+		 */
+		public Builder port(int port)
+		{
+			this.port = port;
+			return this;
+		}
+
+		/**
+		 * @param sslPort the HTTPS port, 0 for any free port, or -1 for no HTTPS
+		 */
+		public Builder sslPort(int sslPort)
+		{
+			this.sslPort = sslPort;
+			return this;
+		}
+
+		/**
+		 * Serves HTTPS with the given context instead of one made from the
+		 * options' keystore.
+		 */
+		public Builder sslContext(SSLContext sslContext)
+		{
+			this.sslContext = sslContext;
+			return this;
+		}
+
+		/**
+		 * @param timeout how long {@link PoxyGitServer#close()} waits for requests
+		 *                in progress before closing their connections and killing
+		 *                their git processes
+		 */
+		public Builder drainTimeout(long timeout, TimeUnit unit)
+		{
+			this.drainTimeoutMilliseconds = unit.toMillis(timeout);
+			return this;
+		}
+
+		public PoxyGitServer build()
+		{
+			return new PoxyGitServer(this);
+		}
+
+		/**
+		 * Builds and starts the server.
+		 */
+		public PoxyGitServer start() throws IOException, GeneralSecurityException
+		{
+			return build().start();
+		}
+	}
+
+	private PoxyGitServer(Builder builder)
+	{
+		this.options = builder.options;
+		this.requestedPort = builder.port;
+		this.requestedSSLPort = builder.sslPort;
+		this.sslContext = builder.sslContext;
+		this.drainTimeoutMilliseconds = builder.drainTimeoutMilliseconds;
+	}
+
+	public Options getOptions()
+	{
+		return options;
+	}
+
+	/**
+	 * Binds the ports and starts accepting connections on background threads;
+	 * returns once the ports are bound.
+	 */
+	public synchronized PoxyGitServer start() throws IOException, GeneralSecurityException
+	{
+
+		if (started)
+		{
+			throw new IllegalStateException("The server has already been started");
+		}
+
+		started = true;
+
+		/*
+		 * A scheduled pool so that connections can be resumed after a delay without
+		 * holding a thread while they wait.
+		 */
+		executorService = Executors.newScheduledThreadPool(options.getMaxThreads());
+
+		try
+		{
+			final InetAddress address = InetAddress.getByName(options.getLocalAddress());
+			final ServerSocket httpSocket = bind(address, requestedPort);
+
+			serverSockets.add(httpSocket);
+			port = httpSocket.getLocalPort();
+			listenerThreads.add(new Thread(new SocketListener(httpSocket, executorService, options, connections),
+					"SocketListener-" + port));
+
+			if (requestedSSLPort >= 0)
+			{
+				final SSLContext context = (sslContext != null) ? sslContext : createSSLContext(options);
+				final ServerSocket httpsSocket = bind(address, requestedSSLPort);
+
+				serverSockets.add(httpsSocket);
+				sslPort = httpsSocket.getLocalPort();
+
+				// Handshakes wait for these threads, rather than taking the pool's from requests
+				handshakeExecutorService = Executors.newFixedThreadPool(options.getMaxHandshakes());
+
+				listenerThreads.add(new Thread(new SSLSocketListener(httpsSocket, executorService, options,
+						connections, context, handshakeExecutorService), "SSLSocketListener-" + sslPort));
+			}
+		}
+		catch (IOException | GeneralSecurityException e)
+		{
+			close();
+			throw e;
+		}
+
+		for (Thread t : listenerThreads)
+		{
+			t.setDaemon(true);
+			t.start();
+		}
+
+		logger.write(LogLevel.DEBUG, "Listening on port {} (HTTPS {})", port, sslPort);
+		return this;
+	}
+
+	/**
+	 * Binds a server socket with a channel, so that idle connections can wait
+	 * for their next request on a selector.
+	 */
+	private ServerSocket bind(InetAddress address, int port) throws IOException
+	{
+		final ServerSocketChannel channel = ServerSocketChannel.open();
+
+		try
+		{
+			channel.socket().bind(new InetSocketAddress(address, port), 4096);
+		}
+		catch (IOException e)
+		{
+			channel.close();
+			throw e;
+		}
+
+		return channel.socket();
+	}
+
+	private static SSLContext createSSLContext(Options options) throws GeneralSecurityException
+	{
+
+		if (!options.isSSLSessionTickets())
+		{
+			System.setProperty(SESSION_TICKETS_PROPERTY, "false");
+		}
+
+		// Any version; the listener chooses which are offered
+		final SSLContext sslContext = SSLContext.getInstance("TLS");
+
+		if (options.getSSLKeystoreFile() != null)
+		{
+
+			try (InputStream keystore = new FileInputStream(options.getSSLKeystoreFile()))
+			{
+				final KeyManagerFactory keyManagerFactory = KeyManagerFactory
+						.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+				final KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+
+				keyStore.load(keystore, options.getSSLKeystorePassword().toCharArray());
+
+				keyManagerFactory.init(keyStore, options.getSSLKeystorePassword().toCharArray());
+
+				sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+			}
+			catch (IOException e)
+			{
+				throw new GeneralSecurityException("Could not open keystore file", e);
+			}
+
+			// Returning clients resume their sessions rather than doing full handshakes
+			final SSLSessionContext sessions = sslContext.getServerSessionContext();
+
+			sessions.setSessionCacheSize(options.getSSLSessionCacheSize());
+			sessions.setSessionTimeout(options.getSSLSessionTimeoutSeconds());
+		}
+
+		return sslContext;
+	}
+
+	/**
+	 * @return the HTTP port the server is listening on
+	 */
+	public int getPort()
+	{
+		return port;
+	}
+
+	/**
+	 * @return the HTTPS port the server is listening on, or -1 if it does not
+	 *         serve HTTPS
+	 */
+	public int getSSLPort()
+	{
+		return sslPort;
+	}
+
+	/**
+	 * @return the number of connections open
+	 */
+	public int getConnectionCount()
+	{
+		return connections.size();
+	}
+
+	/**
+	 * Waits until the server stops listening (when it is closed).
+	 */
+	public void join() throws InterruptedException
+	{
+
+		for (Thread t : listenerThreads)
+		{
+			t.join();
+		}
+	}
+
+	/**
+	 * Stops accepting connections, closes idle ones and waits (up to the drain
+	 * timeout) for requests in progress to complete before closing the rest and
+	 * killing any git processes still running. If the server is already closing
+	 * on another thread, waits for that to finish.
+	 */
+	@Override
+	public void close()
+	{
+
+		synchronized (this)
+		{
+
+			if (closed)
+			{
+
+				while (!closeComplete)
+				{
+
+					try
+					{
+						wait();
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+
+				return;
+			}
+
+			closed = true;
+		}
+
+		try
+		{
+			drainAndStop();
+		}
+		finally
+		{
+
+			synchronized (this)
+			{
+				closeComplete = true;
+				notifyAll();
+			}
+		}
+	}
+
+	private void drainAndStop()
+	{
+		logger.write(LogLevel.INFO, "Shutting down with {} connections open", connections.size());
+
+		for (ServerSocket serverSocket : serverSockets)
+		{
+
+			try
+			{
+				serverSocket.close();
+			}
+			catch (IOException e)
+			{
+				logger.write(LogLevel.WARNING, "Could not close server socket", e);
+			}
+		}
+
+		try
+		{
+
+			if (!connections.drain(drainTimeoutMilliseconds))
+			{
+				logger.write(LogLevel.WARNING, "Closing {} connections that did not finish draining",
+						connections.size());
+				connections.closeAll();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			connections.closeAll();
+			Thread.currentThread().interrupt();
+		}
+
+		// Handlers blocked on git don't notice that their socket was closed
+		connections.reapProcesses();
+		connections.close();
+
+		if (handshakeExecutorService != null)
+		{
+			handshakeExecutorService.shutdownNow();
+		}
+
+		if (executorService != null)
+		{
+			executorService.shutdownNow();
+
+			try
+			{
+				executorService.awaitTermination(drainTimeoutMilliseconds, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		// Its writer is a daemon thread, so write the drained requests' entries before exit
+		if (options.getAccessLog() != null)
+		{
+
+			try
+			{
+				options.getAccessLog().close();
+			}
+			catch (IOException e)
+			{
+				logger.write(LogLevel.WARNING, "Could not close access log", e);
+			}
+		}
+
+		logger.write(LogLevel.INFO, "Shut down");
+	}
+}
@@ -15,6 +15,9 @@ import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.edwardthomson.poxygit.jfr.JFR;
+import com.edwardthomson.poxygit.jfr.RequestEvent;
+import com.edwardthomson.poxygit.jfr.RequestParseEvent;
 import com.edwardthomson.poxygit.logger.LogLevel;
 import com.edwardthomson.poxygit.logger.Logger;
 
@@ -23,6 +26,13 @@ public class Request
 	private final static Logger logger = Logger.getLogger(Request.class);
 
 	private final InputStream in;
+	private final ThrottledInputStream throttler;
+	private final CountingInputStream body;
+	private final AccessLogEntry accessLogEntry = new AccessLogEntry();
+
+	/* Flight Recorder events, when available */
+	private RequestParseEvent parseEvent;
+	private RequestEvent requestEvent;
 
 	private final List<Header> headers = new ArrayList<Header>();
 	private String method;
@@ -32,6 +42,21 @@ public class Request
 	public Request(final InputStream in)
 	{
 		this.in = in;
+		this.throttler = new ThrottledInputStream(in);
+		this.body = new CountingInputStream(throttler);
+	}
+
+	public void setThrottledSpeed(double bps)
+	{
+		this.throttler.setSpeed(bps);
+	}
+
+	/**
+	 * @return the time the request body has spent stalled by throttling
+	 */
+	public long getThrottleStalledMilliseconds()
+	{
+		return throttler.getStalledMilliseconds();
 	}
 
 	/**
@@ -43,6 +68,15 @@ public class Request
 		if (readRequestLine())
 		{
 			headers.addAll(IOUtils.readHeaders(in));
+			accessLogEntry.headersRead();
+
+			if (parseEvent != null && parseEvent.shouldCommit())
+			{
+				parseEvent.method = method;
+				parseEvent.uri = uri;
+				parseEvent.headerCount = headers.size();
+				parseEvent.commit();
+			}
 
 			// Now positioned at the start of the POST data
 			return true;
@@ -52,9 +86,35 @@ public class Request
 		return false;
 	}
 
+	/**
+	 * @return the stream positioned at the start of the request body, throttled
+	 *         if {@link #setThrottledSpeed(double)} was called
+	 */
 	public InputStream getInputStream()
 	{
-		return in;
+		return body;
+	}
+
+	/**
+	 * @return the number of body bytes read from {@link #getInputStream()}
+	 */
+	public long getBodyLength()
+	{
+		return body.getCount();
+	}
+
+	public AccessLogEntry getAccessLogEntry()
+	{
+		return accessLogEntry;
+	}
+
+	/**
+	 * @return the Flight Recorder event spanning this request, or
+	 *         <code>null</code> if JFR is not available
+	 */
+	public RequestEvent getRequestEvent()
+	{
+		return requestEvent;
 	}
 
 	public String getMethod()
@@ -105,6 +165,17 @@ public class Request
 			return false;
 		}
 
+		accessLogEntry.start();
+
+		if (JFR.AVAILABLE)
+		{
+			requestEvent = new RequestEvent();
+			requestEvent.begin();
+
+			parseEvent = new RequestParseEvent();
+			parseEvent.begin();
+		}
+
 		final String[] parts = line.split(" ", 3);
 
 		if (parts.length != 3)
@@ -116,7 +187,7 @@ public class Request
 		parseURI(parts[1]);
 		parseVersion(parts[2]);
 
-		logger.write(LogLevel.DEBUG, method + " " + uri + " " + version);
+		logger.write(LogLevel.DEBUG, "{} {} {}", method, uri, version);
 
 		return true;
 	}
@@ -129,7 +200,9 @@ public class Request
 			throw new HTTPException("Empty request version");
 		}
 
-		if (!string.equals(Constants.VERSION_10) && !string.equals(Constants.VERSION_11))
+		// HTTP/2.0 is only the connection preface, or a request on an HTTP/2 stream
+		if (!string.equals(Constants.VERSION_10) && !string.equals(Constants.VERSION_11) &&
+				!string.equals(Constants.VERSION_20))
 		{
 			throw new HTTPException("Unknown version '" + string + "'");
 		}
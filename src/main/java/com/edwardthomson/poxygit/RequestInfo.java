@@ -25,7 +25,11 @@ public class RequestInfo
 		Speed9600bps("speed-9600"),
 		Speed300bps("speed-300"),
 		SpeedZeroPointFivebps("speed-0.5"),
-		SpeedZero("speed-zero");
+		SpeedZero("speed-zero"),
+		UploadSpeed9600bps("upload-speed-9600"),
+		UploadSpeed300bps("upload-speed-300"),
+		UploadSpeedZeroPointFivebps("upload-speed-0.5"),
+		UploadSpeedZero("upload-speed-zero");
 
 		private String name;
 
@@ -34,6 +38,11 @@ public class RequestInfo
 			this.name = name;
 		}
 
+		public String getName()
+		{
+			return name;
+		}
+
 		public static RequestType byName(String name)
 		{
 
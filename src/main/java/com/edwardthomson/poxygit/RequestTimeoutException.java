@@ -0,0 +1,58 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit;
+
+import java.net.SocketTimeoutException;
+
+/**
+ * Thrown when a client is too slow sending its request: it didn't finish the
+ * request head before the header deadline, or sent the body below the minimum
+ * rate.
+ */
+public class RequestTimeoutException extends SocketTimeoutException
+{
+	private static final long serialVersionUID = 4395781250186224305L;
+
+	/**
+	 * Why a connection was terminated while reading a request.
+	 */
+	public enum Reason
+	{
+		HeaderTimeout("header_timeout"),
+		BodyRate("body_rate"),
+		ReadTimeout("read_timeout");
+
+		private final String name;
+
+		private Reason(String name)
+		{
+			this.name = name;
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+	}
+
+	private final Reason reason;
+
+	public RequestTimeoutException(Reason reason, String message)
+	{
+		super(message);
+
+		this.reason = reason;
+	}
+
+	public Reason getReason()
+	{
+		return reason;
+	}
+}
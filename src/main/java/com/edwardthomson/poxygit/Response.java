@@ -32,16 +32,22 @@ public class Response
 
 	private final ThrottledOutputStream throttler;
 	private final CountingOutputStream out;
+	private final DelayedOutputStream body;
 
 	private String version;
+	private int status;
+	private long statusNanos;
 	private long contentLength = -1;
 	private List<Header> headers = new ArrayList<Header>();
 	private boolean shouldClose = false;
+	private boolean announceClose = false;
+	private boolean connectionHeaderWritten = false;
 
 	public Response(final OutputStream out, final String version)
 	{
 		this.throttler = new ThrottledOutputStream(out);
 		this.out = new CountingOutputStream(new BufferedOutputStream(throttler));
+		this.body = new DelayedOutputStream(this.out);
 		this.version = version;
 	}
 
@@ -50,6 +56,22 @@ public class Response
 		this.throttler.setSpeed(bps);
 	}
 
+	/**
+	 * @return the time the response has spent stalled by throttling
+	 */
+	public long getThrottleStalledMilliseconds()
+	{
+		return throttler.getStalledMilliseconds();
+	}
+
+	/**
+	 * Pauses the body before its first byte and between chunks.
+	 */
+	public void setBodyDelays(int firstByteDelayMilliseconds, int chunkDelayMilliseconds)
+	{
+		this.body.setDelays(firstByteDelayMilliseconds, chunkDelayMilliseconds);
+	}
+
 	public void setClose(boolean shouldClose)
 	{
 		this.shouldClose = shouldClose;
@@ -60,6 +82,17 @@ public class Response
 		return this.shouldClose;
 	}
 
+	/**
+	 * Closes the connection after this response, and tells the client so with
+	 * a <code>Connection: close</code> header (unless the handler writes its own
+	 * <code>Connection</code> header).
+	 */
+	public void announceClose()
+	{
+		this.shouldClose = true;
+		this.announceClose = true;
+	}
+
 	public String getVersion()
 	{
 		return version;
@@ -80,6 +113,24 @@ public class Response
 		return contentLength;
 	}
 
+	/**
+	 * @return the final status written, or 0 if none has been written
+	 */
+	public int getStatus()
+	{
+		return status;
+	}
+
+	/**
+	 * @return the {@link System#nanoTime()} the first body byte was written at, or
+	 *         that the status was written at if there was no body yet
+	 */
+	public long getFirstByteNanos()
+	{
+		final long firstByteNanos = body.getFirstByteNanos();
+		return firstByteNanos != 0 ? firstByteNanos : statusNanos;
+	}
+
 	public long getActualResponseBodyLength()
 	{
 		return out.getCount();
@@ -138,7 +189,7 @@ public class Response
 
 	public OutputStream getStream()
 	{
-		return out;
+		return body;
 	}
 
 	public void writeStatus(int status) throws IOException
@@ -153,8 +204,14 @@ public class Response
 
 	public void writeStatus(int status, String message, String httpVersion) throws IOException
 	{
-		final String s = MessageFormat.format("{0} {1} {2}", httpVersion, Integer.toString(status),
-				message != null ? message : Status.NAMES.get(status));
+		// Interim (1xx) responses are not the outcome of the request
+		if (status >= 200)
+		{
+			this.status = status;
+			this.statusNanos = System.nanoTime();
+		}
+
+		final String s = httpVersion + " " + status + " " + (message != null ? message : Status.NAMES.get(status));
 
 		logger.write(LogLevel.DEBUG, s);
 		writeLine(s);
@@ -177,6 +234,11 @@ public class Response
 			return;
 		}
 
+		if (h.getName().equalsIgnoreCase(Constants.CONNECTION_HEADER))
+		{
+			connectionHeaderWritten = true;
+		}
+
 		// Sanity test for the ConnectionHandler
 		if (h.getName().equalsIgnoreCase(Constants.CONTENT_LENGTH_HEADER))
 		{
@@ -196,10 +258,18 @@ public class Response
 
 	public void endHeaders() throws IOException
 	{
+
+		// Not on an interim response, which has no status recorded
+		if (announceClose && status != 0 && !connectionHeaderWritten)
+		{
+			writeLine(new Header(Constants.CONNECTION_HEADER, Constants.CONNECTION_CLOSE).toString());
+		}
+
 		writeLine("");
 
 		// Reset so we can measure response content size
 		out.resetCount();
+		body.startBody();
 	}
 
 	/**
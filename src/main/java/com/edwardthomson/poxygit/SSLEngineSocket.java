@@ -0,0 +1,729 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * A server-side TLS socket that runs an {@link SSLEngine} over an accepted
+ * socket. Unlike the JDK's socket, its handshake can be done a step at a time
+ * (see {@link #handshake(boolean)}), so that a connection can wait for the
+ * client's next flight on a selector rather than on a thread. Once the
+ * handshake is done it reads and writes like any other socket.
+ */
+class SSLEngineSocket extends SSLSocket
+{
+	private final Socket socket;
+	private final SSLEngine engine;
+	private final InputStream socketInput;
+	private final OutputStream socketOutput;
+
+	/*
+	 * Bytes read from the socket but not yet unwrapped (ready to be filled), and
+	 * unwrapped application data not yet read (ready to be drained).
+	 */
+	private ByteBuffer netInput;
+	private ByteBuffer appInput;
+	private final Object readLock = new Object();
+	private boolean inputClosed = false;
+
+	/* Records to write to the socket; closing doesn't wait for a blocked writer */
+	private ByteBuffer netOutput;
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	private final InputStream input = new EngineInputStream();
+	private final OutputStream output = new EngineOutputStream();
+
+	private boolean handshakeStarted = false;
+	private volatile boolean handshakeComplete = false;
+	private volatile boolean closed = false;
+
+	SSLEngineSocket(Socket socket, SSLEngine engine) throws IOException
+	{
+		this.socket = socket;
+		this.engine = engine;
+		this.socketInput = socket.getInputStream();
+		this.socketOutput = socket.getOutputStream();
+
+		final SSLSession session = engine.getSession();
+
+		netInput = ByteBuffer.allocate(session.getPacketBufferSize());
+		appInput = ByteBuffer.allocate(session.getApplicationBufferSize());
+		appInput.flip();
+		netOutput = ByteBuffer.allocate(session.getPacketBufferSize());
+	}
+
+	/**
+	 * Does as much of the handshake as can be done without waiting for the
+	 * client.
+	 *
+	 * @param readable whether the client has sent something (or closed), so
+	 *                 that one read won't block
+	 * @return <code>true</code> if the handshake is complete, or
+	 *         <code>false</code> if it needs more from the client
+	 */
+	boolean handshake(boolean readable) throws IOException
+	{
+
+		synchronized (readLock)
+		{
+			boolean mayRead = readable;
+
+			if (!handshakeStarted)
+			{
+				engine.beginHandshake();
+				handshakeStarted = true;
+			}
+
+			while (true)
+			{
+
+				switch (engine.getHandshakeStatus())
+				{
+				case NOT_HANDSHAKING:
+				case FINISHED:
+					handshakeComplete = true;
+					return true;
+
+				case NEED_TASK:
+					runDelegatedTasks();
+					break;
+
+				case NEED_WRAP:
+					wrap(ByteBuffer.allocate(0));
+					break;
+
+				default:
+
+					if (unwrap())
+					{
+						break;
+					}
+
+					if (!mayRead && socketInput.available() == 0)
+					{
+						return false;
+					}
+
+					if (!fill())
+					{
+						throw new EOFException("The client closed the connection during the TLS handshake");
+					}
+
+					mayRead = false;
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if unwrapping made progress, or
+	 *         <code>false</code> if more must be read from the socket first
+	 */
+	private boolean unwrap() throws IOException
+	{
+		netInput.flip();
+		appInput.compact();
+
+		final SSLEngineResult result;
+
+		try
+		{
+			result = engine.unwrap(netInput, appInput);
+		}
+		finally
+		{
+			netInput.compact();
+			appInput.flip();
+		}
+
+		switch (result.getStatus())
+		{
+		case BUFFER_UNDERFLOW:
+
+			if (netInput.position() == netInput.capacity())
+			{
+				netInput = grow(netInput, engine.getSession().getPacketBufferSize(), true);
+			}
+
+			return false;
+
+		case BUFFER_OVERFLOW:
+			appInput = grow(appInput, engine.getSession().getApplicationBufferSize(), false);
+			return true;
+
+		case CLOSED:
+			inputClosed = true;
+			return true;
+
+		default:
+			break;
+		}
+
+		// Post-handshake messages (like a key update) may need an answer
+		if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK)
+		{
+			runDelegatedTasks();
+		}
+
+		if (handshakeComplete && engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP)
+		{
+			wrap(ByteBuffer.allocate(0));
+		}
+
+		return true;
+	}
+
+	/**
+	 * Reads what the client has sent, blocking if it has sent nothing.
+	 *
+	 * @return <code>false</code> at the end of the stream
+	 */
+	private boolean fill() throws IOException
+	{
+		final int read = socketInput.read(netInput.array(), netInput.arrayOffset() + netInput.position(),
+				netInput.remaining());
+
+		if (read < 0)
+		{
+			return false;
+		}
+
+		netInput.position(netInput.position() + read);
+		return true;
+	}
+
+	/**
+	 * Wraps (all of) <code>source</code> into records and writes them.
+	 */
+	private void wrap(ByteBuffer source) throws IOException
+	{
+		writeLock.lock();
+
+		try
+		{
+
+			while (true)
+			{
+				netOutput.clear();
+
+				final SSLEngineResult result = engine.wrap(source, netOutput);
+
+				if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+				{
+					netOutput = ByteBuffer.allocate(netOutput.capacity() + engine.getSession().getPacketBufferSize());
+					continue;
+				}
+				else if (result.getStatus() == SSLEngineResult.Status.CLOSED && source.hasRemaining())
+				{
+					throw new SocketException("Socket is closed");
+				}
+
+				socketOutput.write(netOutput.array(), netOutput.arrayOffset(), netOutput.position());
+
+				if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK)
+				{
+					runDelegatedTasks();
+				}
+
+				if (!source.hasRemaining())
+				{
+					break;
+				}
+			}
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+	}
+
+	private void runDelegatedTasks()
+	{
+
+		for (Runnable task = engine.getDelegatedTask(); task != null; task = engine.getDelegatedTask())
+		{
+			task.run();
+		}
+	}
+
+	private static ByteBuffer grow(ByteBuffer buffer, int size, boolean filling)
+	{
+		final ByteBuffer grown = ByteBuffer.allocate(buffer.capacity() + size);
+
+		if (filling)
+		{
+			buffer.flip();
+		}
+
+		grown.put(buffer);
+
+		if (!filling)
+		{
+			grown.flip();
+		}
+
+		return grown;
+	}
+
+	/**
+	 * Unwraps records until there is application data to read.
+	 *
+	 * @return <code>false</code> at the end of the stream
+	 */
+	private boolean readApplicationData() throws IOException
+	{
+
+		if (!handshakeComplete)
+		{
+			startHandshake();
+		}
+
+		while (!appInput.hasRemaining())
+		{
+
+			if (inputClosed || (!unwrap() && !fill()))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private class EngineInputStream extends InputStream
+	{
+		@Override
+		public int read() throws IOException
+		{
+
+			synchronized (readLock)
+			{
+				return readApplicationData() ? (appInput.get() & 0xff) : -1;
+			}
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+
+			if (len == 0)
+			{
+				return 0;
+			}
+
+			synchronized (readLock)
+			{
+
+				if (!readApplicationData())
+				{
+					return -1;
+				}
+
+				final int read = Math.min(len, appInput.remaining());
+
+				appInput.get(b, off, read);
+				return read;
+			}
+		}
+
+		/**
+		 * @return the application data that can be read without blocking,
+		 *         unwrapping any whole records that have already been read
+		 */
+		@Override
+		public int available() throws IOException
+		{
+
+			synchronized (readLock)
+			{
+
+				while (handshakeComplete && !appInput.hasRemaining() && !inputClosed && netInput.position() > 0)
+				{
+
+					if (!unwrap())
+					{
+						break;
+					}
+				}
+
+				return appInput.remaining();
+			}
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			SSLEngineSocket.this.close();
+		}
+	}
+
+	private class EngineOutputStream extends OutputStream
+	{
+		@Override
+		public void write(int b) throws IOException
+		{
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+
+			if (!handshakeComplete)
+			{
+				startHandshake();
+			}
+
+			wrap(ByteBuffer.wrap(b, off, len));
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			socketOutput.flush();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			SSLEngineSocket.this.close();
+		}
+	}
+
+	/**
+	 * Completes the handshake, waiting on this thread for the client.
+	 */
+	@Override
+	public void startHandshake() throws IOException
+	{
+
+		while (!handshake(true))
+		{
+			// Each step may block reading until the client sends more
+		}
+	}
+
+	@Override
+	public InputStream getInputStream()
+	{
+		return input;
+	}
+
+	@Override
+	public OutputStream getOutputStream()
+	{
+		return output;
+	}
+
+	@Override
+	public SSLSession getSession()
+	{
+		return engine.getSession();
+	}
+
+	@Override
+	public SSLSession getHandshakeSession()
+	{
+		return engine.getHandshakeSession();
+	}
+
+	@Override
+	public String getApplicationProtocol()
+	{
+		return engine.getApplicationProtocol();
+	}
+
+	@Override
+	public String getHandshakeApplicationProtocol()
+	{
+		return engine.getHandshakeApplicationProtocol();
+	}
+
+	@Override
+	public SSLParameters getSSLParameters()
+	{
+		return engine.getSSLParameters();
+	}
+
+	@Override
+	public void setSSLParameters(SSLParameters parameters)
+	{
+		engine.setSSLParameters(parameters);
+	}
+
+	@Override
+	public String[] getSupportedCipherSuites()
+	{
+		return engine.getSupportedCipherSuites();
+	}
+
+	@Override
+	public String[] getEnabledCipherSuites()
+	{
+		return engine.getEnabledCipherSuites();
+	}
+
+	@Override
+	public void setEnabledCipherSuites(String[] suites)
+	{
+		engine.setEnabledCipherSuites(suites);
+	}
+
+	@Override
+	public String[] getSupportedProtocols()
+	{
+		return engine.getSupportedProtocols();
+	}
+
+	@Override
+	public String[] getEnabledProtocols()
+	{
+		return engine.getEnabledProtocols();
+	}
+
+	@Override
+	public void setEnabledProtocols(String[] protocols)
+	{
+		engine.setEnabledProtocols(protocols);
+	}
+
+	@Override
+	public void addHandshakeCompletedListener(HandshakeCompletedListener listener)
+	{
+		throw new UnsupportedOperationException("Handshake listeners are not supported");
+	}
+
+	@Override
+	public void removeHandshakeCompletedListener(HandshakeCompletedListener listener)
+	{
+		throw new UnsupportedOperationException("Handshake listeners are not supported");
+	}
+
+	@Override
+	public void setUseClientMode(boolean mode)
+	{
+		engine.setUseClientMode(mode);
+	}
+
+	@Override
+	public boolean getUseClientMode()
+	{
+		return engine.getUseClientMode();
+	}
+
+	@Override
+	public void setNeedClientAuth(boolean need)
+	{
+		engine.setNeedClientAuth(need);
+	}
+
+	@Override
+	public boolean getNeedClientAuth()
+	{
+		return engine.getNeedClientAuth();
+	}
+
+	@Override
+	public void setWantClientAuth(boolean want)
+	{
+		engine.setWantClientAuth(want);
+	}
+
+	@Override
+	public boolean getWantClientAuth()
+	{
+		return engine.getWantClientAuth();
+	}
+
+	@Override
+	public void setEnableSessionCreation(boolean flag)
+	{
+		engine.setEnableSessionCreation(flag);
+	}
+
+	@Override
+	public boolean getEnableSessionCreation()
+	{
+		return engine.getEnableSessionCreation();
+	}
+
+	@Override
+	public void setSoTimeout(int timeout) throws SocketException
+	{
+		socket.setSoTimeout(timeout);
+	}
+
+	@Override
+	public int getSoTimeout() throws SocketException
+	{
+		return socket.getSoTimeout();
+	}
+
+	@Override
+	public void setTcpNoDelay(boolean on) throws SocketException
+	{
+		socket.setTcpNoDelay(on);
+	}
+
+	@Override
+	public boolean getTcpNoDelay() throws SocketException
+	{
+		return socket.getTcpNoDelay();
+	}
+
+	@Override
+	public InetAddress getInetAddress()
+	{
+		return socket.getInetAddress();
+	}
+
+	@Override
+	public int getPort()
+	{
+		return socket.getPort();
+	}
+
+	@Override
+	public SocketAddress getRemoteSocketAddress()
+	{
+		return socket.getRemoteSocketAddress();
+	}
+
+	@Override
+	public InetAddress getLocalAddress()
+	{
+		return socket.getLocalAddress();
+	}
+
+	@Override
+	public int getLocalPort()
+	{
+		return socket.getLocalPort();
+	}
+
+	@Override
+	public SocketAddress getLocalSocketAddress()
+	{
+		return socket.getLocalSocketAddress();
+	}
+
+	@Override
+	public boolean isConnected()
+	{
+		return socket.isConnected();
+	}
+
+	@Override
+	public boolean isInputShutdown()
+	{
+		return socket.isInputShutdown();
+	}
+
+	@Override
+	public boolean isOutputShutdown()
+	{
+		return socket.isOutputShutdown();
+	}
+
+	@Override
+	public void shutdownInput() throws IOException
+	{
+		socket.shutdownInput();
+	}
+
+	/**
+	 * Sends <code>close_notify</code>, then closes the sending side.
+	 */
+	@Override
+	public void shutdownOutput() throws IOException
+	{
+		engine.closeOutbound();
+
+		if (handshakeStarted)
+		{
+			wrap(ByteBuffer.allocate(0));
+		}
+
+		socket.shutdownOutput();
+	}
+
+	@Override
+	public boolean isClosed()
+	{
+		return closed;
+	}
+
+	/**
+	 * Sends <code>close_notify</code> (unless a write is blocked) and closes the
+	 * socket.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+
+		if (closed)
+		{
+			return;
+		}
+
+		closed = true;
+
+		try
+		{
+
+			if (handshakeComplete && !socket.isOutputShutdown() && writeLock.tryLock())
+			{
+
+				try
+				{
+					engine.closeOutbound();
+					wrap(ByteBuffer.allocate(0));
+				}
+				finally
+				{
+					writeLock.unlock();
+				}
+			}
+		}
+		catch (IOException | IllegalStateException e)
+		{
+			// The client has gone
+		}
+		finally
+		{
+			socket.close();
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "SSLEngineSocket[" + socket + "]";
+	}
+}
@@ -11,32 +11,116 @@ package com.edwardthomson.poxygit;
 
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLSocket;
 
+import com.edwardthomson.poxygit.http2.HTTP2Session;
+
 public class SSLSocketListener extends SocketListener
 {
 	private final SSLContext sslContext;
+	private final String[] protocols;
+	private final ExecutorService handshakeExecutorService;
 
-	public SSLSocketListener(ServerSocket serverSocket, ExecutorService executorService, Options options,
-			SSLContext sslContext)
+	/**
+	 * @param handshakeExecutorService the (bounded) executor that connections'
+	 *                                 TLS handshakes run on
+	 */
+	public SSLSocketListener(ServerSocket serverSocket, ScheduledExecutorService executorService, Options options,
+			ConnectionTracker connections, SSLContext sslContext, ExecutorService handshakeExecutorService)
+			throws GeneralSecurityException
 	{
-		super(serverSocket, executorService, options);
+		super(serverSocket, executorService, options, connections);
 
 		this.sslContext = sslContext;
+		this.protocols = getProtocols(options, sslContext);
+		this.handshakeExecutorService = handshakeExecutorService;
+	}
+
+	/**
+	 * Handshakes on the handshake executor, once the client has sent the start
+	 * of its handshake; the connection moves to the pool once its handshake is
+	 * complete.
+	 */
+	@Override
+	protected void start(Connection connection)
+	{
+		connection.setHandshakeExecutorService(handshakeExecutorService);
+
+		if (!connection.parkUntilHandshake())
+		{
+			handshakeExecutorService.execute(connection);
+		}
 	}
 
 	@Override
-	protected Socket accept() throws Exception
+	protected Socket layer(Socket rawSocket) throws Exception
 	{
-		Socket rawSocket = getServerSocket().accept();
 
+		// The handshake can wait for the client on a selector
+		if (getOptions().isSSLEngine() && rawSocket.getChannel() != null)
+		{
+			final SSLEngine engine = sslContext.createSSLEngine();
+
+			engine.setUseClientMode(false);
+			engine.setSSLParameters(configure(engine.getSSLParameters()));
+
+			return new SSLEngineSocket(rawSocket, engine);
+		}
+
+		// Closing the SSL socket closes the accepted socket
 		final SSLSocket sslSocket = (SSLSocket) sslContext.getSocketFactory().createSocket(rawSocket, null,
-				rawSocket.getPort(), false);
+				rawSocket.getPort(), true);
 		sslSocket.setUseClientMode(false);
+		sslSocket.setSSLParameters(configure(sslSocket.getSSLParameters()));
 
 		return sslSocket;
 	}
+
+	private SSLParameters configure(SSLParameters parameters)
+	{
+		parameters.setProtocols(protocols);
+
+		if (getOptions().isHttp2())
+		{
+			parameters.setApplicationProtocols(new String[] { HTTP2Session.ALPN_PROTOCOL, "http/1.1" });
+		}
+
+		return parameters;
+	}
+
+	/**
+	 * @return the protocol versions in the options that the context supports
+	 */
+	private static String[] getProtocols(Options options, SSLContext sslContext) throws GeneralSecurityException
+	{
+		final List<String> supported = Arrays.asList(sslContext.getSupportedSSLParameters().getProtocols());
+		final List<String> protocols = new ArrayList<String>();
+
+		for (String protocol : options.getSSLProtocols())
+		{
+
+			if (supported.contains(protocol.trim()))
+			{
+				protocols.add(protocol.trim());
+			}
+		}
+
+		if (protocols.isEmpty())
+		{
+			throw new GeneralSecurityException(
+					"None of the TLS protocols " + Arrays.toString(options.getSSLProtocols()) + " are supported");
+		}
+
+		return protocols.toArray(new String[protocols.size()]);
+	}
 }
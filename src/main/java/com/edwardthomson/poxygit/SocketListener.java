@@ -11,8 +11,13 @@ package com.edwardthomson.poxygit;
 
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 
+import javax.net.ssl.SSLSocket;
+
+import com.edwardthomson.poxygit.jfr.ConnectionAcceptedEvent;
+import com.edwardthomson.poxygit.jfr.JFR;
 import com.edwardthomson.poxygit.logger.LogLevel;
 import com.edwardthomson.poxygit.logger.Logger;
 
@@ -21,14 +26,17 @@ public class SocketListener implements Runnable
 	private final Logger logger = Logger.getLogger(SocketListener.class);
 
 	private final ServerSocket serverSocket;
-	private final ExecutorService executorService;
+	private final ScheduledExecutorService executorService;
 	private final Options options;
+	private final ConnectionTracker connections;
 
-	public SocketListener(ServerSocket serverSocket, ExecutorService executorService, Options options)
+	public SocketListener(ServerSocket serverSocket, ScheduledExecutorService executorService, Options options,
+			ConnectionTracker connections)
 	{
 		this.serverSocket = serverSocket;
 		this.executorService = executorService;
 		this.options = options;
+		this.connections = connections;
 	}
 
 	protected ServerSocket getServerSocket()
@@ -46,25 +54,80 @@ public class SocketListener implements Runnable
 		return serverSocket.accept();
 	}
 
+	/**
+	 * @return the socket to serve requests on, layered over an accepted socket
+	 */
+	protected Socket layer(Socket socket) throws Exception
+	{
+		return socket;
+	}
+
+	/**
+	 * Starts serving an accepted connection.
+	 *
+	 * @throws RejectedExecutionException if the server is closing
+	 */
+	protected void start(Connection connection)
+	{
+		executorService.submit(connection);
+	}
+
 	@Override
 	public final void run()
 	{
 
-		while (true)
+		while (!serverSocket.isClosed())
 		{
+			Socket socket;
 			Socket client;
 
 			try
 			{
-				client = accept();
+				socket = accept();
+				client = layer(socket);
 			}
 			catch (Exception e)
 			{
+
+				// Closed to stop listening
+				if (serverSocket.isClosed())
+				{
+					break;
+				}
+
 				logger.write(LogLevel.FATAL, "Could not accept client socket", e);
 				continue;
 			}
 
-			executorService.submit(new Connection(client, options, executorService));
+			options.getMetrics().connectionAccepted();
+
+			if (JFR.AVAILABLE)
+			{
+				final ConnectionAcceptedEvent event = new ConnectionAcceptedEvent();
+
+				if (event.shouldCommit())
+				{
+					event.remoteAddress = client.getRemoteSocketAddress().toString();
+					event.secure = (client instanceof SSLSocket);
+					event.commit();
+				}
+			}
+
+			final Connection connection = new Connection(client, socket.getChannel(), options, executorService,
+					connections);
+
+			connections.add(connection);
+
+			try
+			{
+				start(connection);
+			}
+			catch (RejectedExecutionException e)
+			{
+				// The server is closing
+				connections.remove(connection);
+				IOUtils.close(client);
+			}
 		}
 	}
 }
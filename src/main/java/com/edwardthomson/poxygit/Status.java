@@ -18,6 +18,7 @@ import java.util.Map;
 public class Status
 {
 	public static final int OK = 200;
+	public static final int ACCEPTED = 202;
 
 	public static final int MOVED_PERMANENTLY = 301;
 	public static final int FOUND = 302;
@@ -25,7 +26,9 @@ public class Status
 	public static final int BAD_REQUEST = 400;
 	public static final int NOT_FOUND = 404;
 	public static final int AUTHENTICATION_REQUIRED = 401;
+	public static final int METHOD_NOT_ALLOWED = 405;
 	public static final int PROXY_AUTHENTICATION_REQUIRED = 407;
+	public static final int REQUEST_TIMEOUT = 408;
 
 	public static final int INTERNAL_SERVER_ERROR = 500;
 	public static final int BAD_GATEWAY = 502;
@@ -35,9 +38,12 @@ public class Status
 	static
 	{
 		NAMES.put(OK, "OK");
+		NAMES.put(ACCEPTED, "Accepted");
 
 		NAMES.put(BAD_REQUEST, "Bad Request");
+		NAMES.put(METHOD_NOT_ALLOWED, "Method Not Allowed");
 		NAMES.put(PROXY_AUTHENTICATION_REQUIRED, "Proxy Authentication Required");
+		NAMES.put(REQUEST_TIMEOUT, "Request Timeout");
 
 		NAMES.put(INTERNAL_SERVER_ERROR, "Internal Server Error");
 		NAMES.put(BAD_GATEWAY, "Bad Gateway");
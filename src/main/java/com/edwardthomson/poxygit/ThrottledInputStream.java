@@ -0,0 +1,124 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads from the underlying stream no faster than the configured speed. The
+ * inverse of {@link ThrottledOutputStream}, used to throttle request bodies.
+ */
+public class ThrottledInputStream extends InputStream
+{
+	private final InputStream stream;
+	private boolean throttled = false;
+	private double bytesPerMillisecond = 0.0;
+	private long stalledMilliseconds = 0;
+
+	public ThrottledInputStream(final InputStream stream)
+	{
+		this.stream = stream;
+	}
+
+	public ThrottledInputStream(final InputStream stream, double bitsPerSecond)
+	{
+		this.stream = stream;
+		this.throttled = true;
+		this.bytesPerMillisecond = (bitsPerSecond / 8) / 1000;
+	}
+
+	public void setSpeed(double bitsPerSecond)
+	{
+		this.throttled = true;
+		this.bytesPerMillisecond = (bitsPerSecond / 8) / 1000;
+	}
+
+	/**
+	 * @return the time spent sleeping to hold the stream to its speed
+	 */
+	public long getStalledMilliseconds()
+	{
+		return stalledMilliseconds;
+	}
+
+	@Override
+	public int available() throws IOException
+	{
+		return stream.available();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		stream.close();
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		final byte[] b = new byte[1];
+
+		if (this.read(b, 0, 1) == -1)
+		{
+			return -1;
+		}
+
+		return b[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b) throws IOException
+	{
+		return this.read(b, 0, b.length);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if (!throttled || len == 0)
+		{
+			return stream.read(b, off, len);
+		}
+
+		try
+		{
+			if (bytesPerMillisecond == 0)
+			{
+				while (true)
+				{
+					stall(5000);
+				}
+			}
+			else if (bytesPerMillisecond > 1)
+			{
+				stall(1);
+
+				return stream.read(b, off, Math.min((int)this.bytesPerMillisecond, len));
+			}
+			else
+			{
+				stall((int)(1 / bytesPerMillisecond));
+
+				return stream.read(b, off, 1);
+			}
+		}
+		catch(InterruptedException e)
+		{
+			throw new IOException(e);
+		}
+	}
+
+	private void stall(long milliseconds) throws InterruptedException
+	{
+		Thread.sleep(milliseconds);
+		stalledMilliseconds += milliseconds;
+	}
+}
@@ -17,6 +17,7 @@ public class ThrottledOutputStream extends OutputStream
 	private final OutputStream stream;
 	private boolean throttled = false;
 	private double bytesPerMillisecond = 0.0;
+	private long stalledMilliseconds = 0;
 
 	public ThrottledOutputStream(final OutputStream stream)
 	{
@@ -36,6 +37,14 @@ public class ThrottledOutputStream extends OutputStream
 		this.bytesPerMillisecond = (bitsPerSecond / 8) / 1000;
 	}
 
+	/**
+	 * @return the time spent sleeping to hold the stream to its speed
+	 */
+	public long getStalledMilliseconds()
+	{
+		return stalledMilliseconds;
+	}
+
 	@Override
 	public void flush() throws IOException
 	{
@@ -79,12 +88,12 @@ public class ThrottledOutputStream extends OutputStream
 				{
 					while (true)
 					{
-						Thread.sleep(5000);
+						stall(5000);
 					}
 				}
 				else if (bytesPerMillisecond > 1)
 				{
-					Thread.sleep(1);
+					stall(1);
 
 					int chunklen = Math.min((int)this.bytesPerMillisecond, len);
 					stream.write(b, off + written, chunklen);
@@ -93,7 +102,7 @@ public class ThrottledOutputStream extends OutputStream
 					len -= chunklen;
 				}
 				else {
-					Thread.sleep((int)(1 / bytesPerMillisecond));
+					stall((int)(1 / bytesPerMillisecond));
 
 					stream.write(b, off + written, 1);
 					stream.flush();
@@ -108,4 +117,10 @@ public class ThrottledOutputStream extends OutputStream
 			throw new IOException(e);
 		}
 	}
+
+	private void stall(long milliseconds) throws InterruptedException
+	{
+		Thread.sleep(milliseconds);
+		stalledMilliseconds += milliseconds;
+	}
 }
@@ -0,0 +1,56 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit.handlers;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import com.edwardthomson.poxygit.Connection;
+import com.edwardthomson.poxygit.Constants;
+import com.edwardthomson.poxygit.Header;
+import com.edwardthomson.poxygit.Metrics;
+import com.edwardthomson.poxygit.Request;
+import com.edwardthomson.poxygit.Response;
+import com.edwardthomson.poxygit.Status;
+
+/**
+ * Serves the server's {@link Metrics} in the Prometheus text format.
+ */
+public class MetricsHandler extends RequestHandler
+{
+	public MetricsHandler(Connection connection)
+	{
+		super(connection);
+	}
+
+	@Override
+	public boolean handle(Request request, Response response) throws IOException
+	{
+		final StringBuilder metrics = new StringBuilder(8192);
+
+		connection.getOptions().getMetrics().write(metrics, connection.getExecutorService(),
+				connection.getOptions().getNTLMChallengeStore());
+
+		final byte[] body = metrics.toString().getBytes(StandardCharsets.UTF_8);
+
+		response.writeStatus(Status.OK, "OK");
+		response.writeHeader(new Header("Cache-Control", "no-cache, max-age=0, must-revalidate"));
+		response.writeHeader(new Header(Constants.CONTENT_TYPE_HEADER, Metrics.CONTENT_TYPE));
+		response.writeHeader(new Header(Constants.CONTENT_LENGTH_HEADER, Integer.toString(body.length)));
+		response.endHeaders();
+
+		if (!request.getMethod().equalsIgnoreCase(Constants.HEAD_METHOD))
+		{
+			response.getStream().write(body);
+		}
+
+		return true;
+	}
+}
@@ -10,6 +10,7 @@
 package com.edwardthomson.poxygit.handlers;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 
 import com.edwardthomson.poxygit.Connection;
@@ -41,21 +42,41 @@ public class ReferencesHandler extends RequestHandler
 	@Override
 	public boolean handle(Request request, Response response) throws IOException
 	{
+		final boolean serverTiming = connection.getOptions().isServerTiming();
+		Process proc = null;
+		InputStream advertisement = null;
+
+		/*
+		 * To report the phase timings in a header, git is started (and its first
+		 * output awaited) before the headers are written
+		 */
+		if (serverTiming)
+		{
+			proc = startGit(request, service, "--stateless-rpc", "--advertise-refs", repositoryPath);
+			advertisement = readGitFirstOutput(request, proc);
+		}
+
 		response.writeStatus(Status.OK, "OK");
 		response.writeHeader(new Header("Expires", "Fri, 01 Jan 1980 00:00:00 GMT"));
 		response.writeHeader(new Header("Pragma", "no-cache"));
 		response.writeHeader(new Header("Cache-Control", "no-cache, max-age=0, must-revalidate"));
 		response.writeHeader(new Header("Transfer-Encoding", "chunked"));
 		response.writeHeader(new Header("Content-Type", String.format("application/x-git-%s-advertisement", service)));
+		writeServerTiming(request, response);
 		response.endHeaders();
 
 		OutputStream outputStream = response.getStream();
 		IOUtils.writeChunk(outputStream, createSmartLine(String.format("# service=git-%s\n", service)));
 		IOUtils.writeChunk(outputStream, "0000");
 
-		Process proc = Runtime.getRuntime()
-				.exec(new String[] { "git", service, "--stateless-rpc", "--advertise-refs", repositoryPath });
-		IOUtils.copyStreamToChunkedStream(proc.getInputStream(), outputStream);
+		if (!serverTiming)
+		{
+			proc = startGit(request, service, "--stateless-rpc", "--advertise-refs", repositoryPath);
+			advertisement = proc.getInputStream();
+		}
+
+		pipeResponseBody(request, response, advertisement);
+		waitForGit(request, proc);
 
 		return true;
 	}
@@ -9,16 +9,34 @@
 
 package com.edwardthomson.poxygit.handlers;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.concurrent.TimeUnit;
 
+import com.edwardthomson.poxygit.AccessLogEntry;
 import com.edwardthomson.poxygit.Connection;
+import com.edwardthomson.poxygit.Constants;
+import com.edwardthomson.poxygit.Header;
+import com.edwardthomson.poxygit.IOUtils;
 import com.edwardthomson.poxygit.Request;
+import com.edwardthomson.poxygit.RequestInfo;
 import com.edwardthomson.poxygit.Response;
+import com.edwardthomson.poxygit.jfr.GitSpawnEvent;
+import com.edwardthomson.poxygit.jfr.JFR;
+import com.edwardthomson.poxygit.jfr.PipeCopyEvent;
 
 public abstract class RequestHandler
 {
+	/* How long to wait for git to exit once its output has been copied */
+	private static final long GIT_EXIT_TIMEOUT_SECONDS = 10;
+
 	protected final Connection connection;
 
+	private Process gitProcess;
+	private long gitStartNanos;
+
 	public RequestHandler(Connection connection)
 	{
 		this.connection = connection;
@@ -32,6 +50,201 @@ public abstract class RequestHandler
 	 */
 	public abstract boolean handle(Request request, Response response) throws IOException;
 
+	/**
+	 * Starts git with the given arguments, recording how long the spawn took.
+	 */
+	protected Process startGit(Request request, String... args) throws IOException
+	{
+		final String[] command = new String[args.length + 1];
+
+		command[0] = "git";
+		System.arraycopy(args, 0, command, 1, args.length);
+
+		final GitSpawnEvent event = JFR.AVAILABLE ? new GitSpawnEvent() : null;
+
+		if (event != null)
+		{
+			event.begin();
+		}
+
+		final long start = System.nanoTime();
+		final Process process = Runtime.getRuntime().exec(command);
+
+		gitStartNanos = System.nanoTime();
+		gitProcess = process;
+		connection.getConnections().addProcess(process);
+
+		if (event != null && event.shouldCommit())
+		{
+			event.command = args[0];
+			event.repository = getRepository(request);
+			event.commit();
+		}
+
+		request.getAccessLogEntry().gitSpawned(gitStartNanos - start);
+		connection.getOptions().getMetrics().gitStarted();
+		return process;
+	}
+
+	/**
+	 * Waits (briefly) for git to exit after its output has been consumed and
+	 * records its exit code.
+	 */
+	protected void waitForGit(Request request, Process process)
+	{
+		int exitCode = AccessLogEntry.NO_EXIT_CODE;
+
+		try
+		{
+
+			if (process.waitFor(GIT_EXIT_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+			{
+				exitCode = process.exitValue();
+				request.getAccessLogEntry().gitExited(exitCode);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			connection.getOptions().getMetrics().gitFinished(exitCode, System.nanoTime() - gitStartNanos);
+		}
+	}
+
+	/**
+	 * Releases the git process started for this request, killing it if the
+	 * handler didn't see it exit (because the client went away, or git didn't
+	 * exit in time) and closing its streams.
+	 */
+	public void releaseGit()
+	{
+		final Process process = gitProcess;
+
+		if (process == null)
+		{
+			return;
+		}
+
+		gitProcess = null;
+
+		if (process.isAlive())
+		{
+			process.destroyForcibly();
+		}
+
+		IOUtils.close(process.getOutputStream());
+		IOUtils.close(process.getInputStream());
+		IOUtils.close(process.getErrorStream());
+
+		connection.getConnections().removeProcess(process);
+	}
+
+	/**
+	 * Copies the request body to git's standard input.
+	 */
+	protected void pipeRequestBody(Request request, Process process) throws IOException
+	{
+		final PipeCopyEvent event = JFR.AVAILABLE ? new PipeCopyEvent() : null;
+		final long start = request.getBodyLength();
+
+		if (event != null)
+		{
+			event.begin();
+		}
+
+		IOUtils.copyHttpStreamToStream(request.getHeaders(), request.getInputStream(), process.getOutputStream());
+
+		if (event != null && event.shouldCommit())
+		{
+			event.direction = "request";
+			event.repository = getRepository(request);
+			event.bytes = request.getBodyLength() - start;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Copies git's standard output to the response body as chunks.
+	 */
+	protected void pipeResponseBody(Request request, Response response, Process process) throws IOException
+	{
+		pipeResponseBody(request, response, process.getInputStream());
+	}
+
+	/**
+	 * Copies git's output (which may start with some that was already read) to
+	 * the response.
+	 */
+	protected void pipeResponseBody(Request request, Response response, InputStream gitOutput) throws IOException
+	{
+		final PipeCopyEvent event = JFR.AVAILABLE ? new PipeCopyEvent() : null;
+		final long start = response.getActualResponseBodyLength();
+
+		if (event != null)
+		{
+			event.begin();
+		}
+
+		IOUtils.copyStreamToChunkedStream(gitOutput, response.getStream());
+
+		if (event != null && event.shouldCommit())
+		{
+			event.direction = "response";
+			event.repository = getRepository(request);
+			event.bytes = response.getActualResponseBodyLength() - start;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Waits for git's first output, so that it can be timed before the response
+	 * headers are sent; only that much is held in memory.
+	 *
+	 * @return git's output, starting with what was read
+	 */
+	protected InputStream readGitFirstOutput(Request request, Process process) throws IOException
+	{
+		final InputStream input = process.getInputStream();
+		final byte[] buf = new byte[2048];
+		final int len = input.read(buf, 0, buf.length);
+
+		if (len == -1)
+		{
+			return input;
+		}
+
+		request.getAccessLogEntry().gitFirstByte();
+		return new SequenceInputStream(new ByteArrayInputStream(buf, 0, len), input);
+	}
+
+	/**
+	 * Writes a <code>Server-Timing</code> header with the phases measured so far,
+	 * if enabled.
+	 */
+	protected void writeServerTiming(Request request, Response response) throws IOException
+	{
+
+		if (!connection.getOptions().isServerTiming())
+		{
+			return;
+		}
+
+		final String timing = request.getAccessLogEntry().getServerTiming();
+
+		if (timing != null)
+		{
+			response.writeHeader(new Header(Constants.SERVER_TIMING_HEADER, timing));
+		}
+	}
+
+	private static String getRepository(Request request)
+	{
+		final RequestInfo requestInfo = request.getAccessLogEntry().getRequestInfo();
+		return requestInfo != null ? requestInfo.getRepositoryPath() : null;
+	}
+
 	protected String createSmartLine(String data)
 	{
 		StringBuilder line = new StringBuilder();
@@ -0,0 +1,66 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit.handlers;
+
+import java.io.IOException;
+
+import com.edwardthomson.poxygit.Connection;
+import com.edwardthomson.poxygit.Constants;
+import com.edwardthomson.poxygit.Header;
+import com.edwardthomson.poxygit.Request;
+import com.edwardthomson.poxygit.Response;
+import com.edwardthomson.poxygit.Status;
+import com.edwardthomson.poxygit.UTF8Utils;
+import com.edwardthomson.poxygit.logger.LogLevel;
+import com.edwardthomson.poxygit.logger.Logger;
+
+/**
+ * Shuts the server down gracefully when it receives a <code>POST</code>: it
+ * stops accepting connections and drains the ones it has, the same as when
+ * the process is sent <code>SIGTERM</code>. Only routed when enabled in the
+ * options.
+ */
+public class ShutdownHandler extends RequestHandler
+{
+	public static final String PATH = "/_poxygit/shutdown";
+
+	private static final Logger logger = Logger.getLogger(ShutdownHandler.class);
+
+	public ShutdownHandler(Connection connection)
+	{
+		super(connection);
+	}
+
+	@Override
+	public boolean handle(Request request, Response response) throws IOException
+	{
+
+		if (!request.getMethod().equalsIgnoreCase(Constants.POST_METHOD))
+		{
+			response.writeError(Status.METHOD_NOT_ALLOWED, "Shutdown must be requested with POST");
+			return true;
+		}
+
+		logger.write(LogLevel.INFO, "Shutdown requested by {}", connection.getClient().getRemoteSocketAddress());
+
+		final byte[] body = UTF8Utils.encode("Shutting down\n");
+
+		response.writeStatus(Status.ACCEPTED, "Accepted");
+		response.writeHeader(new Header(Constants.CONNECTION_HEADER, Constants.CONNECTION_CLOSE));
+		response.writeHeader(new Header(Constants.CONTENT_LENGTH_HEADER, Integer.toString(body.length)));
+		response.endHeaders();
+		response.getStream().write(body);
+		response.flush();
+
+		connection.getConnections().requestShutdown();
+
+		return true;
+	}
+}
@@ -17,7 +17,6 @@ import java.util.zip.GZIPInputStream;
 import com.edwardthomson.poxygit.Connection;
 import com.edwardthomson.poxygit.Header;
 import com.edwardthomson.poxygit.HeaderUtils;
-import com.edwardthomson.poxygit.IOUtils;
 import com.edwardthomson.poxygit.Request;
 import com.edwardthomson.poxygit.Response;
 import com.edwardthomson.poxygit.Status;
@@ -60,19 +59,21 @@ public class UploadPackHandler extends RequestHandler
 			}
 		}
 
+		// Start git before the headers so that the spawn can be reported
+		Process proc = startGit(request, "upload-pack", "--stateless-rpc", repositoryPath);
+
 		response.writeStatus(Status.OK, "OK");
 		response.writeHeader(new Header("Expires", "Fri, 01 Jan 1980 00:00:00 GMT"));
 		response.writeHeader(new Header("Pragma", "no-cache"));
 		response.writeHeader(new Header("Cache-Control", "no-cache, max-age=0, must-revalidate"));
 		response.writeHeader(new Header("Transfer-Encoding", "chunked"));
 		response.writeHeader(new Header("Content-Type", "application/x-git-upload-pack-result"));
+		writeServerTiming(request, response);
 		response.endHeaders();
 
-		Process proc = Runtime.getRuntime()
-				.exec(new String[] { "git", "upload-pack", "--stateless-rpc", repositoryPath });
-
-		IOUtils.copyHttpStreamToStream(request.getHeaders(), request.getInputStream(), proc.getOutputStream());
-		IOUtils.copyStreamToChunkedStream(proc.getInputStream(), response.getStream());
+		pipeRequestBody(request, proc);
+		pipeResponseBody(request, response, proc);
+		waitForGit(request, proc);
 
 		return true;
 	}
@@ -0,0 +1,306 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit.http2;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.edwardthomson.poxygit.Header;
+
+/**
+ * Decodes HPACK header blocks (RFC 7541), keeping the dynamic table that the
+ * blocks on one connection share. Strings are decoded as ISO-8859-1, so that
+ * their lengths are their sizes in octets and they can be encoded back to the
+ * same bytes.
+ */
+class HPACKDecoder
+{
+	/* Each entry's size in the dynamic table counts its name, value and this */
+	private static final int ENTRY_OVERHEAD = 32;
+
+	/* The static table, indexed from 1 */
+	static final Header[] STATIC_TABLE = {
+			null,
+			new Header(":authority", ""),
+			new Header(":method", "GET"),
+			new Header(":method", "POST"),
+			new Header(":path", "/"),
+			new Header(":path", "/index.html"),
+			new Header(":scheme", "http"),
+			new Header(":scheme", "https"),
+			new Header(":status", "200"),
+			new Header(":status", "204"),
+			new Header(":status", "206"),
+			new Header(":status", "304"),
+			new Header(":status", "400"),
+			new Header(":status", "404"),
+			new Header(":status", "500"),
+			new Header("accept-charset", ""),
+			new Header("accept-encoding", "gzip, deflate"),
+			new Header("accept-language", ""),
+			new Header("accept-ranges", ""),
+			new Header("accept", ""),
+			new Header("access-control-allow-origin", ""),
+			new Header("age", ""),
+			new Header("allow", ""),
+			new Header("authorization", ""),
+			new Header("cache-control", ""),
+			new Header("content-disposition", ""),
+			new Header("content-encoding", ""),
+			new Header("content-language", ""),
+			new Header("content-length", ""),
+			new Header("content-location", ""),
+			new Header("content-range", ""),
+			new Header("content-type", ""),
+			new Header("cookie", ""),
+			new Header("date", ""),
+			new Header("etag", ""),
+			new Header("expect", ""),
+			new Header("expires", ""),
+			new Header("from", ""),
+			new Header("host", ""),
+			new Header("if-match", ""),
+			new Header("if-modified-since", ""),
+			new Header("if-none-match", ""),
+			new Header("if-range", ""),
+			new Header("if-unmodified-since", ""),
+			new Header("last-modified", ""),
+			new Header("link", ""),
+			new Header("location", ""),
+			new Header("max-forwards", ""),
+			new Header("proxy-authenticate", ""),
+			new Header("proxy-authorization", ""),
+			new Header("range", ""),
+			new Header("referer", ""),
+			new Header("refresh", ""),
+			new Header("retry-after", ""),
+			new Header("server", ""),
+			new Header("set-cookie", ""),
+			new Header("strict-transport-security", ""),
+			new Header("transfer-encoding", ""),
+			new Header("user-agent", ""),
+			new Header("vary", ""),
+			new Header("via", ""),
+			new Header("www-authenticate", "")
+	};
+
+	/* Oldest first, so the most recently added entry has the lowest index */
+	private final List<Header> dynamicTable = new ArrayList<Header>();
+	private int dynamicTableSize = 0;
+	private int maxDynamicTableSize = HTTP2Constants.DEFAULT_HEADER_TABLE_SIZE;
+
+	private final int maxHeaderListSize;
+
+	/* The block being decoded */
+	private byte[] block;
+	private int position;
+	private int limit;
+
+	/**
+	 * @param maxHeaderListSize the largest decoded header list to accept,
+	 *                          counted as names and values plus 32 bytes for
+	 *                          each header
+	 */
+	HPACKDecoder(int maxHeaderListSize)
+	{
+		this.maxHeaderListSize = maxHeaderListSize;
+	}
+
+	List<Header> decode(final byte[] block, final int offset, final int length) throws HTTP2Exception
+	{
+		final List<Header> headers = new ArrayList<Header>();
+		int headerListSize = 0;
+
+		this.block = block;
+		this.position = offset;
+		this.limit = offset + length;
+
+		while (position < limit)
+		{
+			final int b = block[position] & 0xFF;
+			final Header header;
+
+			if ((b & 0x80) != 0)
+			{
+				// Indexed header field
+				header = getIndexed(readInteger(7));
+			}
+			else if ((b & 0xC0) == 0x40)
+			{
+				// Literal header field with incremental indexing
+				header = readLiteral(6);
+				add(header);
+			}
+			else if ((b & 0xE0) == 0x20)
+			{
+				// Dynamic table size update
+				final int size = readInteger(5);
+
+				if (size > HTTP2Constants.DEFAULT_HEADER_TABLE_SIZE)
+				{
+					throw new HTTP2Exception(HTTP2Constants.COMPRESSION_ERROR, "Table size " + size + " too large");
+				}
+
+				maxDynamicTableSize = size;
+				evict(0);
+				continue;
+			}
+			else
+			{
+				// Literal header field without indexing, or never indexed
+				header = readLiteral(4);
+			}
+
+			headerListSize += entrySize(header);
+
+			if (headerListSize > maxHeaderListSize)
+			{
+				throw new HTTP2Exception(HTTP2Constants.PROTOCOL_ERROR, "Header list too large");
+			}
+
+			headers.add(header);
+		}
+
+		this.block = null;
+		return headers;
+	}
+
+	private Header getIndexed(int index) throws HTTP2Exception
+	{
+
+		if (index > 0 && index < STATIC_TABLE.length)
+		{
+			return STATIC_TABLE[index];
+		}
+
+		final int dynamicIndex = dynamicTable.size() - 1 - (index - STATIC_TABLE.length);
+
+		if (index == 0 || dynamicIndex < 0)
+		{
+			throw new HTTP2Exception(HTTP2Constants.COMPRESSION_ERROR, "Invalid header table index " + index);
+		}
+
+		return dynamicTable.get(dynamicIndex);
+	}
+
+	private Header readLiteral(int prefixBits) throws HTTP2Exception
+	{
+		final int nameIndex = readInteger(prefixBits);
+		final String name = (nameIndex == 0) ? readString() : getIndexed(nameIndex).getName();
+
+		return new Header(name, readString());
+	}
+
+	private void add(Header header)
+	{
+		final int size = entrySize(header);
+
+		evict(size);
+
+		// An entry larger than the table empties it, and isn't added
+		if (size <= maxDynamicTableSize)
+		{
+			dynamicTable.add(header);
+			dynamicTableSize += size;
+		}
+	}
+
+	/**
+	 * Evicts the oldest entries until there is room for an entry of the given
+	 * size.
+	 */
+	private void evict(int size)
+	{
+
+		while (!dynamicTable.isEmpty() && dynamicTableSize + size > maxDynamicTableSize)
+		{
+			dynamicTableSize -= entrySize(dynamicTable.remove(0));
+		}
+	}
+
+	private static int entrySize(Header header)
+	{
+		return header.getName().length() + header.getValue().length() + ENTRY_OVERHEAD;
+	}
+
+	private int readInteger(int prefixBits) throws HTTP2Exception
+	{
+		final int mask = (1 << prefixBits) - 1;
+		int value = readByte() & mask;
+
+		if (value < mask)
+		{
+			return value;
+		}
+
+		int shift = 0;
+		int b;
+
+		do
+		{
+			b = readByte();
+
+			if (shift > 21)
+			{
+				throw new HTTP2Exception(HTTP2Constants.COMPRESSION_ERROR, "Integer too large");
+			}
+
+			value += (b & 0x7F) << shift;
+			shift += 7;
+		}
+		while ((b & 0x80) != 0);
+
+		return value;
+	}
+
+	private String readString() throws HTTP2Exception
+	{
+
+		if (position >= limit)
+		{
+			throw new HTTP2Exception(HTTP2Constants.COMPRESSION_ERROR, "Truncated header block");
+		}
+
+		final boolean huffman = (block[position] & 0x80) != 0;
+		final int length = readInteger(7);
+
+		if (length > limit - position)
+		{
+			throw new HTTP2Exception(HTTP2Constants.COMPRESSION_ERROR, "Truncated header block");
+		}
+
+		final byte[] bytes;
+
+		if (huffman)
+		{
+			bytes = Huffman.decode(block, position, length);
+		}
+		else
+		{
+			bytes = new byte[length];
+			System.arraycopy(block, position, bytes, 0, length);
+		}
+
+		position += length;
+		return new String(bytes, StandardCharsets.ISO_8859_1);
+	}
+
+	private int readByte() throws HTTP2Exception
+	{
+
+		if (position >= limit)
+		{
+			throw new HTTP2Exception(HTTP2Constants.COMPRESSION_ERROR, "Truncated header block");
+		}
+
+		return block[position++] & 0xFF;
+	}
+}
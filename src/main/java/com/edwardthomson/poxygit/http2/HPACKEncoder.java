@@ -0,0 +1,102 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.edwardthomson.poxygit.Header;
+
+/**
+ * Encodes HPACK header blocks (RFC 7541). Every header is sent as a literal
+ * that isn't indexed, naming a static table entry where there is one, so that
+ * there is no dynamic table to keep in step with the client.
+ */
+final class HPACKEncoder
+{
+	private static final Map<String, Integer> STATIC_NAMES = new HashMap<String, Integer>();
+
+	static
+	{
+
+		for (int i = HPACKDecoder.STATIC_TABLE.length - 1; i > 0; i--)
+		{
+			STATIC_NAMES.put(HPACKDecoder.STATIC_TABLE[i].getName(), i);
+		}
+	}
+
+	private HPACKEncoder()
+	{
+	}
+
+	/**
+	 * @param headers headers with lower case names, pseudo-headers first
+	 */
+	static byte[] encode(final List<Header> headers)
+	{
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		for (Header header : headers)
+		{
+			final String name = header.getName().toLowerCase(Locale.ROOT);
+			final Integer index = STATIC_NAMES.get(name);
+
+			// Literal header field without indexing
+			if (index != null)
+			{
+				writeInteger(out, 0x00, 4, index);
+			}
+			else
+			{
+				writeInteger(out, 0x00, 4, 0);
+				writeString(out, name);
+			}
+
+			writeString(out, header.getValue());
+		}
+
+		return out.toByteArray();
+	}
+
+	private static void writeString(final ByteArrayOutputStream out, final String value)
+	{
+		final byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+
+		// Not Huffman coded
+		writeInteger(out, 0x00, 7, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	private static void writeInteger(final ByteArrayOutputStream out, final int flags, final int prefixBits, int value)
+	{
+		final int mask = (1 << prefixBits) - 1;
+
+		if (value < mask)
+		{
+			out.write(flags | value);
+			return;
+		}
+
+		out.write(flags | mask);
+		value -= mask;
+
+		while (value >= 0x80)
+		{
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+
+		out.write(value);
+	}
+}
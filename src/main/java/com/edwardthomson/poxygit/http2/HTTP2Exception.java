@@ -0,0 +1,36 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit.http2;
+
+import java.io.IOException;
+
+/**
+ * An HTTP/2 protocol error, which the client is told about with a
+ * <code>GOAWAY</code> frame that ends the connection, or (when it's
+ * confined to one stream) a <code>RST_STREAM</code> frame.
+ */
+public class HTTP2Exception extends IOException
+{
+	private static final long serialVersionUID = 4721809914823647520L;
+
+	private final int errorCode;
+
+	public HTTP2Exception(int errorCode, String message)
+	{
+		super(message);
+
+		this.errorCode = errorCode;
+	}
+
+	public int getErrorCode()
+	{
+		return errorCode;
+	}
+}
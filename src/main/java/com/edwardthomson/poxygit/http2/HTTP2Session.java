@@ -0,0 +1,979 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit.http2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+
+import com.edwardthomson.poxygit.Connection;
+import com.edwardthomson.poxygit.ConnectionTracker;
+import com.edwardthomson.poxygit.Header;
+import com.edwardthomson.poxygit.IOUtils;
+import com.edwardthomson.poxygit.Options;
+import com.edwardthomson.poxygit.logger.LogLevel;
+import com.edwardthomson.poxygit.logger.Logger;
+
+/**
+ * Serves HTTP/2 (RFC 9113) on a connection. Frames are read on the
+ * connection's thread, and each stream's request is served by its own
+ * {@link Connection} over a {@link StreamSocket}, which it reads and writes as
+ * HTTP/1.1: the request's headers and DATA frames are presented as an HTTP/1.1
+ * request, and the HTTP/1.1 response is sent back as HEADERS and DATA frames.
+ * So the existing handlers, scenarios and throttling serve HTTP/2 unchanged.
+ * <p>
+ * A stream's receive window is only opened as its request body is read, so a
+ * throttled upload slows the client down with flow control rather than by
+ * buffering; and a response waits for the client's windows, below its
+ * throttling.
+ */
+public class HTTP2Session
+{
+	private static final Logger logger = Logger.getLogger(HTTP2Session.class);
+
+	/* The protocol identifier for ALPN */
+	public static final String ALPN_PROTOCOL = "h2";
+
+	private static final int MAX_CONCURRENT_STREAMS = 100;
+
+	/*
+	 * How large a header block may grow, as a multiple of the maximum header size:
+	 * Huffman coding can make a block larger than the headers it decodes to
+	 */
+	private static final int MAX_HEADER_BLOCK_MULTIPLE = 4;
+	private static final int MAX_CONTINUATION_FRAMES = 64;
+
+	/* How much request body the client may send ahead of it being read */
+	private static final int STREAM_WINDOW_SIZE = 1024 * 1024;
+	private static final int CONNECTION_WINDOW_SIZE = 16 * 1024 * 1024;
+
+	private final Socket client;
+	private final Options options;
+	private final ScheduledExecutorService executorService;
+	private final ConnectionTracker connections;
+
+	private final InputStream in;
+	private final OutputStream out;
+	private final Object writeLock = new Object();
+
+	private final HPACKDecoder decoder;
+	private final Map<Integer, HTTP2Stream> streams = new ConcurrentHashMap<Integer, HTTP2Stream>();
+
+	/* A header block that continues in CONTINUATION frames */
+	private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+	private int headerBlockStreamId = 0;
+	private int headerBlockFlags;
+	private int headerBlockFrames;
+
+	/* DATA received on the connection that hasn't been given back to the client */
+	private int connectionReceived = 0;
+
+	/* Guarded by this: stream ids, the send windows and whether we're going away */
+	private int lastStreamId = 0;
+	private long sendWindow = HTTP2Constants.DEFAULT_WINDOW_SIZE;
+	private int initialSendWindow = HTTP2Constants.DEFAULT_WINDOW_SIZE;
+	private int maxFrameSize = HTTP2Constants.DEFAULT_MAX_FRAME_SIZE;
+	private boolean goingAway = false;
+	private boolean closed = false;
+
+	public HTTP2Session(final Socket client, final Options options, final ScheduledExecutorService executorService,
+			final ConnectionTracker connections) throws IOException
+	{
+		this.client = client;
+		this.options = options;
+		this.executorService = executorService;
+		this.connections = connections;
+
+		this.in = new BufferedInputStream(client.getInputStream());
+		this.out = new BufferedOutputStream(client.getOutputStream());
+		this.decoder = new HPACKDecoder(options.getMaxHeaderSizeBytes());
+	}
+
+	/**
+	 * Serves streams until the client goes away, or the connection is shut down
+	 * and its last stream has finished.
+	 *
+	 * @param prefaceStarted whether the start of the connection preface has been
+	 *                       read, as an HTTP/1 request
+	 */
+	public void run(boolean prefaceStarted) throws IOException
+	{
+		options.getMetrics().http2ConnectionStarted();
+
+		// Idle connections are closed after the keep-alive timeout
+		final int idleTimeout = options.getKeepAliveTimeoutSeconds() > 0 ? options.getKeepAliveTimeoutSeconds() * 1000 :
+				options.getSocketReadTimeoutSeconds() * 1000;
+
+		client.setSoTimeout(idleTimeout);
+
+		try
+		{
+			readPreface(prefaceStarted);
+
+			writeSettings();
+			writeWindowUpdate(0, CONNECTION_WINDOW_SIZE - HTTP2Constants.DEFAULT_WINDOW_SIZE);
+
+			while (readFrame())
+			{
+				// Until the client goes away
+			}
+		}
+		catch (HTTP2Exception e)
+		{
+			logger.write(LogLevel.DEBUG, "HTTP/2 error on {}: {}", client, e.getMessage());
+			goAway(e.getErrorCode());
+		}
+		catch (IOException e)
+		{
+
+			// Closed when the last stream finished after a GOAWAY
+			if (!client.isClosed())
+			{
+				throw e;
+			}
+		}
+		finally
+		{
+
+			synchronized (this)
+			{
+				closed = true;
+				notifyAll();
+			}
+
+			for (HTTP2Stream stream : streams.values())
+			{
+				stream.abort();
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting streams, and closes the connection once the streams in
+	 * progress have finished.
+	 */
+	public void shutdown()
+	{
+
+		if (goAway(HTTP2Constants.NO_ERROR))
+		{
+			closeIfDone();
+		}
+	}
+
+	/**
+	 * Tells the client that no more streams will be served.
+	 *
+	 * @return <code>false</code> if it has already been told
+	 */
+	private boolean goAway(int errorCode)
+	{
+		final int lastStreamId;
+
+		synchronized (this)
+		{
+
+			if (goingAway || closed)
+			{
+				return false;
+			}
+
+			goingAway = true;
+			lastStreamId = this.lastStreamId;
+		}
+
+		final byte[] payload = new byte[8];
+
+		putInt(payload, 0, lastStreamId);
+		putInt(payload, 4, errorCode);
+
+		try
+		{
+			writeFrame(HTTP2Constants.GOAWAY, 0, 0, payload, 0, payload.length);
+		}
+		catch (IOException e)
+		{
+			logger.write(LogLevel.DEBUG, "Could not send GOAWAY on {}", client);
+		}
+
+		return true;
+	}
+
+	private void closeIfDone()
+	{
+		final boolean done;
+
+		synchronized (this)
+		{
+			done = goingAway && streams.isEmpty();
+		}
+
+		if (done)
+		{
+			IOUtils.close(client);
+		}
+	}
+
+	private void readPreface(boolean prefaceStarted) throws IOException
+	{
+		final String expected = prefaceStarted ? HTTP2Constants.PREFACE_REMAINDER : HTTP2Constants.PREFACE;
+		final byte[] preface = new byte[expected.length()];
+
+		if (!readFully(preface, preface.length, true) ||
+				!expected.equals(new String(preface, StandardCharsets.ISO_8859_1)))
+		{
+			throw new HTTP2Exception(HTTP2Constants.PROTOCOL_ERROR, "Invalid connection preface");
+		}
+	}
+
+	/**
+	 * Reads a frame and acts on it.
+	 *
+	 * @return <code>false</code> if the connection should close
+	 */
+	private boolean readFrame() throws IOException
+	{
+		final byte[] header = new byte[HTTP2Constants.FRAME_HEADER_LENGTH];
+
+		if (!readFully(header, header.length, true))
+		{
+			return false;
+		}
+
+		final int length = ((header[0] & 0xFF) << 16) | ((header[1] & 0xFF) << 8) | (header[2] & 0xFF);
+		final int type = header[3] & 0xFF;
+		final int flags = header[4] & 0xFF;
+		final int streamId = getInt(header, 5) & 0x7FFFFFFF;
+
+		if (length > HTTP2Constants.DEFAULT_MAX_FRAME_SIZE)
+		{
+			throw new HTTP2Exception(HTTP2Constants.FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+		}
+
+		final byte[] payload = new byte[length];
+
+		readFully(payload, length, false);
+
+		// A header block must be finished before anything else
+		if (headerBlockStreamId != 0 && (type != HTTP2Constants.CONTINUATION || streamId != headerBlockStreamId))
+		{
+			throw new HTTP2Exception(HTTP2Constants.PROTOCOL_ERROR, "Expected CONTINUATION");
+		}
+
+		switch (type)
+		{
+		case HTTP2Constants.DATA:
+			readData(streamId, flags, payload);
+			break;
+
+		case HTTP2Constants.HEADERS:
+			readHeaders(streamId, flags, payload);
+			break;
+
+		case HTTP2Constants.CONTINUATION:
+
+			if (headerBlockStreamId == 0)
+			{
+				throw new HTTP2Exception(HTTP2Constants.PROTOCOL_ERROR, "Unexpected CONTINUATION");
+			}
+
+			if (++headerBlockFrames > MAX_CONTINUATION_FRAMES)
+			{
+				throw new HTTP2Exception(HTTP2Constants.ENHANCE_YOUR_CALM, "Too many CONTINUATION frames");
+			}
+
+			appendHeaderBlock(payload, 0, payload.length);
+
+			if ((flags & HTTP2Constants.FLAG_END_HEADERS) != 0)
+			{
+				final byte[] block = headerBlock.toByteArray();
+
+				headerBlock.reset();
+				headerBlockStreamId = 0;
+
+				headersRead(streamId, headerBlockFlags, block, 0, block.length);
+			}
+			break;
+
+		case HTTP2Constants.PRIORITY:
+
+			if (streamId == 0 || length != 5)
+			{
+				throw new HTTP2Exception(HTTP2Constants.PROTOCOL_ERROR, "Invalid PRIORITY");
+			}
+			break;
+
+		case HTTP2Constants.RST_STREAM:
+
+			if (streamId == 0 || length != 4)
+			{
+				throw new HTTP2Exception(HTTP2Constants.PROTOCOL_ERROR, "Invalid RST_STREAM");
+			}
+
+			final HTTP2Stream reset = streams.get(streamId);
+
+			if (reset != null)
+			{
+				logger.write(LogLevel.DEBUG, "Client reset stream {} on {}", streamId, client);
+				reset.abort();
+			}
+			break;
+
+		case HTTP2Constants.SETTINGS:
+			readSettings(streamId, flags, payload);
+			break;
+
+		case HTTP2Constants.PING:
+
+			if (streamId != 0 || length != 8)
+			{
+				throw new HTTP2Exception(HTTP2Constants.PROTOCOL_ERROR, "Invalid PING");
+			}
+
+			if ((flags & HTTP2Constants.FLAG_ACK) == 0)
+			{
+				writeFrame(HTTP2Constants.PING, HTTP2Constants.FLAG_ACK, 0, payload, 0, payload.length);
+			}
+			break;
+
+		case HTTP2Constants.GOAWAY:
+			logger.write(LogLevel.DEBUG, "Client going away on {}", client);
+
+			synchronized (this)
+			{
+				goingAway = true;
+
+				if (streams.isEmpty())
+				{
+					return false;
+				}
+			}
+			break;
+
+		case HTTP2Constants.WINDOW_UPDATE:
+			readWindowUpdate(streamId, payload);
+			break;
+
+		case HTTP2Constants.PUSH_PROMISE:
+			throw new HTTP2Exception(HTTP2Constants.PROTOCOL_ERROR, "Clients can't push");
+
+		default:
+			// Unknown frame types are ignored
+			break;
+		}
+
+		return true;
+	}
+
+	private void readData(int streamId, int flags, byte[] payload) throws IOException
+	{
+
+		if (streamId == 0)
+		{
+			throw new HTTP2Exception(HTTP2Constants.PROTOCOL_ERROR, "DATA on stream 0");
+		}
+
+		// The whole frame, padding and all, counts against the connection window
+		connectionReceived += payload.length;
+
+		if (connectionReceived >= CONNECTION_WINDOW_SIZE / 2)
+		{
+			writeWindowUpdate(0, connectionReceived);
+			connectionReceived = 0;
+		}
+
+		final int padding = getPadding(flags, payload);
+		final int offset = (flags & HTTP2Constants.FLAG_PADDED) != 0 ? 1 : 0;
+		final HTTP2Stream stream = streams.get(streamId);
+
+		if (stream == null)
+		{
+			checkClosedStream(streamId);
+			return;
+		}
+
+		try
+		{
+			stream.receiveData(payload, offset, payload.length - offset - padding, payload.length,
+					(flags & HTTP2Constants.FLAG_END_STREAM) != 0);
+		}
+		catch (HTTP2Exception e)
+		{
+			resetStream(stream, e.getErrorCode());
+		}
+	}
+
+	private void readHeaders(int streamId, int flags, byte[] payload) throws IOException
+	{
+
+		if (streamId == 0)
+		{
+			throw new HTTP2Exception(HTTP2Constants.PROTOCOL_ERROR, "HEADERS on stream 0");
+		}
+
+		final int padding = getPadding(flags, payload);
+		int offset = (flags & HTTP2Constants.FLAG_PADDED) != 0 ? 1 : 0;
+
+		if ((flags & HTTP2Constants.FLAG_PRIORITY) != 0)
+		{
+			offset += 5;
+		}
+
+		final int length = payload.length - offset - padding;
+
+		if (length < 0)
+		{
+			throw new HTTP2Exception(HTTP2Constants.PROTOCOL_ERROR, "HEADERS too short");
+		}
+
+		if ((flags & HTTP2Constants.FLAG_END_HEADERS) == 0)
+		{
+			headerBlockStreamId = streamId;
+			headerBlockFlags = flags;
+			headerBlockFrames = 0;
+			appendHeaderBlock(payload, offset, length);
+			return;
+		}
+
+		headersRead(streamId, flags, payload, offset, length);
+	}
+
+	/**
+	 * Buffers part of a header block that continues in CONTINUATION frames. The
+	 * block is only decoded (and its size checked) once it's complete, so it's
+	 * limited here, or a client could grow it without end; as is the number of
+	 * CONTINUATION frames, so that tiny frames can't keep the session busy.
+	 */
+	private void appendHeaderBlock(byte[] payload, int offset, int length) throws HTTP2Exception
+	{
+
+		if ((long) headerBlock.size() + length > (long) options.getMaxHeaderSizeBytes() * MAX_HEADER_BLOCK_MULTIPLE)
+		{
+			throw new HTTP2Exception(HTTP2Constants.ENHANCE_YOUR_CALM, "Header block too large");
+		}
+
+		headerBlock.write(payload, offset, length);
+	}
+
+	/**
+	 * Opens a stream for a complete header block (or ends one, for trailers).
+	 */
+	private void headersRead(int streamId, int flags, byte[] block, int offset, int length) throws IOException
+	{
+		// Decoded even if the stream is refused, to keep the table in step
+		final List<Header> headers = decoder.decode(block, offset, length);
+		final boolean endStream = (flags & HTTP2Constants.FLAG_END_STREAM) != 0;
+		final HTTP2Stream existing = streams.get(streamId);
+
+		if (existing != null)
+		{
+
+			// Trailers, which end the request (and are otherwise ignored)
+			if (!endStream)
+			{
+				throw new HTTP2Exception(HTTP2Constants.PROTOCOL_ERROR, "Trailers without END_STREAM");
+			}
+
+			try
+			{
+				existing.receiveData(block, 0, 0, 0, true);
+			}
+			catch (HTTP2Exception e)
+			{
+				resetStream(existing, e.getErrorCode());
+			}
+
+			return;
+		}
+
+		HTTP2Stream stream = null;
+
+		synchronized (this)
+		{
+
+			if ((streamId & 1) == 0 || streamId <= lastStreamId)
+			{
+				throw new HTTP2Exception(HTTP2Constants.PROTOCOL_ERROR, "Invalid stream " + streamId);
+			}
+
+			// Streams after a GOAWAY are ignored; the client will retry them elsewhere
+			if (goingAway)
+			{
+				return;
+			}
+
+			lastStreamId = streamId;
+
+			if (streams.size() < MAX_CONCURRENT_STREAMS)
+			{
+				stream = new HTTP2Stream(this, streamId, initialSendWindow, STREAM_WINDOW_SIZE);
+				streams.put(streamId, stream);
+			}
+		}
+
+		if (stream == null)
+		{
+			writeResetStream(streamId, HTTP2Constants.REFUSED_STREAM);
+			return;
+		}
+
+		try
+		{
+			stream.receiveHeaders(headers, endStream);
+		}
+		catch (HTTP2Exception e)
+		{
+			logger.write(LogLevel.DEBUG, "Invalid request on stream {}: {}", streamId, e.getMessage());
+			resetStream(stream, e.getErrorCode());
+			return;
+		}
+
+		options.getMetrics().http2StreamStarted();
+
+		final Connection connection = new Connection(new StreamSocket(client, stream), null, options,
+				executorService, connections);
+
+		try
+		{
+			executorService.execute(connection);
+		}
+		catch (RejectedExecutionException e)
+		{
+			// The server is closing
+			resetStream(stream, HTTP2Constants.REFUSED_STREAM);
+		}
+	}
+
+	private void readSettings(int streamId, int flags, byte[] payload) throws IOException
+	{
+
+		if (streamId != 0)
+		{
+			throw new HTTP2Exception(HTTP2Constants.PROTOCOL_ERROR, "SETTINGS on a stream");
+		}
+
+		if ((flags & HTTP2Constants.FLAG_ACK) != 0)
+		{
+			return;
+		}
+
+		if (payload.length % 6 != 0)
+		{
+			throw new HTTP2Exception(HTTP2Constants.FRAME_SIZE_ERROR, "SETTINGS of " + payload.length + " bytes");
+		}
+
+		for (int i = 0; i < payload.length; i += 6)
+		{
+			final int id = ((payload[i] & 0xFF) << 8) | (payload[i + 1] & 0xFF);
+			final int value = getInt(payload, i + 2);
+
+			if (id == HTTP2Constants.SETTINGS_INITIAL_WINDOW_SIZE)
+			{
+
+				if (value < 0)
+				{
+					throw new HTTP2Exception(HTTP2Constants.FLOW_CONTROL_ERROR, "Initial window too large");
+				}
+
+				synchronized (this)
+				{
+					final int delta = value - initialSendWindow;
+
+					initialSendWindow = value;
+
+					for (HTTP2Stream stream : streams.values())
+					{
+						stream.sendWindow += delta;
+					}
+
+					notifyAll();
+				}
+			}
+			else if (id == HTTP2Constants.SETTINGS_MAX_FRAME_SIZE)
+			{
+
+				if (value < HTTP2Constants.DEFAULT_MAX_FRAME_SIZE || value > HTTP2Constants.MAX_MAX_FRAME_SIZE)
+				{
+					throw new HTTP2Exception(HTTP2Constants.PROTOCOL_ERROR, "Invalid maximum frame size " + value);
+				}
+
+				synchronized (this)
+				{
+					maxFrameSize = value;
+				}
+			}
+
+			// The encoder uses no dynamic table, and there's no push, so the rest don't matter
+		}
+
+		writeFrame(HTTP2Constants.SETTINGS, HTTP2Constants.FLAG_ACK, 0, payload, 0, 0);
+	}
+
+	private void readWindowUpdate(int streamId, byte[] payload) throws IOException
+	{
+
+		if (payload.length != 4)
+		{
+			throw new HTTP2Exception(HTTP2Constants.FRAME_SIZE_ERROR, "WINDOW_UPDATE of " + payload.length + " bytes");
+		}
+
+		final int increment = getInt(payload, 0) & 0x7FFFFFFF;
+
+		if (streamId == 0)
+		{
+
+			if (increment == 0)
+			{
+				throw new HTTP2Exception(HTTP2Constants.PROTOCOL_ERROR, "Window increment of 0");
+			}
+
+			synchronized (this)
+			{
+				sendWindow += increment;
+
+				if (sendWindow > HTTP2Constants.MAX_WINDOW_SIZE)
+				{
+					throw new HTTP2Exception(HTTP2Constants.FLOW_CONTROL_ERROR, "Connection window too large");
+				}
+
+				notifyAll();
+			}
+
+			return;
+		}
+
+		final HTTP2Stream stream = streams.get(streamId);
+
+		if (stream == null)
+		{
+			checkClosedStream(streamId);
+			return;
+		}
+
+		final boolean overflow;
+
+		synchronized (this)
+		{
+			stream.sendWindow += increment;
+			overflow = (increment == 0 || stream.sendWindow > HTTP2Constants.MAX_WINDOW_SIZE);
+			notifyAll();
+		}
+
+		if (overflow)
+		{
+			resetStream(stream, increment == 0 ? HTTP2Constants.PROTOCOL_ERROR : HTTP2Constants.FLOW_CONTROL_ERROR);
+		}
+	}
+
+	/**
+	 * Frames for streams that have finished are ignored; frames for streams that
+	 * were never opened are an error.
+	 */
+	private synchronized void checkClosedStream(int streamId) throws HTTP2Exception
+	{
+
+		if (streamId > lastStreamId)
+		{
+			throw new HTTP2Exception(HTTP2Constants.PROTOCOL_ERROR, "Frame for idle stream " + streamId);
+		}
+	}
+
+	private static int getPadding(int flags, byte[] payload) throws HTTP2Exception
+	{
+
+		if ((flags & HTTP2Constants.FLAG_PADDED) == 0)
+		{
+			return 0;
+		}
+
+		if (payload.length == 0 || (payload[0] & 0xFF) >= payload.length)
+		{
+			throw new HTTP2Exception(HTTP2Constants.PROTOCOL_ERROR, "Invalid padding");
+		}
+
+		return payload[0] & 0xFF;
+	}
+
+	/**
+	 * Reads exactly <code>length</code> bytes. Between frames, a read timeout
+	 * closes the connection if it has no streams open; otherwise the client may
+	 * just be waiting for its responses.
+	 *
+	 * @return <code>false</code> if the stream ended before the first byte of a
+	 *         frame
+	 */
+	private boolean readFully(byte[] buffer, int length, boolean frameStart) throws IOException
+	{
+		int offset = 0;
+
+		while (offset < length)
+		{
+			final int read;
+
+			try
+			{
+				read = in.read(buffer, offset, length - offset);
+			}
+			catch (SocketTimeoutException e)
+			{
+
+				if (frameStart && offset == 0 && streams.isEmpty())
+				{
+					logger.write(LogLevel.DEBUG, "Idle timeout on {}", client);
+					goAway(HTTP2Constants.NO_ERROR);
+					return false;
+				}
+
+				continue;
+			}
+
+			if (read < 0)
+			{
+
+				if (frameStart && offset == 0)
+				{
+					return false;
+				}
+
+				throw new EOFException("End of stream in HTTP/2 frame");
+			}
+
+			offset += read;
+		}
+
+		return true;
+	}
+
+	private void writeSettings() throws IOException
+	{
+		final byte[] payload = new byte[18];
+
+		putSetting(payload, 0, HTTP2Constants.SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS);
+		putSetting(payload, 6, HTTP2Constants.SETTINGS_INITIAL_WINDOW_SIZE, STREAM_WINDOW_SIZE);
+		putSetting(payload, 12, HTTP2Constants.SETTINGS_MAX_HEADER_LIST_SIZE, options.getMaxHeaderSizeBytes());
+
+		writeFrame(HTTP2Constants.SETTINGS, 0, 0, payload, 0, payload.length);
+	}
+
+	void writeWindowUpdate(int streamId, int increment) throws IOException
+	{
+		final byte[] payload = new byte[4];
+
+		putInt(payload, 0, increment);
+		writeFrame(HTTP2Constants.WINDOW_UPDATE, 0, streamId, payload, 0, payload.length);
+	}
+
+	void writeResetStream(int streamId, int errorCode) throws IOException
+	{
+		final byte[] payload = new byte[4];
+
+		putInt(payload, 0, errorCode);
+		writeFrame(HTTP2Constants.RST_STREAM, 0, streamId, payload, 0, payload.length);
+	}
+
+	/**
+	 * Resets a stream, and stops serving it.
+	 */
+	void resetStream(HTTP2Stream stream, int errorCode)
+	{
+
+		try
+		{
+			writeResetStream(stream.getId(), errorCode);
+		}
+		catch (IOException e)
+		{
+			logger.write(LogLevel.DEBUG, "Could not reset stream {} on {}", stream.getId(), client);
+		}
+
+		stream.abort();
+		streamClosed(stream);
+	}
+
+	/**
+	 * Called when a stream's request has been served (or abandoned).
+	 */
+	void streamClosed(HTTP2Stream stream)
+	{
+		streams.remove(stream.getId());
+
+		synchronized (this)
+		{
+			notifyAll();
+		}
+
+		closeIfDone();
+	}
+
+	/**
+	 * Sends a header block, in a HEADERS frame and as many CONTINUATION frames as
+	 * it needs.
+	 */
+	void writeHeaders(HTTP2Stream stream, List<Header> headers, boolean endStream) throws IOException
+	{
+		final byte[] block = HPACKEncoder.encode(headers);
+		final int frameSize;
+
+		synchronized (this)
+		{
+			frameSize = maxFrameSize;
+		}
+
+		synchronized (writeLock)
+		{
+			int offset = 0;
+			int type = HTTP2Constants.HEADERS;
+
+			do
+			{
+				final int length = Math.min(frameSize, block.length - offset);
+				int flags = (offset + length == block.length) ? HTTP2Constants.FLAG_END_HEADERS : 0;
+
+				if (endStream && type == HTTP2Constants.HEADERS)
+				{
+					flags |= HTTP2Constants.FLAG_END_STREAM;
+				}
+
+				writeFrameHeader(type, flags, stream.getId(), length);
+				out.write(block, offset, length);
+
+				offset += length;
+				type = HTTP2Constants.CONTINUATION;
+			}
+			while (offset < block.length);
+
+			out.flush();
+		}
+	}
+
+	/**
+	 * Sends response body in DATA frames, waiting for the connection's and the
+	 * stream's send windows to allow it.
+	 */
+	void writeData(HTTP2Stream stream, byte[] data, int offset, int length, boolean endStream) throws IOException
+	{
+		final long timeout = options.getSocketReadTimeoutSeconds() * 1000L;
+
+		do
+		{
+			final int frameLength;
+
+			synchronized (this)
+			{
+				final long deadline = System.currentTimeMillis() + timeout;
+
+				while (length > 0 && (sendWindow <= 0 || stream.sendWindow <= 0) && !closed && !stream.isAborted())
+				{
+					final long remaining = deadline - System.currentTimeMillis();
+
+					if (timeout > 0 && remaining <= 0)
+					{
+						throw new SocketTimeoutException("Timed out waiting for the client's flow control window");
+					}
+
+					try
+					{
+						wait(timeout > 0 ? remaining : 0);
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException();
+					}
+				}
+
+				if (closed || stream.isAborted())
+				{
+					throw new IOException("HTTP/2 stream " + stream.getId() + " reset");
+				}
+
+				frameLength = (int) Math.min(length, Math.min(maxFrameSize, Math.min(sendWindow, stream.sendWindow)));
+
+				sendWindow -= frameLength;
+				stream.sendWindow -= frameLength;
+			}
+
+			final boolean last = (frameLength == length);
+
+			writeFrame(HTTP2Constants.DATA, (endStream && last) ? HTTP2Constants.FLAG_END_STREAM : 0, stream.getId(),
+					data, offset, frameLength);
+
+			offset += frameLength;
+			length -= frameLength;
+		}
+		while (length > 0);
+	}
+
+	private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length)
+			throws IOException
+	{
+
+		synchronized (writeLock)
+		{
+			writeFrameHeader(type, flags, streamId, length);
+			out.write(payload, offset, length);
+			out.flush();
+		}
+	}
+
+	private void writeFrameHeader(int type, int flags, int streamId, int length) throws IOException
+	{
+		final byte[] header = new byte[HTTP2Constants.FRAME_HEADER_LENGTH];
+
+		header[0] = (byte) (length >>> 16);
+		header[1] = (byte) (length >>> 8);
+		header[2] = (byte) length;
+		header[3] = (byte) type;
+		header[4] = (byte) flags;
+		putInt(header, 5, streamId);
+
+		out.write(header);
+	}
+
+	private static void putSetting(byte[] buffer, int offset, int id, int value)
+	{
+		buffer[offset] = (byte) (id >>> 8);
+		buffer[offset + 1] = (byte) id;
+		putInt(buffer, offset + 2, value);
+	}
+
+	private static void putInt(byte[] buffer, int offset, int value)
+	{
+		buffer[offset] = (byte) (value >>> 24);
+		buffer[offset + 1] = (byte) (value >>> 16);
+		buffer[offset + 2] = (byte) (value >>> 8);
+		buffer[offset + 3] = (byte) value;
+	}
+
+	private static int getInt(byte[] buffer, int offset)
+	{
+		return ((buffer[offset] & 0xFF) << 24) | ((buffer[offset + 1] & 0xFF) << 16) |
+				((buffer[offset + 2] & 0xFF) << 8) | (buffer[offset + 3] & 0xFF);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "HTTP/2 on " + client;
+	}
+}
@@ -0,0 +1,515 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit.http2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import com.edwardthomson.poxygit.Constants;
+import com.edwardthomson.poxygit.Header;
+
+/**
+ * One HTTP/2 stream, as the HTTP/1.1 byte streams that its
+ * {@link StreamSocket} gives a connection: the request's headers as an
+ * HTTP/1.1 request head followed by its DATA frames (chunked, if the client
+ * didn't give a length), and a {@link ResponseTranscoder} for the response.
+ */
+class HTTP2Stream
+{
+	/* How much request body is read before the window is given back to the client */
+	private static final int WINDOW_UPDATE_THRESHOLD = 16 * 1024;
+
+	/* Headers that only mean something to an HTTP/1 connection */
+	private static final String[] CONNECTION_HEADERS = { "connection", "keep-alive", "proxy-connection",
+			"transfer-encoding", "upgrade", "te" };
+
+	private final HTTP2Session session;
+	private final int id;
+	private final int receiveWindow;
+
+	/* What the client will let us send on this stream, guarded by the session */
+	long sendWindow;
+
+	/*
+	 * The request, in segments that each give back some of the receive window
+	 * once they're read; guarded by this.
+	 */
+	private final Deque<Segment> segments = new ArrayDeque<Segment>();
+	private int segmentOffset = 0;
+	private int received = 0;
+	private int unacknowledged = 0;
+	private boolean chunked = false;
+	private boolean inputEnded = false;
+	private boolean closed = false;
+	private int readTimeoutMilliseconds = 0;
+
+	private volatile boolean aborted = false;
+
+	private final InputStream input = new StreamInputStream();
+	private ResponseTranscoder output;
+
+	private static class Segment
+	{
+		final byte[] data;
+		final int credit;
+
+		Segment(byte[] data, int credit)
+		{
+			this.data = data;
+			this.credit = credit;
+		}
+	}
+
+	HTTP2Stream(HTTP2Session session, int id, int sendWindow, int receiveWindow)
+	{
+		this.session = session;
+		this.id = id;
+		this.sendWindow = sendWindow;
+		this.receiveWindow = receiveWindow;
+	}
+
+	int getId()
+	{
+		return id;
+	}
+
+	InputStream getInputStream()
+	{
+		return input;
+	}
+
+	OutputStream getOutputStream()
+	{
+		return output;
+	}
+
+	synchronized void setReadTimeout(int readTimeoutMilliseconds)
+	{
+		this.readTimeoutMilliseconds = readTimeoutMilliseconds;
+	}
+
+	synchronized int getReadTimeout()
+	{
+		return readTimeoutMilliseconds;
+	}
+
+	boolean isAborted()
+	{
+		return aborted;
+	}
+
+	/**
+	 * Writes the request's headers out as an HTTP/1.1 request head.
+	 */
+	void receiveHeaders(List<Header> headers, boolean endStream) throws HTTP2Exception
+	{
+		final List<String> lines = new ArrayList<String>();
+		final StringBuilder cookies = new StringBuilder();
+		String method = null;
+		String path = null;
+		String authority = null;
+		boolean hasHost = false;
+		boolean hasContentLength = false;
+
+		for (Header header : headers)
+		{
+			final String name = header.getName();
+
+			if (name.startsWith(":"))
+			{
+
+				if (name.equals(":method"))
+				{
+					method = header.getValue();
+				}
+				else if (name.equals(":path"))
+				{
+					path = header.getValue();
+				}
+				else if (name.equals(":authority"))
+				{
+					authority = header.getValue();
+				}
+				else if (!name.equals(":scheme"))
+				{
+					throw new HTTP2Exception(HTTP2Constants.PROTOCOL_ERROR, "Unknown pseudo-header " + name);
+				}
+
+				continue;
+			}
+
+			if (isConnectionHeader(name))
+			{
+				continue;
+			}
+
+			// Cookies may be split across headers, but an HTTP/1 request has one
+			if (name.equals("cookie"))
+			{
+				cookies.append(cookies.length() > 0 ? "; " : "").append(header.getValue());
+				continue;
+			}
+
+			hasHost |= name.equals("host");
+			hasContentLength |= name.equals("content-length");
+
+			lines.add(capitalize(name) + ": " + header.getValue());
+		}
+
+		if (method == null || path == null)
+		{
+			throw new HTTP2Exception(HTTP2Constants.PROTOCOL_ERROR, "Request without :method or :path");
+		}
+
+		final StringBuilder head = new StringBuilder();
+
+		head.append(method).append(' ').append(path).append(' ').append(Constants.VERSION_20).append("\r\n");
+
+		if (authority != null && !hasHost)
+		{
+			head.append(Constants.HOST_HEADER).append(": ").append(authority).append("\r\n");
+		}
+
+		for (String line : lines)
+		{
+			head.append(line).append("\r\n");
+		}
+
+		if (cookies.length() > 0)
+		{
+			head.append(Constants.COOKIE_HEADER).append(": ").append(cookies).append("\r\n");
+		}
+
+		// A body of unknown length is chunked, as it would be over HTTP/1.1
+		if (!endStream && !hasContentLength)
+		{
+			chunked = true;
+			head.append(Constants.TRANSFER_ENCODING_HEADER).append(": ").append(Constants.TRANSFER_ENCODING_CHUNKED)
+					.append("\r\n");
+		}
+
+		head.append("\r\n");
+
+		output = new ResponseTranscoder(session, this, method.equals(Constants.HEAD_METHOD));
+
+		synchronized (this)
+		{
+			segments.add(new Segment(head.toString().getBytes(StandardCharsets.ISO_8859_1), 0));
+
+			if (endStream)
+			{
+				endInput();
+			}
+		}
+	}
+
+	/**
+	 * Adds a DATA frame's payload to the request body.
+	 *
+	 * @param frameLength the length of the frame, including padding, which
+	 *                    counts against the window
+	 */
+	void receiveData(byte[] data, int offset, int length, int frameLength, boolean endStream) throws IOException
+	{
+		final int padding = frameLength - length;
+
+		synchronized (this)
+		{
+
+			if (inputEnded)
+			{
+				throw new HTTP2Exception(HTTP2Constants.STREAM_CLOSED, "DATA after the end of stream " + id);
+			}
+
+			received += frameLength;
+
+			if (received > receiveWindow)
+			{
+				throw new HTTP2Exception(HTTP2Constants.FLOW_CONTROL_ERROR, "Stream " + id + " window exceeded");
+			}
+
+			// Padding is never read, so it's given back now
+			received -= padding;
+
+			if (length > 0)
+			{
+				final byte[] segment;
+				int segmentOffset = 0;
+
+				if (chunked)
+				{
+					final byte[] size = (Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+					segment = new byte[size.length + length + 2];
+					System.arraycopy(size, 0, segment, 0, size.length);
+					segment[segment.length - 2] = '\r';
+					segment[segment.length - 1] = '\n';
+					segmentOffset = size.length;
+				}
+				else
+				{
+					segment = new byte[length];
+				}
+
+				System.arraycopy(data, offset, segment, segmentOffset, length);
+				segments.add(new Segment(segment, length));
+			}
+
+			if (endStream)
+			{
+				endInput();
+			}
+
+			notifyAll();
+		}
+
+		if (padding > 0 && !endStream)
+		{
+			session.writeWindowUpdate(id, padding);
+		}
+	}
+
+	private void endInput()
+	{
+
+		if (chunked)
+		{
+			segments.add(new Segment("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1), 0));
+		}
+
+		inputEnded = true;
+		notifyAll();
+	}
+
+	/**
+	 * Stops serving the stream: reads and writes fail from now on.
+	 */
+	void abort()
+	{
+
+		synchronized (this)
+		{
+			aborted = true;
+			notifyAll();
+		}
+
+		// Writers may be waiting for the window
+		synchronized (session)
+		{
+			session.notifyAll();
+		}
+	}
+
+	/**
+	 * Called when the connection serving the stream has finished with it. Ends
+	 * the response, and resets the stream if it couldn't be finished.
+	 */
+	void close()
+	{
+		final boolean requestUnread;
+
+		synchronized (this)
+		{
+
+			if (closed)
+			{
+				return;
+			}
+
+			closed = true;
+			requestUnread = !inputEnded;
+		}
+
+		if (aborted)
+		{
+			session.streamClosed(this);
+			return;
+		}
+
+		boolean complete = false;
+
+		try
+		{
+			complete = output.finish();
+		}
+		catch (IOException e)
+		{
+			// Reset below
+		}
+
+		if (!complete)
+		{
+			session.resetStream(this, HTTP2Constants.INTERNAL_ERROR);
+			return;
+		}
+
+		// The response doesn't need the rest of the request
+		if (requestUnread)
+		{
+
+			try
+			{
+				session.writeResetStream(id, HTTP2Constants.NO_ERROR);
+			}
+			catch (IOException e)
+			{
+				// The connection has gone
+			}
+		}
+
+		session.streamClosed(this);
+	}
+
+	private static boolean isConnectionHeader(String name)
+	{
+
+		for (String connectionHeader : CONNECTION_HEADERS)
+		{
+
+			if (connectionHeader.equals(name))
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return the header name as an HTTP/1 client would send it, like
+	 *         <code>Content-Type</code>
+	 */
+	private static String capitalize(String name)
+	{
+		final char[] chars = name.toCharArray();
+
+		for (int i = 0; i < chars.length; i++)
+		{
+
+			if (i == 0 || chars[i - 1] == '-')
+			{
+				chars[i] = Character.toUpperCase(chars[i]);
+			}
+		}
+
+		return new String(chars);
+	}
+
+	private class StreamInputStream extends InputStream
+	{
+		@Override
+		public int read() throws IOException
+		{
+			final byte[] b = new byte[1];
+
+			if (read(b, 0, 1) == -1)
+			{
+				return -1;
+			}
+
+			return b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+
+			if (len == 0)
+			{
+				return 0;
+			}
+
+			final int read;
+			int credit = 0;
+
+			synchronized (HTTP2Stream.this)
+			{
+				final long deadline = System.currentTimeMillis() + readTimeoutMilliseconds;
+
+				while (segments.isEmpty() && !inputEnded && !aborted)
+				{
+					final long remaining = deadline - System.currentTimeMillis();
+
+					if (readTimeoutMilliseconds > 0 && remaining <= 0)
+					{
+						throw new SocketTimeoutException("Read timed out");
+					}
+
+					try
+					{
+						HTTP2Stream.this.wait(readTimeoutMilliseconds > 0 ? remaining : 0);
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException();
+					}
+				}
+
+				if (aborted)
+				{
+					throw new IOException("HTTP/2 stream " + id + " reset");
+				}
+
+				if (segments.isEmpty())
+				{
+					return -1;
+				}
+
+				final Segment segment = segments.peek();
+
+				read = Math.min(len, segment.data.length - segmentOffset);
+				System.arraycopy(segment.data, segmentOffset, b, off, read);
+				segmentOffset += read;
+
+				if (segmentOffset == segment.data.length)
+				{
+					segments.poll();
+					segmentOffset = 0;
+					unacknowledged += segment.credit;
+				}
+
+				// Open the window as the body is read, unless the client has sent it all
+				if (!inputEnded && unacknowledged > 0 &&
+						(unacknowledged >= WINDOW_UPDATE_THRESHOLD || segments.isEmpty()))
+				{
+					credit = unacknowledged;
+					received -= credit;
+					unacknowledged = 0;
+				}
+			}
+
+			if (credit > 0)
+			{
+				session.writeWindowUpdate(id, credit);
+			}
+
+			return read;
+		}
+
+		@Override
+		public int available()
+		{
+
+			synchronized (HTTP2Stream.this)
+			{
+				return segments.isEmpty() ? 0 : segments.peek().data.length - segmentOffset;
+			}
+		}
+	}
+}
@@ -0,0 +1,279 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import com.edwardthomson.poxygit.Header;
+import com.edwardthomson.poxygit.HeaderUtils;
+
+/**
+ * Reads the HTTP/1.1 response that a connection writes for a stream and sends
+ * it as HEADERS and DATA frames: the status line and headers (less those that
+ * only apply to an HTTP/1 connection) as a header block, and the body, with
+ * any chunked encoding removed, as DATA. Interim (1xx) responses are sent as
+ * header blocks of their own.
+ */
+class ResponseTranscoder extends OutputStream
+{
+	private static final byte[] EMPTY = new byte[0];
+
+	private enum State
+	{
+		Head,
+		Body,
+		ChunkSize,
+		ChunkData,
+		ChunkEnd,
+		Trailers,
+		Done
+	}
+
+	private final HTTP2Session session;
+	private final HTTP2Stream stream;
+	private final boolean headRequest;
+
+	private State state = State.Head;
+	private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+	private final List<String> headLines = new ArrayList<String>();
+
+	/* The body left to send (of a chunk, when chunked), or -1 to send it until closed */
+	private long remaining;
+
+	ResponseTranscoder(HTTP2Session session, HTTP2Stream stream, boolean headRequest)
+	{
+		this.session = session;
+		this.stream = stream;
+		this.headRequest = headRequest;
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+
+		if (stream.isAborted())
+		{
+			throw new IOException("HTTP/2 stream " + stream.getId() + " reset");
+		}
+
+		while (len > 0)
+		{
+			final int consumed;
+
+			if (state == State.Body || state == State.ChunkData)
+			{
+				consumed = (int) ((remaining < 0) ? len : Math.min(len, remaining));
+
+				final boolean last = (state == State.Body && remaining == consumed);
+
+				session.writeData(stream, b, off, consumed, last);
+
+				if (remaining >= 0)
+				{
+					remaining -= consumed;
+				}
+
+				if (remaining == 0)
+				{
+					state = (state == State.Body) ? State.Done : State.ChunkEnd;
+				}
+			}
+			else if (state == State.Done)
+			{
+				// Anything after the response is not part of it
+				consumed = len;
+			}
+			else
+			{
+				consumed = readLine(b, off, len);
+
+				if (consumed < 0)
+				{
+					// The line is incomplete
+					line.write(b, off, len);
+					return;
+				}
+
+				lineRead(new String(line.toByteArray(), StandardCharsets.ISO_8859_1).trim());
+				line.reset();
+			}
+
+			off += consumed;
+			len -= consumed;
+		}
+	}
+
+	/**
+	 * Adds the bytes up to the end of a line to the line being read.
+	 *
+	 * @return how many bytes were consumed, or -1 if the line doesn't end
+	 */
+	private int readLine(byte[] b, int off, int len)
+	{
+
+		for (int i = off; i < off + len; i++)
+		{
+
+			if (b[i] == '\n')
+			{
+				line.write(b, off, i - off + 1);
+				return i - off + 1;
+			}
+		}
+
+		return -1;
+	}
+
+	private void lineRead(String text) throws IOException
+	{
+
+		if (state == State.Head)
+		{
+
+			if (text.length() > 0)
+			{
+				headLines.add(text);
+			}
+			else if (!headLines.isEmpty())
+			{
+				headRead();
+			}
+		}
+		else if (state == State.ChunkSize)
+		{
+			final int extension = text.indexOf(';');
+			final long size;
+
+			try
+			{
+				size = Long.parseLong(extension >= 0 ? text.substring(0, extension).trim() : text, 16);
+			}
+			catch (NumberFormatException e)
+			{
+				throw new IOException("Invalid chunk size '" + text + "'");
+			}
+
+			remaining = size;
+			state = (size == 0) ? State.Trailers : State.ChunkData;
+		}
+		else if (state == State.ChunkEnd)
+		{
+			state = State.ChunkSize;
+		}
+		else if (state == State.Trailers && text.length() == 0)
+		{
+			// The last chunk; trailers are dropped
+			session.writeData(stream, EMPTY, 0, 0, true);
+			state = State.Done;
+		}
+	}
+
+	private void headRead() throws IOException
+	{
+		final String[] status = headLines.get(0).split(" ", 3);
+
+		if (status.length < 2)
+		{
+			throw new IOException("Invalid status line '" + headLines.get(0) + "'");
+		}
+
+		final int code;
+
+		try
+		{
+			code = Integer.parseInt(status[1]);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IOException("Invalid status line '" + headLines.get(0) + "'");
+		}
+
+		final List<Header> headers = new ArrayList<Header>();
+		final List<Header> frameHeaders = new ArrayList<Header>();
+
+		frameHeaders.add(new Header(":status", status[1]));
+
+		for (int i = 1; i < headLines.size(); i++)
+		{
+			final Header header = new Header(headLines.get(i));
+			final String name = header.getName().toLowerCase(Locale.ROOT);
+
+			headers.add(header);
+
+			if (!name.equals("connection") && !name.equals("keep-alive") && !name.equals("proxy-connection") &&
+					!name.equals("transfer-encoding") && !name.equals("upgrade"))
+			{
+				frameHeaders.add(new Header(name, header.getValue()));
+			}
+		}
+
+		headLines.clear();
+
+		// An interim response, before the real one
+		if (code < 200)
+		{
+			session.writeHeaders(stream, frameHeaders, false);
+			return;
+		}
+
+		final long contentLength = HeaderUtils.getContentLength(headers);
+
+		if (headRequest || code == 204 || code == 304 || contentLength == 0)
+		{
+			session.writeHeaders(stream, frameHeaders, true);
+			state = State.Done;
+		}
+		else
+		{
+			session.writeHeaders(stream, frameHeaders, false);
+
+			if (HeaderUtils.isChunked(headers))
+			{
+				state = State.ChunkSize;
+			}
+			else
+			{
+				remaining = contentLength;
+				state = State.Body;
+			}
+		}
+	}
+
+	/**
+	 * Ends the stream, if its response can be ended.
+	 *
+	 * @return <code>false</code> if the response wasn't complete, and the stream
+	 *         should be reset
+	 */
+	boolean finish() throws IOException
+	{
+
+		// A body that runs until the connection closes
+		if (state == State.Body && remaining < 0)
+		{
+			session.writeData(stream, EMPTY, 0, 0, true);
+			state = State.Done;
+		}
+
+		return state == State.Done;
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit.http2;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+
+/**
+ * A socket for one HTTP/2 stream, so that a
+ * {@link com.edwardthomson.poxygit.Connection} can serve the stream as though
+ * it were an HTTP/1.1 connection. Its addresses are those of the connection
+ * that the stream is on.
+ */
+public class StreamSocket extends Socket
+{
+	private final Socket connection;
+	private final HTTP2Stream stream;
+	private volatile boolean closed = false;
+
+	StreamSocket(Socket connection, HTTP2Stream stream)
+	{
+		this.connection = connection;
+		this.stream = stream;
+	}
+
+	@Override
+	public InputStream getInputStream()
+	{
+		return stream.getInputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStream()
+	{
+		return stream.getOutputStream();
+	}
+
+	@Override
+	public void setSoTimeout(int timeout)
+	{
+		stream.setReadTimeout(timeout);
+	}
+
+	@Override
+	public int getSoTimeout()
+	{
+		return stream.getReadTimeout();
+	}
+
+	@Override
+	public void setTcpNoDelay(boolean on)
+	{
+		// The connection's socket is already set up
+	}
+
+	@Override
+	public InetAddress getInetAddress()
+	{
+		return connection.getInetAddress();
+	}
+
+	@Override
+	public int getPort()
+	{
+		return connection.getPort();
+	}
+
+	@Override
+	public SocketAddress getRemoteSocketAddress()
+	{
+		return connection.getRemoteSocketAddress();
+	}
+
+	@Override
+	public InetAddress getLocalAddress()
+	{
+		return connection.getLocalAddress();
+	}
+
+	@Override
+	public int getLocalPort()
+	{
+		return connection.getLocalPort();
+	}
+
+	@Override
+	public SocketAddress getLocalSocketAddress()
+	{
+		return connection.getLocalSocketAddress();
+	}
+
+	@Override
+	public boolean isConnected()
+	{
+		return true;
+	}
+
+	@Override
+	public boolean isClosed()
+	{
+		return closed;
+	}
+
+	@Override
+	public void close()
+	{
+
+		if (!closed)
+		{
+			closed = true;
+			stream.close();
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "HTTP/2 stream " + stream.getId() + " on " + connection;
+	}
+}
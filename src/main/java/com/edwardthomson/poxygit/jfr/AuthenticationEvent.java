@@ -0,0 +1,31 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("poxygit.Authentication")
+@Label("Authentication")
+@Category("PoxyGit")
+@Description("Checking credentials or issuing a challenge")
+@StackTrace(false)
+public class AuthenticationEvent extends Event
+{
+	@Label("Scenario")
+	public String scenario;
+
+	@Label("Outcome")
+	public String outcome;
+}
@@ -0,0 +1,31 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("poxygit.ConnectionAccepted")
+@Label("Connection Accepted")
+@Category("PoxyGit")
+@Description("A client connection was accepted")
+@StackTrace(false)
+public class ConnectionAcceptedEvent extends Event
+{
+	@Label("Remote Address")
+	public String remoteAddress;
+
+	@Label("Secure")
+	public boolean secure;
+}
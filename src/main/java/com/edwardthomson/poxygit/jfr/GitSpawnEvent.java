@@ -0,0 +1,31 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("poxygit.GitSpawn")
+@Label("Git Spawn")
+@Category("PoxyGit")
+@Description("Starting a git process")
+@StackTrace(false)
+public class GitSpawnEvent extends Event
+{
+	@Label("Command")
+	public String command;
+
+	@Label("Repository")
+	public String repository;
+}
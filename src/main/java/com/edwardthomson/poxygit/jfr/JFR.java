@@ -0,0 +1,94 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit.jfr;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.Map;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
+
+/**
+ * Java Flight Recorder support. The events in this package are only created
+ * when {@link #AVAILABLE} is set, so the server still runs on JVMs without
+ * JFR; when JFR is present but not recording, events cost a short-lived
+ * allocation and are never committed.
+ */
+public final class JFR
+{
+	/** Whether the running JVM supports Flight Recorder events. */
+	public static final boolean AVAILABLE = isAvailable();
+
+	/** Enables the PoxyGit events; shipped in the jar next to this class. */
+	public static final String SETTINGS = "poxygit.jfc";
+
+	private JFR()
+	{
+	}
+
+	private static boolean isAvailable()
+	{
+
+		try
+		{
+			Class.forName("jdk.jfr.FlightRecorder");
+			return FlightRecorder.isAvailable();
+		}
+		catch (ClassNotFoundException e)
+		{
+			return false;
+		}
+		catch (LinkageError e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Starts a recording with the JDK's default settings plus the PoxyGit
+	 * events, written to <code>path</code> when the JVM exits.
+	 */
+	public static void startRecording(String path) throws IOException, ParseException
+	{
+
+		if (!AVAILABLE)
+		{
+			throw new IOException("Flight Recorder is not available in this JVM");
+		}
+
+		final Map<String, String> settings = new HashMap<String, String>(
+				Configuration.getConfiguration("default").getSettings());
+
+		try (InputStream in = JFR.class.getResourceAsStream(SETTINGS))
+		{
+
+			if (in == null)
+			{
+				throw new IOException("Could not find " + SETTINGS);
+			}
+
+			settings.putAll(Configuration.create(new InputStreamReader(in, StandardCharsets.UTF_8)).getSettings());
+		}
+
+		final Recording recording = new Recording(settings);
+		recording.setName("PoxyGit");
+		recording.setToDisk(true);
+		recording.setDestination(Paths.get(path));
+		recording.setDumpOnExit(true);
+		recording.start();
+	}
+}
@@ -0,0 +1,37 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("poxygit.PipeCopy")
+@Label("Pipe Copy")
+@Category("PoxyGit")
+@Description("Copying a request body to git, or git output to the response")
+@StackTrace(false)
+public class PipeCopyEvent extends Event
+{
+	@Label("Direction")
+	@Description("request (client to git) or response (git to client)")
+	public String direction;
+
+	@Label("Repository")
+	public String repository;
+
+	@Label("Bytes")
+	@DataAmount
+	public long bytes;
+}
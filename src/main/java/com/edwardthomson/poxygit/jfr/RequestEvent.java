@@ -0,0 +1,49 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("poxygit.Request")
+@Label("Request")
+@Category("PoxyGit")
+@Description("A complete request, from the request line to the end of the response")
+@StackTrace(false)
+public class RequestEvent extends Event
+{
+	@Label("Method")
+	public String method;
+
+	@Label("URI")
+	public String uri;
+
+	@Label("Scenario")
+	public String scenario;
+
+	@Label("Repository")
+	public String repository;
+
+	@Label("Status")
+	public int status;
+
+	@Label("Request Bytes")
+	@DataAmount
+	public long requestBytes;
+
+	@Label("Response Bytes")
+	@DataAmount
+	public long responseBytes;
+}
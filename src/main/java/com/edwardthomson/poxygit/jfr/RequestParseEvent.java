@@ -0,0 +1,34 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("poxygit.RequestParse")
+@Label("Request Parse")
+@Category("PoxyGit")
+@Description("Reading the request headers, from the request line to the blank line")
+@StackTrace(false)
+public class RequestParseEvent extends Event
+{
+	@Label("Method")
+	public String method;
+
+	@Label("URI")
+	public String uri;
+
+	@Label("Header Count")
+	public int headerCount;
+}
@@ -0,0 +1,34 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("poxygit.Route")
+@Label("Route")
+@Category("PoxyGit")
+@Description("Choosing the scenario and handler for a request")
+@StackTrace(false)
+public class RouteEvent extends Event
+{
+	@Label("Scenario")
+	public String scenario;
+
+	@Label("Git Request Type")
+	public String gitRequestType;
+
+	@Label("Repository")
+	public String repository;
+}
@@ -0,0 +1,37 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("poxygit.TLSHandshake")
+@Label("TLS Handshake")
+@Category("PoxyGit")
+@Description("The TLS handshake on a newly accepted connection")
+@StackTrace(false)
+public class TLSHandshakeEvent extends Event
+{
+	@Label("Remote Address")
+	public String remoteAddress;
+
+	@Label("Protocol")
+	public String protocol;
+
+	@Label("Cipher Suite")
+	public String cipherSuite;
+
+	@Label("Resumed")
+	public boolean resumed;
+}
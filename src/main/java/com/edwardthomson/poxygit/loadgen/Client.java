@@ -0,0 +1,226 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit.loadgen;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.edwardthomson.poxygit.Constants;
+import com.edwardthomson.poxygit.Header;
+
+/**
+ * Makes requests for one load generator worker: reuses its connection (or
+ * opens a new one for each operation), answers Basic and NTLM challenges and
+ * keeps any cookies the server sets.
+ */
+class Client implements Closeable
+{
+	private static final String USER_AGENT = "git/2.0 (" + Constants.PROGRAM_NAME + "-loadgen)";
+
+	/* Enough for an NTLM negotiate, challenge and authenticate */
+	private static final int MAX_AUTHENTICATION_ROUNDS = 3;
+
+	private final URI uri;
+	private final boolean keepAlive;
+	private final int timeoutMilliseconds;
+	private final String basicAuthorization;
+	private final NTLMClient ntlm;
+
+	private final Map<String, String> cookies = new LinkedHashMap<String, String>();
+
+	private ClientConnection connection;
+	private boolean basic = false;
+
+	Client(URI uri, boolean keepAlive, int timeoutMilliseconds, String username, String password) throws Exception
+	{
+		this.uri = uri;
+		this.keepAlive = keepAlive;
+		this.timeoutMilliseconds = timeoutMilliseconds;
+
+		if (username != null)
+		{
+			this.basicAuthorization = "Basic " + Base64.getEncoder()
+					.encodeToString((username + ":" + password).getBytes(StandardCharsets.UTF_8));
+			this.ntlm = new NTLMClient(username, password, "");
+		}
+		else
+		{
+			this.basicAuthorization = null;
+			this.ntlm = null;
+		}
+	}
+
+	/**
+	 * Makes a request (authenticating as needed) and returns the final response.
+	 */
+	ClientResponse request(String method, String path, String contentType, byte[] body, OutputStream sink)
+			throws Exception
+	{
+		String authorization = basic ? basicAuthorization : null;
+		ClientResponse response;
+
+		for (int round = 0; ; round++)
+		{
+
+			if (connection == null || !connection.isOpen())
+			{
+				close();
+				connection = new ClientConnection(uri, timeoutMilliseconds);
+			}
+
+			final List<Header> headers = new ArrayList<Header>();
+
+			headers.add(new Header("User-Agent", USER_AGENT));
+
+			if (contentType != null)
+			{
+				headers.add(new Header(Constants.CONTENT_TYPE_HEADER, contentType));
+			}
+
+			if (authorization != null)
+			{
+				headers.add(new Header(Constants.AUTHORIZATION_HEADER, authorization));
+			}
+
+			if (!cookies.isEmpty())
+			{
+				final StringBuilder cookie = new StringBuilder();
+
+				for (Map.Entry<String, String> c : cookies.entrySet())
+				{
+					cookie.append(cookie.length() > 0 ? "; " : "").append(c.getKey()).append('=').append(c.getValue());
+				}
+
+				headers.add(new Header(Constants.COOKIE_HEADER, cookie.toString()));
+			}
+
+			try
+			{
+				response = connection.send(method, path, headers, body, sink);
+			}
+			catch (IOException e)
+			{
+				close();
+				throw e;
+			}
+
+			storeCookies(response);
+
+			if (response.getStatus() != 401 || ntlm == null || round == MAX_AUTHENTICATION_ROUNDS)
+			{
+				break;
+			}
+
+			final String next = respondToChallenge(response, authorization);
+
+			if (next == null)
+			{
+				break;
+			}
+
+			authorization = next;
+		}
+
+		return response;
+	}
+
+	/**
+	 * @return the authorization for the next round, or <code>null</code> if
+	 *         there is no way to answer the challenge
+	 */
+	private String respondToChallenge(ClientResponse response, String authorization) throws Exception
+	{
+		boolean offersNTLM = false, offersBasic = false;
+
+		for (Header h : response.getHeaders())
+		{
+
+			if (!h.matchesName(Constants.AUTHENTICATE_HEADER))
+			{
+				continue;
+			}
+
+			if (h.getValue().startsWith("NTLM ") && authorization != null && authorization.startsWith("NTLM "))
+			{
+				final byte[] challenge = Base64.getDecoder().decode(h.getValue().substring(5).trim());
+				return "NTLM " + Base64.getEncoder().encodeToString(ntlm.createAuthenticate(challenge));
+			}
+
+			offersNTLM |= h.getValue().equals("NTLM");
+			offersBasic |= h.getValue().startsWith("Basic");
+		}
+
+		if (offersNTLM && authorization == null)
+		{
+			return "NTLM " + Base64.getEncoder().encodeToString(ntlm.createNegotiate());
+		}
+		else if (offersBasic && !basic)
+		{
+			// Send it up front from now on, as git does
+			basic = true;
+			return basicAuthorization;
+		}
+
+		return null;
+	}
+
+	private void storeCookies(ClientResponse response)
+	{
+
+		for (Header h : response.getHeaders())
+		{
+
+			if (!h.matchesName(Constants.SET_COOKIE_HEADER))
+			{
+				continue;
+			}
+
+			final String[] cookie = h.getValue().split(";", 2)[0].split("=", 2);
+
+			if (cookie.length == 2)
+			{
+				cookies.put(cookie[0].trim(), cookie[1].trim());
+			}
+		}
+	}
+
+	/**
+	 * Called after each operation; closes the connection unless it is kept
+	 * alive.
+	 */
+	void finish()
+	{
+
+		if (!keepAlive)
+		{
+			close();
+			cookies.clear();
+		}
+	}
+
+	@Override
+	public void close()
+	{
+
+		if (connection != null)
+		{
+			connection.close();
+			connection = null;
+		}
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit.loadgen;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import com.edwardthomson.poxygit.Constants;
+import com.edwardthomson.poxygit.CountingOutputStream;
+import com.edwardthomson.poxygit.Header;
+import com.edwardthomson.poxygit.HeaderUtils;
+import com.edwardthomson.poxygit.IOUtils;
+import com.edwardthomson.poxygit.NullOutputStream;
+import com.edwardthomson.poxygit.UTF8Utils;
+
+/**
+ * One client connection to the server, on which requests are made one at a
+ * time.
+ */
+class ClientConnection implements Closeable
+{
+	private static SSLSocketFactory socketFactory;
+
+	private final Socket socket;
+	private final InputStream in;
+	private final OutputStream out;
+	private final String host;
+	private boolean open = true;
+
+	ClientConnection(URI uri, int timeoutMilliseconds) throws Exception
+	{
+		final boolean secure = uri.getScheme().equals("https");
+		final int port = uri.getPort() != -1 ? uri.getPort() : (secure ? 443 : 80);
+
+		this.socket = secure ? getSocketFactory().createSocket() : new Socket();
+		this.host = uri.getHost() + (uri.getPort() != -1 ? ":" + uri.getPort() : "");
+
+		socket.setTcpNoDelay(true);
+		socket.setSoTimeout(timeoutMilliseconds);
+		socket.connect(new InetSocketAddress(uri.getHost(), port), timeoutMilliseconds);
+
+		this.in = new BufferedInputStream(socket.getInputStream());
+		this.out = new BufferedOutputStream(socket.getOutputStream());
+	}
+
+	/*
+	 * The server under test usually has a self-signed certificate, so trust
+	 * anything.
+	 */
+	private static synchronized SSLSocketFactory getSocketFactory() throws Exception
+	{
+
+		if (socketFactory == null)
+		{
+			final TrustManager trustAll = new X509TrustManager()
+			{
+				public void checkClientTrusted(X509Certificate[] chain, String authType)
+				{
+				}
+
+				public void checkServerTrusted(X509Certificate[] chain, String authType)
+				{
+				}
+
+				public X509Certificate[] getAcceptedIssuers()
+				{
+					return new X509Certificate[0];
+				}
+			};
+
+			final SSLContext context = SSLContext.getInstance("TLS");
+			context.init(null, new TrustManager[] { trustAll }, new SecureRandom());
+
+			socketFactory = context.getSocketFactory();
+		}
+
+		return socketFactory;
+	}
+
+	/**
+	 * Sends a request and reads the response. A successful (2xx) response body
+	 * is written to <code>sink</code>; any other is discarded.
+	 */
+	ClientResponse send(String method, String path, List<Header> headers, byte[] body, OutputStream sink)
+			throws IOException
+	{
+		final StringBuilder request = new StringBuilder();
+
+		request.append(method).append(' ').append(path).append(' ').append(Constants.VERSION_11).append("\r\n");
+		request.append("Host: ").append(host).append("\r\n");
+
+		for (Header h : headers)
+		{
+			request.append(h.toString()).append("\r\n");
+		}
+
+		if (body != null)
+		{
+			request.append(Constants.CONTENT_LENGTH_HEADER).append(": ").append(body.length).append("\r\n");
+		}
+
+		request.append("\r\n");
+
+		out.write(UTF8Utils.encode(request.toString()));
+
+		if (body != null)
+		{
+			out.write(body);
+		}
+
+		out.flush();
+
+		final String statusLine = IOUtils.readLine(in);
+
+		if (statusLine == null)
+		{
+			open = false;
+			throw new IOException("Connection closed by server");
+		}
+
+		final String[] status = statusLine.split(" ", 3);
+
+		if (status.length < 2 || !status[0].startsWith("HTTP/"))
+		{
+			throw new IOException("Invalid status line: " + statusLine);
+		}
+
+		final int code;
+
+		try
+		{
+			code = Integer.parseInt(status[1]);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IOException("Invalid status line: " + statusLine);
+		}
+
+		final List<Header> responseHeaders = IOUtils.readHeaders(in);
+		final CountingOutputStream responseBody = new CountingOutputStream(
+				(code / 100 == 2) ? sink : new NullOutputStream());
+
+		if (HeaderUtils.isChunked(responseHeaders) || HeaderUtils.getContentLength(responseHeaders) >= 0)
+		{
+			IOUtils.copyHttpStreamToStream(responseHeaders, in, responseBody);
+		}
+		else
+		{
+			// Delimited by the end of the connection
+			IOUtils.copyStream(in, responseBody, -1);
+			open = false;
+		}
+
+		if (HeaderUtils.isConnectionClose(responseHeaders) ||
+				(status[0].equals(Constants.VERSION_10) && !HeaderUtils.isConnectionKeepAlive(responseHeaders)))
+		{
+			open = false;
+		}
+
+		return new ClientResponse(code, responseHeaders, responseBody.getCount());
+	}
+
+	boolean isOpen()
+	{
+		return open;
+	}
+
+	@Override
+	public void close()
+	{
+		open = false;
+
+		try
+		{
+			socket.close();
+		}
+		catch (IOException e)
+		{
+		}
+	}
+}
@@ -0,0 +1,43 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit.loadgen;
+
+import java.util.List;
+
+import com.edwardthomson.poxygit.Header;
+
+class ClientResponse
+{
+	private final int status;
+	private final List<Header> headers;
+	private final long bodyLength;
+
+	ClientResponse(int status, List<Header> headers, long bodyLength)
+	{
+		this.status = status;
+		this.headers = headers;
+		this.bodyLength = bodyLength;
+	}
+
+	public int getStatus()
+	{
+		return status;
+	}
+
+	public List<Header> getHeaders()
+	{
+		return headers;
+	}
+
+	public long getBodyLength()
+	{
+		return bodyLength;
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit.loadgen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Just enough of the smart HTTP protocol (version 0) to read a ref
+ * advertisement and build upload-pack and receive-pack request bodies from it.
+ */
+class GitProtocol
+{
+	private static final String ZERO_ID = "0000000000000000000000000000000000000000";
+
+	private static final byte[] FLUSH = "0000".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * @return the advertised refs (in order) and their object ids, without peeled
+	 *         tags
+	 */
+	static Map<String, String> parseAdvertisement(byte[] advertisement) throws IOException
+	{
+		final Map<String, String> refs = new LinkedHashMap<String, String>();
+		int pos = 0;
+
+		while (pos + 4 <= advertisement.length)
+		{
+			final int len;
+
+			try
+			{
+				len = Integer.parseInt(new String(advertisement, pos, 4, StandardCharsets.US_ASCII), 16);
+			}
+			catch (NumberFormatException e)
+			{
+				throw new IOException("Invalid pkt-line in ref advertisement");
+			}
+
+			if (len == 0)
+			{
+				pos += 4;
+				continue;
+			}
+
+			if (len < 4 || pos + len > advertisement.length)
+			{
+				throw new IOException("Invalid pkt-line in ref advertisement");
+			}
+
+			String line = new String(advertisement, pos + 4, len - 4, StandardCharsets.UTF_8);
+			pos += len;
+
+			// Service announcement
+			if (line.startsWith("#"))
+			{
+				continue;
+			}
+
+			// Capabilities follow the first ref
+			if (line.indexOf('\0') >= 0)
+			{
+				line = line.substring(0, line.indexOf('\0'));
+			}
+
+			final String[] ref = line.trim().split(" ", 2);
+
+			// An empty repository advertises "capabilities^{}"
+			if (ref.length == 2 && !ref[1].endsWith("^{}") && !ref[0].equals(ZERO_ID))
+			{
+				refs.put(ref[1], ref[0]);
+			}
+		}
+
+		return refs;
+	}
+
+	/**
+	 * @return an upload-pack request for everything that is advertised, as a
+	 *         clone makes
+	 */
+	static byte[] createWants(Map<String, String> refs) throws IOException
+	{
+		final Set<String> wants = new LinkedHashSet<String>(refs.values());
+		final ByteArrayOutputStream request = new ByteArrayOutputStream();
+
+		if (wants.isEmpty())
+		{
+			throw new IOException("The repository has no refs to fetch");
+		}
+
+		for (String want : wants)
+		{
+			writePacket(request, "want " + want + "\n");
+		}
+
+		request.write(FLUSH);
+		writePacket(request, "done\n");
+
+		return request.toByteArray();
+	}
+
+	/**
+	 * @return a receive-pack request that deletes <code>ref</code> if it is
+	 *         advertised, or otherwise creates it (pointing at an existing object,
+	 *         so that the pack is empty)
+	 */
+	static byte[] createPush(Map<String, String> refs, String ref) throws Exception
+	{
+		final ByteArrayOutputStream request = new ByteArrayOutputStream();
+		final String existing = refs.get(ref);
+
+		if (existing != null)
+		{
+			writePacket(request, existing + " " + ZERO_ID + " " + ref + "\0report-status delete-refs\n");
+			request.write(FLUSH);
+
+			return request.toByteArray();
+		}
+
+		if (refs.isEmpty())
+		{
+			throw new IOException("The repository has no objects to push a ref to");
+		}
+
+		writePacket(request, ZERO_ID + " " + refs.values().iterator().next() + " " + ref + "\0report-status\n");
+		request.write(FLUSH);
+
+		// An empty pack: header (version 2, no objects) and its SHA-1
+		final byte[] pack = new byte[] { 'P', 'A', 'C', 'K', 0, 0, 0, 2, 0, 0, 0, 0 };
+
+		request.write(pack);
+		request.write(MessageDigest.getInstance("SHA-1").digest(pack));
+
+		return request.toByteArray();
+	}
+
+	private static void writePacket(ByteArrayOutputStream out, String payload) throws IOException
+	{
+		final byte[] data = payload.getBytes(StandardCharsets.UTF_8);
+
+		out.write(String.format("%04x", data.length + 4).getBytes(StandardCharsets.US_ASCII));
+		out.write(data);
+	}
+}
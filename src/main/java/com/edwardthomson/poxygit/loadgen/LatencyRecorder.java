@@ -0,0 +1,141 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit.loadgen;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Every latency observed for one kind of request. Keeping them all (8 bytes
+ * each) makes the percentiles exact, which matters for p999 with the few
+ * thousand samples a local run produces.
+ */
+class LatencyRecorder
+{
+	private static final int HISTOGRAM_WIDTH = 50;
+
+	private long[] nanos = new long[256];
+	private int count = 0;
+	private boolean sorted = true;
+
+	void record(long latencyNanos)
+	{
+
+		if (count == nanos.length)
+		{
+			nanos = Arrays.copyOf(nanos, nanos.length * 2);
+		}
+
+		nanos[count++] = latencyNanos;
+		sorted = false;
+	}
+
+	void add(LatencyRecorder other)
+	{
+
+		for (int i = 0; i < other.count; i++)
+		{
+			record(other.nanos[i]);
+		}
+	}
+
+	int getCount()
+	{
+		return count;
+	}
+
+	long getMeanNanos()
+	{
+		long sum = 0;
+
+		for (int i = 0; i < count; i++)
+		{
+			sum += nanos[i];
+		}
+
+		return count > 0 ? sum / count : 0;
+	}
+
+	/**
+	 * @return the latency that <code>percentile</code> percent of the samples
+	 *         are at or below
+	 */
+	long getPercentileNanos(double percentile)
+	{
+
+		if (count == 0)
+		{
+			return 0;
+		}
+
+		sort();
+
+		final int index = (int) Math.ceil(percentile / 100 * count) - 1;
+		return nanos[Math.max(0, Math.min(count - 1, index))];
+	}
+
+	/**
+	 * Writes the samples in power-of-two millisecond buckets (from the first
+	 * that is used), as a bar chart.
+	 */
+	void writeHistogram(PrintStream out)
+	{
+
+		if (count == 0)
+		{
+			return;
+		}
+
+		sort();
+
+		final long maxMillis = nanos[count - 1] / 1000000;
+		int buckets = 1;
+
+		while ((1L << (buckets - 1)) < maxMillis)
+		{
+			buckets++;
+		}
+
+		final int[] counts = new int[buckets];
+		int largest = 0, first = buckets;
+
+		for (int i = 0; i < count; i++)
+		{
+			final long millis = nanos[i] / 1000000;
+			int bucket = 0;
+
+			while ((1L << bucket) < millis)
+			{
+				bucket++;
+			}
+
+			largest = Math.max(largest, ++counts[bucket]);
+			first = Math.min(first, bucket);
+		}
+
+		for (int bucket = first; bucket < buckets; bucket++)
+		{
+			final char[] bar = new char[(int) ((long) counts[bucket] * HISTOGRAM_WIDTH / largest)];
+			Arrays.fill(bar, '#');
+
+			out.printf("  <= %6d ms %8d %s%n", 1L << bucket, counts[bucket], new String(bar));
+		}
+	}
+
+	private void sort()
+	{
+
+		if (!sorted)
+		{
+			Arrays.sort(nanos, 0, count);
+			sorted = true;
+		}
+	}
+}
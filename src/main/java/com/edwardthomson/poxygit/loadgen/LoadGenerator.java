@@ -0,0 +1,467 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit.loadgen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.edwardthomson.poxygit.GetOptions;
+import com.edwardthomson.poxygit.GetOptions.Option;
+import com.edwardthomson.poxygit.GetOptions.OptionException;
+import com.edwardthomson.poxygit.NullOutputStream;
+import com.edwardthomson.poxygit.logger.LogLevel;
+import com.edwardthomson.poxygit.logger.Logger;
+
+/**
+ * Drives a server with smart HTTP requests from a number of concurrent
+ * workers, then reports throughput and latency percentiles.
+ */
+public class LoadGenerator
+{
+	private static final double[] PERCENTILES = new double[] { 50, 90, 99, 99.9 };
+
+	public static void main(String[] args)
+	{
+		System.exit(new LoadGenerator(args).run());
+	}
+
+	private final String[] args;
+
+	private URI repository;
+	private Operation operation;
+	private int concurrency;
+	private long operations;
+	private long durationNanos;
+	private boolean keepAlive;
+	private int timeoutMilliseconds;
+	private String username;
+	private String password;
+	private byte[] body;
+
+	public LoadGenerator(final String[] args)
+	{
+		this.args = args;
+	}
+
+	private static void usage()
+	{
+		System.err.println("Usage: PoxyGit loadgen [-o|--operation refs|upload-pack|receive-pack|clone|push]");
+		System.err.println("       [-c|--concurrency workers] [-n|--operations count] [-d|--duration seconds]");
+		System.err.println("       [--no-keep-alive] [--credentials user:pass] [--body file]");
+		System.err.println("       [--timeout seconds]");
+		System.err.println("       <repository url>");
+	}
+
+	/**
+	 * @return the exit code: 0 if every operation succeeded, 1 if any failed, 2
+	 *         for a usage error
+	 */
+	public int run()
+	{
+		// The shared HTTP code logs; only warnings are interesting here
+		Logger.setLevel(LogLevel.WARNING);
+
+		if (!parseOptions())
+		{
+			usage();
+			return 2;
+		}
+
+		try
+		{
+
+			if (body == null && operation == Operation.UploadPack)
+			{
+				body = createUploadPackBody();
+			}
+		}
+		catch (Exception e)
+		{
+			System.err.println("Could not read the ref advertisement: " + e.getMessage());
+			return 1;
+		}
+
+		final AtomicLong remaining = new AtomicLong(durationNanos > 0 ? Long.MAX_VALUE : operations);
+		final List<Worker> workers = new ArrayList<Worker>();
+		final long start = System.nanoTime();
+		final long deadline = durationNanos > 0 ? start + durationNanos : Long.MAX_VALUE;
+
+		for (int i = 0; i < concurrency; i++)
+		{
+			final Worker worker = new Worker(i, remaining, deadline);
+
+			workers.add(worker);
+			worker.start();
+		}
+
+		final Results results = new Results();
+
+		for (Worker worker : workers)
+		{
+
+			try
+			{
+				worker.join();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return 1;
+			}
+
+			results.add(worker.results);
+		}
+
+		report(results, System.nanoTime() - start);
+
+		return results.getFailures() > 0 ? 1 : 0;
+	}
+
+	private boolean parseOptions()
+	{
+		final Option[] availableOptions = new Option[] {
+				new Option("operation", 'o', true, "clone"),
+				new Option("concurrency", 'c', true, "8"),
+				new Option("operations", 'n', true, "1000"),
+				new Option("duration", 'd', true),
+				new Option("no-keep-alive"),
+				new Option("credentials", true),
+				new Option("body", true),
+				new Option("timeout", true, "60") };
+
+		final GetOptions getOptions = new GetOptions(availableOptions);
+
+		try
+		{
+			getOptions.parse(args);
+		}
+		catch (OptionException e)
+		{
+			System.err.println(e.getMessage());
+			return false;
+		}
+
+		if (getOptions.getFreeArguments().size() != 1)
+		{
+			return false;
+		}
+
+		try
+		{
+			String url = getOptions.getFreeArguments().get(0);
+
+			while (url.endsWith("/"))
+			{
+				url = url.substring(0, url.length() - 1);
+			}
+
+			repository = new URI(url);
+
+			if (!"http".equals(repository.getScheme()) && !"https".equals(repository.getScheme()))
+			{
+				throw new IllegalArgumentException("Expected an http or https URL: " + url);
+			}
+
+			operation = Operation.byName(getOptions.getArgument("operation"));
+			concurrency = Integer.parseInt(getOptions.getArgument("concurrency"));
+			operations = Long.parseLong(getOptions.getArgument("operations"));
+			timeoutMilliseconds = Integer.parseInt(getOptions.getArgument("timeout")) * 1000;
+			keepAlive = (getOptions.getArguments().get("no-keep-alive") == null);
+
+			if (getOptions.getArgument("duration") != null)
+			{
+				durationNanos = Long.parseLong(getOptions.getArgument("duration")) * 1000000000L;
+			}
+
+			if (concurrency < 1 || operations < 1 || durationNanos < 0)
+			{
+				throw new IllegalArgumentException("Concurrency, operations and duration must be positive");
+			}
+
+			if (getOptions.getArgument("credentials") != null)
+			{
+				final String[] credentials = getOptions.getArgument("credentials").split(":", 2);
+
+				if (credentials.length != 2)
+				{
+					throw new IllegalArgumentException("Credentials must be in user:pass format");
+				}
+
+				username = credentials[0];
+				password = credentials[1];
+			}
+
+			if (getOptions.getArgument("body") != null)
+			{
+				body = Files.readAllBytes(new File(getOptions.getArgument("body")).toPath());
+			}
+			else if (operation == Operation.ReceivePack)
+			{
+				throw new IllegalArgumentException("The receive-pack operation needs a --body");
+			}
+		}
+		catch (URISyntaxException e)
+		{
+			System.err.println("Invalid repository URL: " + e.getMessage());
+			return false;
+		}
+		catch (NumberFormatException e)
+		{
+			System.err.println("Number expected " + e.getMessage());
+			return false;
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println(e.getMessage());
+			return false;
+		}
+		catch (Exception e)
+		{
+			System.err.println("Could not read body: " + e.getMessage());
+			return false;
+		}
+
+		return true;
+	}
+
+	/* Wants for everything advertised, fetched once for all upload-pack operations */
+	private byte[] createUploadPackBody() throws Exception
+	{
+		final Worker worker = new Worker(0, null, 0);
+
+		try
+		{
+			final ByteArrayOutputStream advertisement = new ByteArrayOutputStream();
+
+			if (!worker.request("GET", "upload-pack", null, advertisement))
+			{
+				throw new Exception("status " + worker.lastStatus);
+			}
+
+			return GitProtocol.createWants(GitProtocol.parseAdvertisement(advertisement.toByteArray()));
+		}
+		finally
+		{
+			worker.client.close();
+		}
+	}
+
+	private void report(Results results, long elapsedNanos)
+	{
+		final double seconds = elapsedNanos / 1000000000.0;
+
+		System.out.printf("%s %s: %d workers, %s%n", operation.getName(), repository, concurrency,
+				keepAlive ? "keep-alive" : "new connection per operation");
+		System.out.printf("%d operations (%d failed) in %.3f s: %.2f operations/s, %.2f requests/s%n",
+				results.getOperations(), results.getFailures(), seconds, results.getOperations() / seconds,
+				results.getRequests() / seconds);
+		System.out.printf("Received %.2f MiB (%.2f MiB/s), sent %.2f MiB%n", results.getBytesReceived() / 1048576.0,
+				results.getBytesReceived() / 1048576.0 / seconds, results.getBytesSent() / 1048576.0);
+
+		final StringBuilder statuses = new StringBuilder();
+
+		for (Map.Entry<Integer, Long> status : results.getStatuses().entrySet())
+		{
+			statuses.append(statuses.length() > 0 ? ", " : "").append(status.getKey()).append(": ")
+					.append(status.getValue());
+		}
+
+		System.out.println("Responses: " + statuses);
+
+		if (results.getFirstFailure() != null)
+		{
+			System.out.println("First failure: " + results.getFirstFailure());
+		}
+
+		System.out.println();
+		System.out.printf("%-18s %8s %10s %10s %10s %10s %10s %10s%n", "latency (ms)", "count", "mean", "p50", "p90",
+				"p99", "p999", "max");
+
+		for (Map.Entry<String, LatencyRecorder> e : results.getLatencies().entrySet())
+		{
+			final LatencyRecorder recorder = e.getValue();
+
+			System.out.printf("%-18s %8d %10.3f", e.getKey(), recorder.getCount(), recorder.getMeanNanos() / 1000000.0);
+
+			for (double percentile : PERCENTILES)
+			{
+				System.out.printf(" %10.3f", recorder.getPercentileNanos(percentile) / 1000000.0);
+			}
+
+			System.out.printf(" %10.3f%n", recorder.getPercentileNanos(100) / 1000000.0);
+		}
+
+		final LatencyRecorder operationLatency = results.getLatencies().get("operation");
+
+		if (operationLatency != null)
+		{
+			System.out.println();
+			System.out.println("Operation latency:");
+			operationLatency.writeHistogram(System.out);
+		}
+	}
+
+	private class Worker extends Thread
+	{
+		private final int index;
+		private final AtomicLong remaining;
+		private final long deadline;
+		private final Client client;
+		private final Results results = new Results();
+		private final OutputStream discard = new NullOutputStream();
+
+		private int lastStatus;
+
+		private Worker(int index, AtomicLong remaining, long deadline)
+		{
+			super("LoadGenerator-" + index);
+
+			this.index = index;
+			this.remaining = remaining;
+			this.deadline = deadline;
+
+			try
+			{
+				this.client = new Client(repository, keepAlive, timeoutMilliseconds, username, password);
+			}
+			catch (Exception e)
+			{
+				throw new IllegalStateException(e);
+			}
+		}
+
+		@Override
+		public void run()
+		{
+
+			try
+			{
+
+				while (System.nanoTime() < deadline && remaining.getAndDecrement() > 0)
+				{
+					runOperation();
+				}
+			}
+			finally
+			{
+				client.close();
+			}
+		}
+
+		private void runOperation()
+		{
+			final long start = System.nanoTime();
+			boolean succeeded;
+
+			try
+			{
+				final ByteArrayOutputStream advertisement = new ByteArrayOutputStream();
+
+				switch (operation)
+				{
+				case Refs:
+					succeeded = request("GET", "upload-pack", null, discard);
+					break;
+
+				case UploadPack:
+					succeeded = request("POST", "upload-pack", body, discard);
+					break;
+
+				case ReceivePack:
+					succeeded = request("POST", "receive-pack", body, discard);
+					break;
+
+				case Clone:
+					succeeded = request("GET", "upload-pack", null, advertisement) &&
+							request("POST", "upload-pack", (body != null) ? body :
+									GitProtocol.createWants(GitProtocol.parseAdvertisement(advertisement.toByteArray())),
+									discard);
+					break;
+
+				case Push:
+					// Each worker alternately creates and deletes its own ref
+					succeeded = request("GET", "receive-pack", null, advertisement) &&
+							request("POST", "receive-pack", (body != null) ? body :
+									GitProtocol.createPush(GitProtocol.parseAdvertisement(advertisement.toByteArray()),
+											"refs/heads/loadgen-" + index),
+									discard);
+					break;
+
+				default:
+					throw new IllegalStateException("Unknown operation " + operation);
+				}
+
+				if (succeeded)
+				{
+					results.recordLatency("operation", System.nanoTime() - start);
+					results.recordOperation();
+				}
+				else
+				{
+					results.recordFailure("status " + lastStatus);
+				}
+			}
+			catch (Exception e)
+			{
+				results.recordFailure(e.toString());
+			}
+			finally
+			{
+				client.finish();
+			}
+		}
+
+		/**
+		 * Makes a GET of the ref advertisement or a POST to the service.
+		 *
+		 * @return <code>true</code> if the response was successful
+		 */
+		private boolean request(String method, String service, byte[] requestBody, OutputStream sink) throws Exception
+		{
+			final String path, name, contentType;
+
+			if (requestBody == null)
+			{
+				path = repository.getRawPath() + "/info/refs?service=git-" + service;
+				name = "info/refs";
+				contentType = null;
+			}
+			else
+			{
+				path = repository.getRawPath() + "/git-" + service;
+				name = "git-" + service;
+				contentType = "application/x-git-" + service + "-request";
+			}
+
+			final long start = System.nanoTime();
+			final ClientResponse response = client.request(method, path, contentType, requestBody, sink);
+			final long elapsed = System.nanoTime() - start;
+
+			lastStatus = response.getStatus();
+			results.recordResponse(lastStatus, requestBody != null ? requestBody.length : 0, response.getBodyLength());
+
+			if (lastStatus / 100 != 2)
+			{
+				return false;
+			}
+
+			results.recordLatency(name, elapsed);
+			return true;
+		}
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit.loadgen;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.edwardthomson.poxygit.MD4;
+
+/**
+ * The client side of NTLM: a negotiate (type 1) message and an NTLMv2
+ * authenticate (type 3) message in reply to the server's challenge.
+ */
+class NTLMClient
+{
+	private static final int FLAG_NEGOTIATE_UNICODE = 0x00000001;
+	private static final int FLAG_REQUEST_TARGET = 0x00000004;
+	private static final int FLAG_NEGOTIATE_NTLM = 0x00000200;
+	private static final int FLAG_NEGOTIATE_EXTENDED_SESSIONSECURITY = 0x00080000;
+
+	private static final byte[] SIGNATURE = "NTLMSSP\0".getBytes(StandardCharsets.US_ASCII);
+
+	private static final String WORKSTATION = "LOADGEN";
+
+	private final String username;
+	private final String domain;
+	private final byte[] ntlm2Hash;
+
+	NTLMClient(String username, String password, String domain) throws Exception
+	{
+		final byte[] passwordData = password.getBytes(StandardCharsets.UTF_16LE);
+		final byte[] ntlmHash = new byte[MD4.hashSize];
+
+		MD4.digest(passwordData, 0, passwordData.length, ntlmHash);
+
+		this.username = username;
+		this.domain = domain;
+		this.ntlm2Hash = hmacMD5(ntlmHash, (username.toUpperCase() + domain).getBytes(StandardCharsets.UTF_16LE));
+	}
+
+	byte[] createNegotiate()
+	{
+		final byte[] message = new byte[32];
+
+		System.arraycopy(SIGNATURE, 0, message, 0, SIGNATURE.length);
+		putInt(message, 8, 1);
+		putInt(message, 12, FLAG_NEGOTIATE_UNICODE | FLAG_REQUEST_TARGET | FLAG_NEGOTIATE_NTLM |
+				FLAG_NEGOTIATE_EXTENDED_SESSIONSECURITY);
+
+		return message;
+	}
+
+	byte[] createAuthenticate(byte[] challengeMessage) throws Exception
+	{
+
+		if (challengeMessage.length < 48 || getInt(challengeMessage, 8) != 2)
+		{
+			throw new Exception("Invalid NTLM challenge");
+		}
+
+		final byte[] challenge = new byte[8];
+		System.arraycopy(challengeMessage, 24, challenge, 0, 8);
+
+		final int targetInfoLength = getShort(challengeMessage, 40);
+		final int targetInfoOffset = getInt(challengeMessage, 44);
+
+		if (targetInfoOffset + targetInfoLength > challengeMessage.length)
+		{
+			throw new Exception("Invalid NTLM challenge");
+		}
+
+		/* The blob: signature, reserved, timestamp, client nonce, reserved, target info, reserved */
+		final byte[] blob = new byte[28 + targetInfoLength + 4];
+
+		blob[0] = 1;
+		blob[1] = 1;
+		putLong(blob, 8, (System.currentTimeMillis() + 11644473600000L) * 10000L);
+
+		final byte[] clientNonce = new byte[8];
+		ThreadLocalRandom.current().nextBytes(clientNonce);
+		System.arraycopy(clientNonce, 0, blob, 16, 8);
+		System.arraycopy(challengeMessage, targetInfoOffset, blob, 28, targetInfoLength);
+
+		final byte[] challengeBlob = new byte[challenge.length + blob.length];
+		System.arraycopy(challenge, 0, challengeBlob, 0, challenge.length);
+		System.arraycopy(blob, 0, challengeBlob, challenge.length, blob.length);
+
+		final byte[] ntlmResponse = new byte[16 + blob.length];
+		System.arraycopy(hmacMD5(ntlm2Hash, challengeBlob), 0, ntlmResponse, 0, 16);
+		System.arraycopy(blob, 0, ntlmResponse, 16, blob.length);
+
+		final byte[][] fields = new byte[][] { new byte[24], ntlmResponse,
+				domain.getBytes(StandardCharsets.UTF_16LE), username.getBytes(StandardCharsets.UTF_16LE),
+				WORKSTATION.getBytes(StandardCharsets.UTF_16LE), new byte[0] };
+		int length = 64;
+
+		for (byte[] field : fields)
+		{
+			length += field.length;
+		}
+
+		final byte[] message = new byte[length];
+
+		System.arraycopy(SIGNATURE, 0, message, 0, SIGNATURE.length);
+		putInt(message, 8, 3);
+
+		int offset = 64;
+
+		for (int i = 0; i < fields.length; i++)
+		{
+			putShort(message, 12 + i * 8, fields[i].length);
+			putShort(message, 14 + i * 8, fields[i].length);
+			putInt(message, 16 + i * 8, offset);
+
+			System.arraycopy(fields[i], 0, message, offset, fields[i].length);
+			offset += fields[i].length;
+		}
+
+		putInt(message, 60, getInt(challengeMessage, 20));
+
+		return message;
+	}
+
+	private static byte[] hmacMD5(byte[] key, byte[] data) throws Exception
+	{
+		final Mac md5 = Mac.getInstance("HmacMD5");
+		md5.init(new SecretKeySpec(key, "HmacMD5"));
+		return md5.doFinal(data);
+	}
+
+	private static int getShort(byte[] buf, int pos)
+	{
+		return (buf[pos] & 0xFF) | ((buf[pos + 1] & 0xFF) << 8);
+	}
+
+	private static int getInt(byte[] buf, int pos)
+	{
+		return getShort(buf, pos) | (getShort(buf, pos + 2) << 16);
+	}
+
+	private static void putShort(byte[] buf, int pos, int value)
+	{
+		buf[pos] = (byte) value;
+		buf[pos + 1] = (byte) (value >> 8);
+	}
+
+	private static void putInt(byte[] buf, int pos, int value)
+	{
+		putShort(buf, pos, value);
+		putShort(buf, pos + 2, value >> 16);
+	}
+
+	private static void putLong(byte[] buf, int pos, long value)
+	{
+		putInt(buf, pos, (int) value);
+		putInt(buf, pos + 4, (int) (value >> 32));
+	}
+}
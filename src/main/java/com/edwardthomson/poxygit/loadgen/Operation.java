@@ -0,0 +1,58 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit.loadgen;
+
+/**
+ * What each load generator iteration does against the repository.
+ */
+public enum Operation
+{
+	/* GET info/refs for upload-pack */
+	Refs("refs"),
+
+	/* POST git-upload-pack with the same body each time */
+	UploadPack("upload-pack"),
+
+	/* POST git-receive-pack with the same body each time */
+	ReceivePack("receive-pack"),
+
+	/* GET info/refs, then POST git-upload-pack wanting every advertised ref */
+	Clone("clone"),
+
+	/* GET info/refs for receive-pack, then POST git-receive-pack creating or deleting a ref */
+	Push("push");
+
+	private final String name;
+
+	private Operation(String name)
+	{
+		this.name = name;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public static Operation byName(String name)
+	{
+
+		for (Operation operation : Operation.values())
+		{
+
+			if (operation.name.equalsIgnoreCase(name))
+			{
+				return operation;
+			}
+		}
+
+		throw new IllegalArgumentException("Unknown operation: " + name);
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit.loadgen;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * What one worker (or, once merged, the whole run) observed.
+ */
+class Results
+{
+	private final Map<String, LatencyRecorder> latencies = new LinkedHashMap<String, LatencyRecorder>();
+	private final Map<Integer, Long> statuses = new TreeMap<Integer, Long>();
+
+	private long operations = 0;
+	private long failures = 0;
+	private long requests = 0;
+	private long bytesSent = 0;
+	private long bytesReceived = 0;
+	private String firstFailure;
+
+	void recordLatency(String name, long nanos)
+	{
+		LatencyRecorder recorder = latencies.get(name);
+
+		if (recorder == null)
+		{
+			recorder = new LatencyRecorder();
+			latencies.put(name, recorder);
+		}
+
+		recorder.record(nanos);
+	}
+
+	void recordResponse(int status, long sent, long received)
+	{
+		final Long statusCount = statuses.get(status);
+
+		statuses.put(status, statusCount != null ? statusCount + 1 : 1);
+		requests++;
+		bytesSent += sent;
+		bytesReceived += received;
+	}
+
+	void recordOperation()
+	{
+		operations++;
+	}
+
+	void recordFailure(String description)
+	{
+		operations++;
+		failures++;
+
+		if (firstFailure == null)
+		{
+			firstFailure = description;
+		}
+	}
+
+	void add(Results other)
+	{
+
+		for (Map.Entry<String, LatencyRecorder> e : other.latencies.entrySet())
+		{
+			LatencyRecorder recorder = latencies.get(e.getKey());
+
+			if (recorder == null)
+			{
+				recorder = new LatencyRecorder();
+				latencies.put(e.getKey(), recorder);
+			}
+
+			recorder.add(e.getValue());
+		}
+
+		for (Map.Entry<Integer, Long> e : other.statuses.entrySet())
+		{
+			final Long statusCount = statuses.get(e.getKey());
+			statuses.put(e.getKey(), statusCount != null ? statusCount + e.getValue() : e.getValue());
+		}
+
+		operations += other.operations;
+		failures += other.failures;
+		requests += other.requests;
+		bytesSent += other.bytesSent;
+		bytesReceived += other.bytesReceived;
+
+		if (firstFailure == null)
+		{
+			firstFailure = other.firstFailure;
+		}
+	}
+
+	public Map<String, LatencyRecorder> getLatencies()
+	{
+		return latencies;
+	}
+
+	public Map<Integer, Long> getStatuses()
+	{
+		return statuses;
+	}
+
+	public long getOperations()
+	{
+		return operations;
+	}
+
+	public long getFailures()
+	{
+		return failures;
+	}
+
+	public long getRequests()
+	{
+		return requests;
+	}
+
+	public long getBytesSent()
+	{
+		return bytesSent;
+	}
+
+	public long getBytesReceived()
+	{
+		return bytesReceived;
+	}
+
+	public String getFirstFailure()
+	{
+		return firstFailure;
+	}
+}
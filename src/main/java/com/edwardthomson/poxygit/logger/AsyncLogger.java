@@ -0,0 +1,240 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit.logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Formats log lines on the calling thread and hands them to a bounded buffer
+ * that a single writer thread drains to standard output, so that request
+ * threads never contend for the console and lines never interleave.
+ */
+public class AsyncLogger extends Logger
+{
+	private final String name;
+
+	AsyncLogger(String name)
+	{
+		this.name = name != null ? name : "(unknown)";
+	}
+
+	@Override
+	public boolean isEnabled(LogLevel level)
+	{
+		if (level == null)
+		{
+			return false;
+		}
+
+		return (level.getValue() <= Logger.level.getValue());
+	}
+
+	@Override
+	public void write(LogLevel level, String message)
+	{
+		write(level, message, null);
+	}
+
+	@Override
+	public void write(LogLevel level, String message, Throwable t)
+	{
+		if (isEnabled(level))
+		{
+			if (message == null && t == null)
+			{
+				return;
+			}
+
+			Writer.INSTANCE.enqueue(new Record(LogFormat.formatLine(name, message, t),
+					t != null ? LogFormat.formatStackTrace(t) : null, null));
+		}
+	}
+
+	private static class Record
+	{
+		private final String line;
+		private final String stackTrace;
+
+		/* Set on the marker record that a flush waits for */
+		private final CountDownLatch flushed;
+
+		private Record(String line, String stackTrace, CountDownLatch flushed)
+		{
+			this.line = line;
+			this.stackTrace = stackTrace;
+			this.flushed = flushed;
+		}
+	}
+
+	/**
+	 * The single writer thread and its buffer, shared by all loggers and started
+	 * on first use.
+	 */
+	private static class Writer implements Runnable
+	{
+		private static final int CAPACITY = 8192;
+		private static final long SHUTDOWN_FLUSH_MILLISECONDS = 5000;
+
+		private static final Writer INSTANCE = new Writer();
+
+		private final BlockingQueue<Record> queue = new ArrayBlockingQueue<Record>(CAPACITY);
+		private final AtomicLong dropped = new AtomicLong();
+
+		/* Whether each record is flushed as it's written, rather than on exit */
+		private boolean synchronous = false;
+
+		private Writer()
+		{
+			final Thread thread = new Thread(this, "AsyncLogger");
+			thread.setDaemon(true);
+			thread.start();
+
+			try
+			{
+				Runtime.getRuntime().addShutdownHook(new Thread("AsyncLogger-shutdown")
+				{
+					@Override
+					public void run()
+					{
+						flush(SHUTDOWN_FLUSH_MILLISECONDS);
+					}
+				});
+			}
+			catch (IllegalStateException e)
+			{
+				// First used while the JVM is exiting, so there's no hook to flush
+				synchronous = true;
+			}
+		}
+
+		private void enqueue(Record record)
+		{
+
+			if (Logger.overflowPolicy == OverflowPolicy.Block)
+			{
+
+				try
+				{
+					queue.put(record);
+				}
+				catch (InterruptedException e)
+				{
+					dropped.incrementAndGet();
+					Thread.currentThread().interrupt();
+				}
+			}
+			else if (!queue.offer(record))
+			{
+				dropped.incrementAndGet();
+			}
+
+			if (synchronous)
+			{
+				flush(SHUTDOWN_FLUSH_MILLISECONDS);
+			}
+		}
+
+		/**
+		 * Waits until everything queued before this call has been written.
+		 */
+		private void flush(long timeoutMilliseconds)
+		{
+			final CountDownLatch flushed = new CountDownLatch(1);
+
+			try
+			{
+
+				if (queue.offer(new Record(null, null, flushed), timeoutMilliseconds, TimeUnit.MILLISECONDS))
+				{
+					flushed.await(timeoutMilliseconds, TimeUnit.MILLISECONDS);
+				}
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		public void run()
+		{
+			final List<Record> batch = new ArrayList<Record>();
+			final StringBuilder output = new StringBuilder(8192);
+
+			while (true)
+			{
+
+				try
+				{
+					batch.add(queue.take());
+				}
+				catch (InterruptedException e)
+				{
+					continue;
+				}
+
+				queue.drainTo(batch);
+
+				for (Record record : batch)
+				{
+
+					if (record.line != null)
+					{
+						output.append(record.line);
+					}
+
+					if (record.stackTrace != null || record.flushed != null)
+					{
+						write(output);
+					}
+
+					if (record.stackTrace != null)
+					{
+						System.err.print(record.stackTrace);
+						System.err.flush();
+					}
+
+					if (record.flushed != null)
+					{
+						record.flushed.countDown();
+					}
+				}
+
+				final long droppedCount = dropped.getAndSet(0);
+
+				if (droppedCount > 0)
+				{
+					output.append(LogFormat.formatLine(AsyncLogger.class.getName(),
+							droppedCount + " log messages dropped (buffer full)", null));
+				}
+
+				write(output);
+				batch.clear();
+			}
+		}
+
+		private void write(StringBuilder output)
+		{
+
+			if (output.length() > 0)
+			{
+				System.out.print(output);
+				System.out.flush();
+				output.setLength(0);
+			}
+		}
+	}
+}
@@ -9,14 +9,12 @@
 
 package com.edwardthomson.poxygit.logger;
 
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-
+/**
+ * Writes log lines synchronously to standard output.
+ */
 public class ConsoleLogger extends Logger
 {
 	private final String name;
-	private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-	private static final Calendar calendar = Calendar.getInstance();
 
 	ConsoleLogger(String name)
 	{
@@ -50,23 +48,7 @@ public class ConsoleLogger extends Logger
 				return;
 			}
 
-			System.out.print("[");
-			System.out.print(dateFormat.format(calendar.getTime()));
-			System.out.print("] ");
-			System.out.print(name);
-			System.out.print(": ");
-
-			if (message != null)
-			{
-				System.out.print(message);
-			}
-
-			if (message != null && t != null)
-			{
-				System.out.print(": ");
-				System.out.print(t.getMessage());
-			}
-			System.out.print("\n");
+			System.out.print(LogFormat.formatLine(name, message, t));
 
 			if (t != null)
 			{
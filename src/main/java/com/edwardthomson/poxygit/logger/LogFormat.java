@@ -0,0 +1,90 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit.logger;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Formats log lines into a per-thread buffer, so that loggers need no locking
+ * (<code>SimpleDateFormat</code> is not thread-safe) and a line is emitted as a
+ * single string.
+ */
+class LogFormat
+{
+	/* Don't keep a buffer around that a huge message grew */
+	private static final int MAX_RETAINED_CAPACITY = 16 * 1024;
+
+	private static final ThreadLocal<LogFormat> formats = new ThreadLocal<LogFormat>()
+	{
+		@Override
+		protected LogFormat initialValue()
+		{
+			return new LogFormat();
+		}
+	};
+
+	private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+	private StringBuilder buffer = new StringBuilder(256);
+
+	/* The timestamp only changes once a second; don't reformat it every line */
+	private long timestampSecond = -1;
+	private String timestamp;
+
+	private LogFormat()
+	{
+	}
+
+	static String formatLine(String name, String message, Throwable t)
+	{
+		return formats.get().format(name, message, t);
+	}
+
+	static String formatStackTrace(Throwable t)
+	{
+		final StringWriter trace = new StringWriter();
+		t.printStackTrace(new PrintWriter(trace));
+		return trace.toString();
+	}
+
+	private String format(String name, String message, Throwable t)
+	{
+		final long now = System.currentTimeMillis();
+
+		if (now / 1000 != timestampSecond)
+		{
+			timestampSecond = now / 1000;
+			timestamp = dateFormat.format(new Date(now));
+		}
+
+		if (buffer.capacity() > MAX_RETAINED_CAPACITY)
+		{
+			buffer = new StringBuilder(256);
+		}
+
+		buffer.setLength(0);
+		buffer.append('[').append(timestamp).append("] ").append(name).append(": ");
+
+		if (message != null)
+		{
+			buffer.append(message);
+		}
+
+		if (message != null && t != null)
+		{
+			buffer.append(": ").append(t.getMessage());
+		}
+
+		buffer.append('\n');
+		return buffer.toString();
+	}
+}
@@ -9,15 +9,24 @@
 
 package com.edwardthomson.poxygit.logger;
 
+import java.util.function.Supplier;
+
 public abstract class Logger
 {
 	protected static volatile LogLevel level;
 
+	protected static volatile OverflowPolicy overflowPolicy = OverflowPolicy.Block;
+
 	public static void setLevel(LogLevel level)
 	{
 		Logger.level = level;
 	}
 
+	public static void setOverflowPolicy(OverflowPolicy overflowPolicy)
+	{
+		Logger.overflowPolicy = overflowPolicy;
+	}
+
 	@SuppressWarnings("rawtypes")
 	public static Logger getLogger(Class c)
 	{
@@ -26,7 +35,7 @@ public abstract class Logger
 
 	public static Logger getLogger(String name)
 	{
-		return new ConsoleLogger(name);
+		return new AsyncLogger(name);
 	}
 
 	public abstract boolean isEnabled(LogLevel level);
@@ -34,4 +43,69 @@ public abstract class Logger
 	public abstract void write(LogLevel level, String message);
 
 	public abstract void write(LogLevel level, String message, Throwable t);
+
+	/*
+	 * The overloads below do no work (and allocate nothing for non-capturing
+	 * suppliers or arguments that are already objects) when the level is
+	 * disabled, so they are suitable for per-request and per-header logging.
+	 */
+
+	public void write(LogLevel level, Supplier<String> message)
+	{
+		if (isEnabled(level))
+		{
+			write(level, message.get());
+		}
+	}
+
+	/**
+	 * Writes <code>template</code> with each <code>{}</code> replaced by the
+	 * next argument.
+	 */
+	public void write(LogLevel level, String template, Object arg)
+	{
+		if (isEnabled(level))
+		{
+			write(level, format(template, arg, null, null, 1));
+		}
+	}
+
+	public void write(LogLevel level, String template, Object arg1, Object arg2)
+	{
+		if (isEnabled(level))
+		{
+			write(level, format(template, arg1, arg2, null, 2));
+		}
+	}
+
+	public void write(LogLevel level, String template, Object arg1, Object arg2, Object arg3)
+	{
+		if (isEnabled(level))
+		{
+			write(level, format(template, arg1, arg2, arg3, 3));
+		}
+	}
+
+	private static String format(String template, Object arg1, Object arg2, Object arg3, int count)
+	{
+		final StringBuilder message = new StringBuilder(template.length() + 64);
+		int start = 0;
+
+		for (int i = 0; i < count; i++)
+		{
+			final int placeholder = template.indexOf("{}", start);
+
+			if (placeholder < 0)
+			{
+				break;
+			}
+
+			message.append(template, start, placeholder);
+			message.append(i == 0 ? arg1 : (i == 1 ? arg2 : arg3));
+			start = placeholder + 2;
+		}
+
+		message.append(template, start, template.length());
+		return message.toString();
+	}
 }
@@ -0,0 +1,49 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit.logger;
+
+/**
+ * What an {@link AsyncLogger} does when its buffer is full.
+ */
+public enum OverflowPolicy
+{
+	/* Discard the message (and report how many were dropped) */
+	Drop("drop"),
+
+	/* Wait for the writer to make room */
+	Block("block");
+
+	private final String name;
+
+	private OverflowPolicy(String name)
+	{
+		this.name = name;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public static OverflowPolicy byName(String name)
+	{
+
+		for (OverflowPolicy policy : OverflowPolicy.values())
+		{
+
+			if (policy.name.equalsIgnoreCase(name))
+			{
+				return policy;
+			}
+		}
+
+		throw new IllegalArgumentException("Unknown log overflow policy: " + name);
+	}
+}
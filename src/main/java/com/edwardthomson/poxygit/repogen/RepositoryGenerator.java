@@ -0,0 +1,491 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit.repogen;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.edwardthomson.poxygit.GetOptions;
+import com.edwardthomson.poxygit.GetOptions.Option;
+import com.edwardthomson.poxygit.GetOptions.OptionException;
+
+/**
+ * Creates a bare repository of a given shape under a project root, with
+ * <code>git fast-import</code>.
+ * <p>
+ * The content, dates and identities all derive from the seed and the options,
+ * so the same arguments produce the same object ids (and so the same ref
+ * advertisement and negotiation) on any machine. Pack bytes may still differ
+ * between git versions, since git chooses the deltas.
+ */
+public class RepositoryGenerator
+{
+	private static final String IDENTITY = "PoxyGit <poxygit@example.com>";
+
+	/* 2017-07-14, so that history has plausible dates */
+	private static final long EPOCH_SECONDS = 1500000000L;
+
+	private static final int MAX_REFS = 1000000;
+
+	private static final String LINE_CHARACTERS = "abcdefghijklmnopqrstuvwxyz     ";
+	private static final int LINE_LENGTH = 64;
+
+	public static void main(String[] args)
+	{
+		System.exit(new RepositoryGenerator(args).run());
+	}
+
+	private final String[] args;
+
+	private File repository;
+	private long seed;
+	private int commits;
+	private int files;
+	private int blobSize;
+	private int refs;
+	private boolean looseRefs;
+	private int packs;
+	private boolean looseObjects;
+	private boolean bitmaps;
+
+	private Random random;
+	private int nextMark = 1;
+
+	public RepositoryGenerator(final String[] args)
+	{
+		this.args = args;
+	}
+
+	private static void usage()
+	{
+		System.err.println("Usage: PoxyGit repogen [--seed seed] [--commits count] [--files count]");
+		System.err.println("       [--blob-size bytes] [--refs count] [--loose-refs]");
+		System.err.println("       [--packs count] [--loose-objects] [--bitmaps]");
+		System.err.println("       <project root> <repository name>");
+	}
+
+	/**
+	 * @return the exit code: 0 on success, 1 if git failed, 2 for a usage error
+	 */
+	public int run()
+	{
+
+		if (!parseOptions())
+		{
+			usage();
+			return 2;
+		}
+
+		try
+		{
+			final long start = System.nanoTime();
+
+			generate();
+
+			System.out.printf("Created %s: %d commits, %d refs, main at %s (%.1f s)%n", repository, commits,
+					refs + 1, git(true, "rev-parse", "refs/heads/main").trim(),
+					(System.nanoTime() - start) / 1000000000.0);
+			return 0;
+		}
+		catch (Exception e)
+		{
+			System.err.println("Could not create " + repository + ": " + e.getMessage());
+			return 1;
+		}
+	}
+
+	private boolean parseOptions()
+	{
+		final Option[] availableOptions = new Option[] {
+				new Option("seed", true, "1"),
+				new Option("commits", true, "100"),
+				new Option("files", true, "16"),
+				new Option("blob-size", true, "1024"),
+				new Option("refs", true, "10"),
+				new Option("loose-refs"),
+				new Option("packs", true, "1"),
+				new Option("loose-objects"),
+				new Option("bitmaps") };
+
+		final GetOptions getOptions = new GetOptions(availableOptions);
+
+		try
+		{
+			getOptions.parse(args);
+		}
+		catch (OptionException e)
+		{
+			System.err.println(e.getMessage());
+			return false;
+		}
+
+		if (getOptions.getFreeArguments().size() != 2)
+		{
+			return false;
+		}
+
+		try
+		{
+			String name = getOptions.getFreeArguments().get(1);
+
+			if (!name.endsWith(".git"))
+			{
+				name += ".git";
+			}
+
+			repository = new File(getOptions.getFreeArguments().get(0), name).getAbsoluteFile();
+
+			if (repository.exists())
+			{
+				throw new IllegalArgumentException(repository + " already exists");
+			}
+
+			seed = Long.parseLong(getOptions.getArgument("seed"));
+			commits = Integer.parseInt(getOptions.getArgument("commits"));
+			files = Integer.parseInt(getOptions.getArgument("files"));
+			blobSize = Integer.parseInt(getOptions.getArgument("blob-size"));
+			refs = Integer.parseInt(getOptions.getArgument("refs"));
+			packs = Integer.parseInt(getOptions.getArgument("packs"));
+			looseRefs = (getOptions.getArguments().get("loose-refs") != null);
+			looseObjects = (getOptions.getArguments().get("loose-objects") != null);
+			bitmaps = (getOptions.getArguments().get("bitmaps") != null);
+
+			if (commits < 1 || files < 1 || blobSize < 0 || refs < 0 || packs < 1)
+			{
+				throw new IllegalArgumentException("Commits, files and packs must be positive");
+			}
+
+			if (refs > MAX_REFS)
+			{
+				throw new IllegalArgumentException("At most " + MAX_REFS + " refs are supported");
+			}
+
+			if (packs > commits)
+			{
+				throw new IllegalArgumentException("Each pack needs at least one commit");
+			}
+
+			if (looseObjects && bitmaps)
+			{
+				throw new IllegalArgumentException("Bitmaps need packed objects");
+			}
+		}
+		catch (NumberFormatException e)
+		{
+			System.err.println("Number expected " + e.getMessage());
+			return false;
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println(e.getMessage());
+			return false;
+		}
+
+		return true;
+	}
+
+	private void generate() throws Exception
+	{
+		random = new Random(seed);
+
+		if (!repository.getParentFile().isDirectory() && !repository.getParentFile().mkdirs())
+		{
+			throw new IOException("Could not create " + repository.getParentFile());
+		}
+
+		git(false, "init", "--quiet", "--bare", repository.getPath());
+		git(false, "symbolic-ref", "HEAD", "refs/heads/main");
+
+		final File marks = new File(repository, "poxygit-repogen.marks");
+		final int[] commitMarks = new int[commits];
+		int commit = 0;
+
+		/* Each fast-import run writes one pack; marks carry the history across runs */
+		for (int pack = 0; pack < packs; pack++)
+		{
+			final int end = (int) ((long) commits * (pack + 1) / packs);
+			final List<String> command = new ArrayList<String>(Arrays.asList("fast-import", "--quiet",
+					"--export-marks=" + marks.getPath()));
+
+			if (pack > 0)
+			{
+				command.add("--import-marks=" + marks.getPath());
+			}
+
+			final Process process = startGit(command.toArray(new String[command.size()]));
+
+			try (OutputStream stream = new BufferedOutputStream(process.getOutputStream(), 64 * 1024))
+			{
+
+				for (; commit < end; commit++)
+				{
+					commitMarks[commit] = writeCommit(stream, commit, commit > 0 ? commitMarks[commit - 1] : 0);
+				}
+			}
+
+			waitFor(process, "fast-import");
+		}
+
+		/*
+		 * The other refs point at commits chosen from the history. fast-import
+		 * would write each as a locked loose ref, which takes minutes for a million,
+		 * so they are written directly.
+		 */
+		writeRefs(readMarks(marks), commitMarks);
+		Files.delete(marks.toPath());
+
+		if (!looseRefs)
+		{
+			git(false, "pack-refs", "--all", "--prune");
+		}
+
+		if (looseObjects)
+		{
+			unpackObjects();
+		}
+		else if (bitmaps && packs == 1)
+		{
+			git(false, "repack", "-a", "-d", "-q", "--write-bitmap-index");
+		}
+		else if (bitmaps)
+		{
+			git(false, "multi-pack-index", "write", "--bitmap");
+		}
+	}
+
+	/**
+	 * Writes a commit on main; the first adds every file, the rest each change
+	 * one.
+	 *
+	 * @return the commit's mark
+	 */
+	private int writeCommit(OutputStream stream, int commit, int parentMark) throws IOException
+	{
+		final StringBuilder changes = new StringBuilder();
+
+		if (commit == 0)
+		{
+
+			for (int file = 0; file < files; file++)
+			{
+				changes.append("M 100644 :").append(writeBlob(stream)).append(' ').append(path(file)).append('\n');
+			}
+		}
+		else
+		{
+			final int file = random.nextInt(files);
+			changes.append("M 100644 :").append(writeBlob(stream)).append(' ').append(path(file)).append('\n');
+		}
+
+		final int mark = nextMark++;
+		final String message = "Commit " + (commit + 1) + "\n";
+		final StringBuilder command = new StringBuilder();
+
+		command.append("commit refs/heads/main\n");
+		command.append("mark :").append(mark).append('\n');
+		command.append("author ").append(IDENTITY).append(' ').append(EPOCH_SECONDS + commit * 60L).append(" +0000\n");
+		command.append("committer ").append(IDENTITY).append(' ').append(EPOCH_SECONDS + commit * 60L).append(" +0000\n");
+		command.append("data ").append(message.length()).append('\n').append(message);
+
+		if (parentMark != 0)
+		{
+			command.append("from :").append(parentMark).append('\n');
+		}
+
+		command.append(changes).append('\n');
+
+		stream.write(command.toString().getBytes(StandardCharsets.UTF_8));
+		return mark;
+	}
+
+	/* Lines of random words, so that blobs compress and delta like text */
+	private int writeBlob(OutputStream stream) throws IOException
+	{
+		final byte[] data = new byte[blobSize];
+
+		for (int i = 0; i < data.length; i++)
+		{
+			data[i] = (i % (LINE_LENGTH + 1) == LINE_LENGTH) ? (byte) '\n' :
+					(byte) LINE_CHARACTERS.charAt(random.nextInt(LINE_CHARACTERS.length()));
+		}
+
+		final int mark = nextMark++;
+
+		stream.write(("blob\nmark :" + mark + "\ndata " + data.length + "\n").getBytes(StandardCharsets.UTF_8));
+		stream.write(data);
+		stream.write('\n');
+
+		return mark;
+	}
+
+	private void writeRefs(String[] objectIds, int[] commitMarks) throws IOException
+	{
+		final StringBuilder packedRefs = new StringBuilder("# pack-refs with: peeled fully-peeled sorted \n");
+		final File refsDirectory = new File(repository, "refs/heads");
+
+		for (int ref = 0; ref < refs; ref++)
+		{
+			final String name = String.format("branch-%07d", ref);
+			final String objectId = objectIds[commitMarks[random.nextInt(commitMarks.length)]];
+
+			if (looseRefs)
+			{
+				Files.write(new File(refsDirectory, name).toPath(), (objectId + "\n").getBytes(StandardCharsets.US_ASCII));
+			}
+			else
+			{
+				packedRefs.append(objectId).append(" refs/heads/").append(name).append('\n');
+			}
+		}
+
+		// In name order, as the header promises; pack-refs adds main
+		if (!looseRefs)
+		{
+			Files.write(new File(repository, "packed-refs").toPath(),
+					packedRefs.toString().getBytes(StandardCharsets.US_ASCII));
+		}
+	}
+
+	/**
+	 * @return the object ids that fast-import exported, indexed by mark
+	 */
+	private String[] readMarks(File marks) throws IOException
+	{
+		final String[] objectIds = new String[nextMark];
+
+		for (String line : Files.readAllLines(marks.toPath(), StandardCharsets.US_ASCII))
+		{
+			final String[] mark = line.split(" ", 2);
+
+			if (mark.length != 2 || !mark[0].startsWith(":"))
+			{
+				throw new IOException("Unexpected fast-import mark: " + line);
+			}
+
+			objectIds[Integer.parseInt(mark[0].substring(1))] = mark[1].trim();
+		}
+
+		return objectIds;
+	}
+
+	private static String path(int file)
+	{
+		return String.format("file-%05d.txt", file);
+	}
+
+	/* Moves the packs aside and explodes them into loose objects */
+	private void unpackObjects() throws Exception
+	{
+		final File packDirectory = new File(repository, "objects/pack");
+		final File[] packFiles = packDirectory.listFiles();
+
+		if (packFiles == null)
+		{
+			return;
+		}
+
+		for (File packFile : packFiles)
+		{
+
+			if (!packFile.getName().endsWith(".pack"))
+			{
+				continue;
+			}
+
+			final File unpacking = new File(repository, packFile.getName());
+			final String base = packFile.getName().substring(0, packFile.getName().length() - ".pack".length());
+
+			Files.move(packFile.toPath(), unpacking.toPath());
+			Files.delete(new File(packDirectory, base + ".idx").toPath());
+
+			final Process process = startGit("unpack-objects", "-q");
+
+			try (OutputStream stream = process.getOutputStream())
+			{
+				Files.copy(unpacking.toPath(), stream);
+			}
+
+			waitFor(process, "unpack-objects");
+			Files.delete(unpacking.toPath());
+		}
+	}
+
+	private Process startGit(String... args) throws IOException
+	{
+		final List<String> command = new ArrayList<String>();
+
+		command.add("git");
+
+		if (repository.isDirectory())
+		{
+			command.add("--git-dir=" + repository.getPath());
+		}
+
+		command.addAll(Arrays.asList(args));
+
+		return new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+	}
+
+	/**
+	 * Runs git to completion.
+	 *
+	 * @return its output, if <code>capture</code> is set
+	 */
+	private String git(boolean capture, String... args) throws Exception
+	{
+		final Process process = startGit(args);
+		final byte[] output;
+
+		process.getOutputStream().close();
+
+		try (InputStream stream = process.getInputStream())
+		{
+			output = readAll(stream);
+		}
+
+		waitFor(process, args[0]);
+
+		return capture ? new String(output, StandardCharsets.UTF_8) : null;
+	}
+
+	private static byte[] readAll(InputStream stream) throws IOException
+	{
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		final byte[] buf = new byte[8192];
+		int len;
+
+		while ((len = stream.read(buf)) != -1)
+		{
+			output.write(buf, 0, len);
+		}
+
+		return output.toByteArray();
+	}
+
+	private static void waitFor(Process process, String command) throws Exception
+	{
+		final int exitCode = process.waitFor();
+
+		if (exitCode != 0)
+		{
+			throw new IOException("git " + command + " exited with " + exitCode);
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import org.junit.Test;
+
+/**
+ * The test suite from RFC 1320 appendix A.5, through the one-shot digest, an
+ * instance and the {@link MessageDigest} provider.
+ */
+public class MD4Test
+{
+	private static final String[][] VECTORS = new String[][] {
+			{ "", "31d6cfe0d16ae931b73c59d7e0c089c0" },
+			{ "a", "bde52cb31de33e46245e05fbdbd6fb24" },
+			{ "abc", "a448017aaf21d8525fc10ae87aa6729d" },
+			{ "message digest", "d9130a8164549fe818874806e1c7014b" },
+			{ "abcdefghijklmnopqrstuvwxyz", "d79e1c308aa5bbcdeea8ed63df412da9" },
+			{ "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789", "043f8582f241db351ce627e153e7f0e4" },
+			{ "12345678901234567890123456789012345678901234567890123456789012345678901234567890",
+					"e33b4ddc9c38f2199c3e7b164fcc0536" } };
+
+	@Test
+	public void testStaticDigest()
+	{
+
+		for (String[] vector : VECTORS)
+		{
+			final byte[] input = bytes(vector[0]);
+			final byte[] out = new byte[MD4.hashSize];
+
+			MD4.digest(input, 0, input.length, out);
+			assertEquals(vector[0], vector[1], hex(out));
+		}
+	}
+
+	@Test
+	public void testInstanceByteAtATime()
+	{
+		final MD4 md4 = new MD4();
+
+		for (String[] vector : VECTORS)
+		{
+			final byte[] input = bytes(vector[0]);
+			final byte[] out = new byte[MD4.hashSize];
+
+			for (int i = 0; i < input.length; i++)
+			{
+				md4.update(input, i, 1);
+			}
+
+			// The instance resets itself, so it is reused for the next vector
+			md4.digest(out, 0);
+			assertEquals(vector[0], vector[1], hex(out));
+		}
+	}
+
+	@Test
+	public void testMessageDigest() throws Exception
+	{
+		final MessageDigest digest = MessageDigest.getInstance("MD4", new MD4Provider());
+
+		for (String[] vector : VECTORS)
+		{
+			assertEquals(vector[0], vector[1], hex(digest.digest(bytes(vector[0]))));
+		}
+	}
+
+	@Test
+	public void testMessageDigestByteAtATime() throws Exception
+	{
+		final MessageDigest digest = MessageDigest.getInstance("MD4", new MD4Provider());
+
+		for (String[] vector : VECTORS)
+		{
+
+			for (byte b : bytes(vector[0]))
+			{
+				digest.update(b);
+			}
+
+			assertEquals(vector[0], vector[1], hex(digest.digest()));
+		}
+	}
+
+	private static byte[] bytes(String value)
+	{
+		return value.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static String hex(byte[] value)
+	{
+		final StringBuilder hex = new StringBuilder();
+
+		for (byte b : value)
+		{
+			hex.append(String.format("%02x", b & 0xff));
+		}
+
+		return hex.toString();
+	}
+}
@@ -0,0 +1,214 @@
+/*
+ * PoxyGit: a simple HTTP Git server for testing.
+ *
+ * Copyright (c) Edward Thomson.
+ * Copyright (c) Microsoft Corporation.
+ *
+ * All rights reserved.
+ */
+
+package com.edwardthomson.poxygit.http2;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.edwardthomson.poxygit.Header;
+
+/**
+ * Decodes the header block examples from RFC 7541 appendix C, each sequence
+ * through one decoder so that later blocks depend on its dynamic table.
+ */
+public class HPACKDecoderTest
+{
+	private static final int MAX_HEADER_LIST_SIZE = 8192;
+
+	/* The requests of appendix C.3, and C.4 with Huffman coding */
+	private static final Header[][] REQUESTS = new Header[][] {
+			{ new Header(":method", "GET"), new Header(":scheme", "http"), new Header(":path", "/"),
+					new Header(":authority", "www.example.com") },
+			{ new Header(":method", "GET"), new Header(":scheme", "http"), new Header(":path", "/"),
+					new Header(":authority", "www.example.com"), new Header("cache-control", "no-cache") },
+			{ new Header(":method", "GET"), new Header(":scheme", "https"), new Header(":path", "/index.html"),
+					new Header(":authority", "www.example.com"), new Header("custom-key", "custom-value") } };
+
+	/* The responses of appendix C.5, and C.6 with Huffman coding */
+	private static final Header[][] RESPONSES = new Header[][] {
+			{ new Header(":status", "302"), new Header("cache-control", "private"),
+					new Header("date", "Mon, 21 Oct 2013 20:13:21 GMT"),
+					new Header("location", "https://www.example.com") },
+			{ new Header(":status", "307"), new Header("cache-control", "private"),
+					new Header("date", "Mon, 21 Oct 2013 20:13:21 GMT"),
+					new Header("location", "https://www.example.com") },
+			{ new Header(":status", "200"), new Header("cache-control", "private"),
+					new Header("date", "Mon, 21 Oct 2013 20:13:22 GMT"),
+					new Header("location", "https://www.example.com"), new Header("content-encoding", "gzip"),
+					new Header("set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1") } };
+
+	/* The examples use a 256 byte table, which a size update at the start of the first block sets */
+	private static final String TABLE_SIZE_256 = "3fe101";
+
+	@Test
+	public void testRequests() throws Exception
+	{
+		assertDecodes(REQUESTS,
+				"828684410f7777772e6578616d706c652e636f6d",
+				"828684be58086e6f2d6361636865",
+				"828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565");
+	}
+
+	@Test
+	public void testHuffmanRequests() throws Exception
+	{
+		assertDecodes(REQUESTS,
+				"828684418cf1e3c2e5f23a6ba0ab90f4ff",
+				"828684be5886a8eb10649cbf",
+				"828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf");
+	}
+
+	@Test
+	public void testResponses() throws Exception
+	{
+		assertDecodes(RESPONSES,
+				TABLE_SIZE_256 + "4803333032580770726976617465611d4d6f6e2c203231204f637420323031332032303a31333a323120474d546e1768747470733a2f2f7777772e6578616d706c652e636f6d",
+				"4803333037c1c0bf",
+				"88c1611d4d6f6e2c203231204f637420323031332032303a31333a323220474d54c05a04677a69707738666f6f3d4153444a4b48514b425a584f5157454f50495541585157454f49553b206d61782d6167653d333630303b2076657273696f6e3d31");
+	}
+
+	@Test
+	public void testHuffmanResponses() throws Exception
+	{
+		assertDecodes(RESPONSES,
+				TABLE_SIZE_256 + "488264025885aec3771a4b6196d07abe941054d444a8200595040b8166e082a62d1bff6e919d29ad171863c78f0b97c8e9ae82ae43d3",
+				"4883640effc1c0bf",
+				"88c16196d07abe941054d444a8200595040b8166e084a62d1bffc05a839bd9ab77ad94e7821dd7f2e6c7b335dfdfcd5b3960d5af27087f3672c1ab270fb5291f9587316065c003ed4ee5b1063d5007");
+	}
+
+	@Test
+	public void testEvictedIndex() throws Exception
+	{
+		final HPACKDecoder decoder = new HPACKDecoder(MAX_HEADER_LIST_SIZE);
+
+		decode(decoder, TABLE_SIZE_256 + "4803333032580770726976617465611d4d6f6e2c203231204f637420323031332032303a31333a323120474d546e1768747470733a2f2f7777772e6578616d706c652e636f6d");
+		decode(decoder, "4803333037");
+
+		// ":status: 302" was evicted to make room for ":status: 307", so the oldest entry is at 65
+		assertEquals(Arrays.asList(new Header("cache-control", "private")), decode(decoder, "c1"));
+		assertDecodeFails(decoder, "c2", HTTP2Constants.COMPRESSION_ERROR);
+	}
+
+	@Test
+	public void testHeaderListTooLarge() throws Exception
+	{
+		// The first request is 180 bytes, counting 32 bytes for each header
+		assertEquals(4, decode(new HPACKDecoder(180), "828684410f7777772e6578616d706c652e636f6d").size());
+		assertDecodeFails(new HPACKDecoder(179), "828684410f7777772e6578616d706c652e636f6d", HTTP2Constants.PROTOCOL_ERROR);
+	}
+
+	@Test
+	public void testTableSizeTooLarge() throws Exception
+	{
+		// Larger than the 4096 bytes of SETTINGS_HEADER_TABLE_SIZE
+		assertEquals(1, decode(new HPACKDecoder(MAX_HEADER_LIST_SIZE), "3fe11f82").size());
+		assertDecodeFails(new HPACKDecoder(MAX_HEADER_LIST_SIZE), "3fe21f82", HTTP2Constants.COMPRESSION_ERROR);
+	}
+
+	@Test
+	public void testHuffman() throws Exception
+	{
+		assertArrayEquals("www.example.com".getBytes(StandardCharsets.US_ASCII), huffman("f1e3c2e5f23a6ba0ab90f4ff"));
+		assertArrayEquals("a".getBytes(StandardCharsets.US_ASCII), huffman("1f"));
+		assertArrayEquals(new byte[0], huffman(""));
+	}
+
+	@Test
+	public void testHuffmanBadPadding() throws Exception
+	{
+		// "a" is 00011, which must be padded with ones
+		assertHuffmanFails("18");
+		assertHuffmanFails("1e");
+
+		// Padding of a whole byte or more
+		assertHuffmanFails("1fff");
+		assertHuffmanFails("ff");
+
+		// The end of string code itself
+		assertHuffmanFails("fffffffc");
+
+		// And through the decoder, as a Huffman coded literal value
+		assertDecodeFails(new HPACKDecoder(MAX_HEADER_LIST_SIZE), "0f2b8118", HTTP2Constants.COMPRESSION_ERROR);
+	}
+
+	private static void assertDecodes(Header[][] expected, String... blocks) throws HTTP2Exception
+	{
+		final HPACKDecoder decoder = new HPACKDecoder(MAX_HEADER_LIST_SIZE);
+
+		for (int i = 0; i < blocks.length; i++)
+		{
+			assertEquals("Block " + (i + 1), Arrays.asList(expected[i]), decode(decoder, blocks[i]));
+		}
+	}
+
+	private static void assertDecodeFails(HPACKDecoder decoder, String block, int errorCode)
+	{
+
+		try
+		{
+			decode(decoder, block);
+			fail("Decoded " + block);
+		}
+		catch (HTTP2Exception e)
+		{
+			assertEquals(errorCode, e.getErrorCode());
+		}
+	}
+
+	private static void assertHuffmanFails(String data)
+	{
+
+		try
+		{
+			huffman(data);
+			fail("Decoded " + data);
+		}
+		catch (HTTP2Exception e)
+		{
+			assertEquals(HTTP2Constants.COMPRESSION_ERROR, e.getErrorCode());
+		}
+	}
+
+	private static List<Header> decode(HPACKDecoder decoder, String block) throws HTTP2Exception
+	{
+		final byte[] bytes = bytes(block);
+
+		// Decode from the middle of a buffer, as the session does
+		final byte[] buffer = new byte[bytes.length + 2];
+		System.arraycopy(bytes, 0, buffer, 1, bytes.length);
+
+		return decoder.decode(buffer, 1, bytes.length);
+	}
+
+	private static byte[] huffman(String data) throws HTTP2Exception
+	{
+		final byte[] bytes = bytes(data);
+		return Huffman.decode(bytes, 0, bytes.length);
+	}
+
+	private static byte[] bytes(String hex)
+	{
+		final byte[] bytes = new byte[hex.length() / 2];
+
+		for (int i = 0; i < bytes.length; i++)
+		{
+			bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+		}
+
+		return bytes;
+	}
+}